@@ -0,0 +1,904 @@
+package com.sheraz.aws.lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the parts of EC2, SNS, STS and Route53 that the lambda handlers use, served over HTTP on
+ * localhost so the real SDK clients (pointed here with AWSClientRegistry.setEndpointOverride) can be exercised
+ * without an AWS account.
+ *
+ * Supported: DescribeVolumes, DescribeInstances, DescribeRegions, CreateTags, DeleteTags, DeleteVolume, StopInstances
+ * (with the filters EC2Query builds and NextToken paging), CreateTopic, Publish, AssumeRole, GetHostedZone,
+ * ListResourceRecordSets and ChangeResourceRecordSets. Requests are not authenticated, and there is a single
+ * inventory shared by all regions.
+ *
+ * Every call is counted per action. Latency can be added to each call, and a share of calls can be rejected with
+ * the service's throttling error, to see how the handlers behave against a slow or busy API.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class AWSStandIn implements Closeable, HttpHandler
+{
+    public static final String  ACCOUNT = "123456789012";
+
+    private static final String EC2_NAMESPACE = "http://ec2.amazonaws.com/doc/2016-09-15/";
+    private static final String SNS_NAMESPACE = "http://sns.amazonaws.com/doc/2010-03-31/";
+    private static final String STS_NAMESPACE = "https://sts.amazonaws.com/doc/2011-06-15/";
+    private static final String ROUTE53_NAMESPACE = "https://route53.amazonaws.com/doc/2013-04-01/";
+    private static final String ROUTE53_ZONE_PATH = "/2013-04-01/hostedzone/";
+    private static final int    SNS_MAX_MESSAGE_BYTES = 256 * 1024;
+
+    private final HttpServer                            _server;
+    private final ExecutorService                       _executor;
+    private final Map<String, Volume>                   _volumes = new LinkedHashMap<String, Volume>();
+    private final Map<String, Instance>                 _instances = new LinkedHashMap<String, Instance>();
+    private final Map<String, String>                   _hostedZones = new HashMap<String, String>();
+    private final Map<String, NavigableMap<String, RecordSet>> _records = new HashMap<String, NavigableMap<String, RecordSet>>();
+    private final List<String>                          _regions = new ArrayList<String>();
+    private final ConcurrentMap<String, AtomicLong>     _calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong                            _throttled = new AtomicLong();
+    private final AtomicLong                            _publishedBytes = new AtomicLong();
+    private final ConcurrentMap<String, Pattern>        _wildcards = new ConcurrentHashMap<String, Pattern>();
+    private volatile long                               _latencyMillis;
+    private volatile double                             _throttleRate;
+
+    public AWSStandIn() throws IOException
+    {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _executor = Executors.newFixedThreadPool(32);
+        _server.createContext("/", this);
+        _server.setExecutor(_executor);
+        _server.start();
+        _regions.add("us-east-1");
+    }
+
+    public String getEndpoint()
+    {
+        return "http://127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    // ---- seeding and faults --------------------------------------------------------------------------------
+
+    public synchronized void seedVolumes(Collection<Volume> volumes)
+    {
+        for(Volume volume : volumes)
+        {
+            if(volume.getState() == null) volume.setState("available");
+            if(volume.getCreateTime() == null) volume.setCreateTime(new Date());
+            _volumes.put(volume.getVolumeId(), volume);
+        }
+    }
+
+    /**
+     * Instances without a state are seeded as running.
+     */
+    public synchronized void seedInstances(Collection<Instance> instances)
+    {
+        for(Instance instance : instances)
+        {
+            if(instance.getState() == null) instance.setState(new InstanceState().withCode(16).withName("running"));
+            if(instance.getLaunchTime() == null) instance.setLaunchTime(new Date());
+            _instances.put(instance.getInstanceId(), instance);
+        }
+    }
+
+    public synchronized void addHostedZone(String zoneId, String name)
+    {
+        _hostedZones.put(zoneId, name.endsWith(".") ? name : name + ".");
+        _records.put(zoneId, new TreeMap<String, RecordSet>());
+    }
+
+    public synchronized void setRegions(List<String> regions)
+    {
+        _regions.clear();
+        _regions.addAll(regions);
+    }
+
+    public void setLatencyMillis(long latencyMillis)
+    {
+        _latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param throttleRate share of calls (0..1) answered with the service's throttling error
+     */
+    public void setThrottleRate(double throttleRate)
+    {
+        _throttleRate = throttleRate;
+    }
+
+    public synchronized int getVolumeCount()
+    {
+        return _volumes.size();
+    }
+
+    public synchronized int getRecordCount(String zoneId)
+    {
+        return _records.get(zoneId).size();
+    }
+
+    // ---- call accounting -----------------------------------------------------------------------------------
+
+    /**
+     * @return calls per action since the last reset, including calls that were throttled
+     */
+    public Map<String, Long> getCallCounts()
+    {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> entry : _calls.entrySet()) counts.put(entry.getKey(), entry.getValue().get());
+        return counts;
+    }
+
+    public long getTotalCalls()
+    {
+        long total = 0;
+        for(AtomicLong count : _calls.values()) total += count.get();
+        return total;
+    }
+
+    public long getThrottledCalls()
+    {
+        return _throttled.get();
+    }
+
+    public long getPublishedBytes()
+    {
+        return _publishedBytes.get();
+    }
+
+    public void resetCounters()
+    {
+        _calls.clear();
+        _throttled.set(0);
+        _publishedBytes.set(0);
+    }
+
+    // ---- HTTP dispatch -------------------------------------------------------------------------------------
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        Response response;
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String body = read(exchange.getRequestBody());
+            if(path.startsWith(ROUTE53_ZONE_PATH)) response = handleRoute53(exchange.getRequestMethod(), path, exchange.getRequestURI().getRawQuery(), body);
+            else response = handleQuery(parseForm(body));
+        } catch (RuntimeException e) {
+            response = new Response(500, "<ErrorResponse><Error><Type>Receiver</Type><Code>InternalFailure</Code><Message>"
+                                         + escape(String.valueOf(e)) + "</Message></Error></ErrorResponse>");
+        }
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.getResponseHeaders().set("x-amzn-RequestId", UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Response handleQuery(Map<String, String> params)
+    {
+        String action = String.valueOf(params.get("Action"));
+        Protocol protocol = action.equals("CreateTopic") || action.equals("Publish") ? Protocol.SNS
+                          : action.equals("AssumeRole") ? Protocol.STS : Protocol.EC2;
+        Response fault = injectFaults(action, protocol);
+        if(fault != null) return fault;
+        try {
+            switch(action)
+            {
+                case "DescribeVolumes":   return describeVolumes(params);
+                case "DescribeInstances": return describeInstances(params);
+                case "DescribeRegions":   return describeRegions();
+                case "CreateTags":        return changeTags(params, true);
+                case "DeleteTags":        return changeTags(params, false);
+                case "DeleteVolume":      return deleteVolume(params);
+                case "StopInstances":     return stopInstances(params);
+                case "CreateTopic":       return createTopic(params);
+                case "Publish":           return publish(params);
+                case "AssumeRole":        return assumeRole(params);
+                default: throw new ServiceError(400, "InvalidAction", "Unsupported action " + action);
+            }
+        } catch (ServiceError e) {
+            return error(protocol, e.status, e.code, e.getMessage());
+        }
+    }
+
+    private Response injectFaults(String action, Protocol protocol)
+    {
+        _calls.computeIfAbsent(action, key -> new AtomicLong()).incrementAndGet();
+        long latency = _latencyMillis;
+        if(latency > 0)
+        {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(_throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < _throttleRate)
+        {
+            _throttled.incrementAndGet();
+            if(protocol == Protocol.EC2) return error(protocol, 503, "RequestLimitExceeded", "Request limit exceeded.");
+            return error(protocol, 400, "Throttling", "Rate exceeded");
+        }
+        return null;
+    }
+
+    // ---- EC2 -----------------------------------------------------------------------------------------------
+
+    private Response describeVolumes(Map<String, String> params)
+    {
+        List<String> volumeIds = indexedValues(params, "VolumeId");
+        List<Filter> filters = parseFilters(params);
+        List<Volume> matches = new ArrayList<Volume>();
+        synchronized(this)
+        {
+            if(volumeIds.isEmpty())
+            {
+                for(Volume volume : _volumes.values()) if(matchesVolume(volume, filters)) matches.add(volume);
+            }
+            else for(String volumeId : volumeIds)
+            {
+                Volume volume = _volumes.get(volumeId);
+                if(volume == null) throw new ServiceError(400, "InvalidVolume.NotFound", "The volume '" + volumeId + "' does not exist.");
+                if(matchesVolume(volume, filters)) matches.add(volume);
+            }
+        }
+        Page page = page(params, matches.size());
+        StringBuilder xml = ec2Start("DescribeVolumesResponse").append("<volumeSet>");
+        for(Volume volume : matches.subList(page.from, page.to))
+        {
+            xml.append("<item>");
+            element(xml, "volumeId", volume.getVolumeId());
+            element(xml, "size", volume.getSize());
+            element(xml, "availabilityZone", volume.getAvailabilityZone() != null ? volume.getAvailabilityZone() : "us-east-1a");
+            element(xml, "status", volume.getState());
+            element(xml, "createTime", timestamp(volume.getCreateTime()));
+            xml.append("<attachmentSet/>");
+            tagSet(xml, volume.getTags());
+            element(xml, "volumeType", volume.getVolumeType() != null ? volume.getVolumeType() : "gp2");
+            element(xml, "encrypted", "false");
+            xml.append("</item>");
+        }
+        xml.append("</volumeSet>");
+        if(page.nextToken != null) element(xml, "nextToken", page.nextToken);
+        return ok(xml.append("</DescribeVolumesResponse>"));
+    }
+
+    private boolean matchesVolume(Volume volume, List<Filter> filters)
+    {
+        for(Filter filter : filters)
+        {
+            if(filter.name.equals("status")) { if(!filter.matches(volume.getState())) return false; }
+            else if(filter.name.equals("volume-id")) { if(!filter.matches(volume.getVolumeId())) return false; }
+            else if(!matchesTagFilter(filter, volume.getTags())) return false;
+        }
+        return true;
+    }
+
+    private Response describeInstances(Map<String, String> params)
+    {
+        List<String> instanceIds = indexedValues(params, "InstanceId");
+        List<Filter> filters = parseFilters(params);
+        List<Instance> matches = new ArrayList<Instance>();
+        synchronized(this)
+        {
+            if(instanceIds.isEmpty())
+            {
+                for(Instance instance : _instances.values()) if(matchesInstance(instance, filters)) matches.add(instance);
+            }
+            else for(String instanceId : instanceIds)
+            {
+                Instance instance = _instances.get(instanceId);
+                if(instance == null) throw new ServiceError(400, "InvalidInstanceID.NotFound", "The instance ID '" + instanceId + "' does not exist");
+                if(matchesInstance(instance, filters)) matches.add(instance);
+            }
+        }
+        Page page = page(params, matches.size());
+        StringBuilder xml = ec2Start("DescribeInstancesResponse").append("<reservationSet>");
+        for(Instance instance : matches.subList(page.from, page.to))
+        {
+            xml.append("<item>");
+            element(xml, "reservationId", "r-" + instance.getInstanceId().substring(2));
+            element(xml, "ownerId", ACCOUNT);
+            xml.append("<groupSet/><instancesSet><item>");
+            element(xml, "instanceId", instance.getInstanceId());
+            element(xml, "imageId", "ami-00000000");
+            instanceState(xml, "instanceState", instance.getState());
+            element(xml, "instanceType", "t2.micro");
+            element(xml, "launchTime", timestamp(instance.getLaunchTime()));
+            xml.append("<placement><availabilityZone>us-east-1a</availabilityZone></placement>");
+            element(xml, "privateIpAddress", instance.getPrivateIpAddress());
+            element(xml, "vpcId", instance.getVpcId());
+            tagSet(xml, instance.getTags());
+            xml.append("</item></instancesSet></item>");
+        }
+        xml.append("</reservationSet>");
+        if(page.nextToken != null) element(xml, "nextToken", page.nextToken);
+        return ok(xml.append("</DescribeInstancesResponse>"));
+    }
+
+    private boolean matchesInstance(Instance instance, List<Filter> filters)
+    {
+        for(Filter filter : filters)
+        {
+            switch(filter.name)
+            {
+                case "instance-id":         if(!filter.matches(instance.getInstanceId())) return false; break;
+                case "instance-state-name": if(!filter.matches(instance.getState().getName())) return false; break;
+                case "vpc-id":              if(!filter.matches(instance.getVpcId())) return false; break;
+                case "launch-time":         if(!filter.matches(timestamp(instance.getLaunchTime()))) return false; break;
+                default:                    if(!matchesTagFilter(filter, instance.getTags())) return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesTagFilter(Filter filter, List<Tag> tags)
+    {
+        if(filter.name.equals("tag-key"))
+        {
+            for(Tag tag : tags) if(filter.matches(tag.getKey())) return true;
+            return false;
+        }
+        if(filter.name.startsWith("tag:"))
+        {
+            String key = filter.name.substring(4);
+            for(Tag tag : tags) if(tag.getKey().equals(key) && filter.matches(tag.getValue())) return true;
+            return false;
+        }
+        throw new ServiceError(400, "InvalidParameterValue", "The filter '" + filter.name + "' is invalid");
+    }
+
+    private Response describeRegions()
+    {
+        StringBuilder xml = ec2Start("DescribeRegionsResponse").append("<regionInfo>");
+        synchronized(this)
+        {
+            for(String region : _regions)
+            {
+                xml.append("<item>");
+                element(xml, "regionName", region);
+                element(xml, "regionEndpoint", "ec2." + region + ".amazonaws.com");
+                xml.append("</item>");
+            }
+        }
+        return ok(xml.append("</regionInfo></DescribeRegionsResponse>"));
+    }
+
+    private Response changeTags(Map<String, String> params, boolean create)
+    {
+        List<String> resourceIds = indexedValues(params, "ResourceId");
+        List<Tag> tags = new ArrayList<Tag>();
+        for(int i = 1; params.containsKey("Tag." + i + ".Key"); i++) tags.add(new Tag(params.get("Tag." + i + ".Key"), params.get("Tag." + i + ".Value")));
+        if(resourceIds.size() > EC2Client.MAX_TAG_RESOURCES_PER_REQUEST) throw new ServiceError(400, "InvalidParameterValue", "Too many resources");
+        synchronized(this)
+        {
+            for(String resourceId : resourceIds)
+            {
+                List<Tag> existing = resourceTags(resourceId);
+                if(existing == null) throw new ServiceError(400, "InvalidID", "The ID '" + resourceId + "' is not valid");
+                for(Tag tag : tags)
+                {
+                    for(Iterator<Tag> it = existing.iterator(); it.hasNext();)
+                    {
+                        Tag current = it.next();
+                        if(current.getKey().equals(tag.getKey()) && (create || tag.getValue() == null || tag.getValue().equals(current.getValue()))) it.remove();
+                    }
+                    if(create) existing.add(tag);
+                }
+            }
+        }
+        return ok(ec2Start(create ? "CreateTagsResponse" : "DeleteTagsResponse").append("<return>true</return>")
+                  .append(create ? "</CreateTagsResponse>" : "</DeleteTagsResponse>"));
+    }
+
+    private List<Tag> resourceTags(String resourceId)
+    {
+        if(_volumes.containsKey(resourceId))
+        {
+            Volume volume = _volumes.get(resourceId);
+            if(volume.getTags() == null || volume.getTags().getClass() != ArrayList.class) volume.setTags(new ArrayList<Tag>(volume.getTags()));
+            return volume.getTags();
+        }
+        if(_instances.containsKey(resourceId))
+        {
+            Instance instance = _instances.get(resourceId);
+            if(instance.getTags() == null || instance.getTags().getClass() != ArrayList.class) instance.setTags(new ArrayList<Tag>(instance.getTags()));
+            return instance.getTags();
+        }
+        return null;
+    }
+
+    private Response deleteVolume(Map<String, String> params)
+    {
+        String volumeId = params.get("VolumeId");
+        synchronized(this)
+        {
+            if(_volumes.remove(volumeId) == null) throw new ServiceError(400, "InvalidVolume.NotFound", "The volume '" + volumeId + "' does not exist.");
+        }
+        return ok(ec2Start("DeleteVolumeResponse").append("<return>true</return></DeleteVolumeResponse>"));
+    }
+
+    private Response stopInstances(Map<String, String> params)
+    {
+        StringBuilder xml = ec2Start("StopInstancesResponse").append("<instancesSet>");
+        synchronized(this)
+        {
+            for(String instanceId : indexedValues(params, "InstanceId"))
+            {
+                Instance instance = _instances.get(instanceId);
+                if(instance == null) throw new ServiceError(400, "InvalidInstanceID.NotFound", "The instance ID '" + instanceId + "' does not exist");
+                InstanceState previous = instance.getState();
+                instance.setState(new InstanceState().withCode(80).withName("stopped"));
+                xml.append("<item>");
+                element(xml, "instanceId", instanceId);
+                instanceState(xml, "currentState", instance.getState());
+                instanceState(xml, "previousState", previous);
+                xml.append("</item>");
+            }
+        }
+        return ok(xml.append("</instancesSet></StopInstancesResponse>"));
+    }
+
+    // ---- SNS and STS ---------------------------------------------------------------------------------------
+
+    private Response createTopic(Map<String, String> params)
+    {
+        StringBuilder xml = new StringBuilder("<CreateTopicResponse xmlns=\"").append(SNS_NAMESPACE).append("\"><CreateTopicResult>");
+        element(xml, "TopicArn", "arn:aws:sns:us-east-1:" + ACCOUNT + ":" + params.get("Name"));
+        return ok(xml.append("</CreateTopicResult>").append(responseMetadata()).append("</CreateTopicResponse>"));
+    }
+
+    private Response publish(Map<String, String> params)
+    {
+        int bytes = params.get("Message").getBytes(StandardCharsets.UTF_8).length;
+        if(bytes > SNS_MAX_MESSAGE_BYTES) throw new ServiceError(400, "InvalidParameter", "Invalid parameter: Message too long");
+        String subject = params.get("Subject");
+        if(subject != null && subject.length() > 100) throw new ServiceError(400, "InvalidParameter", "Invalid parameter: Subject");
+        _publishedBytes.addAndGet(bytes);
+        StringBuilder xml = new StringBuilder("<PublishResponse xmlns=\"").append(SNS_NAMESPACE).append("\"><PublishResult>");
+        element(xml, "MessageId", UUID.randomUUID().toString());
+        return ok(xml.append("</PublishResult>").append(responseMetadata()).append("</PublishResponse>"));
+    }
+
+    private Response assumeRole(Map<String, String> params)
+    {
+        String roleArn = params.get("RoleArn");
+        StringBuilder xml = new StringBuilder("<AssumeRoleResponse xmlns=\"").append(STS_NAMESPACE).append("\"><AssumeRoleResult>");
+        xml.append("<Credentials>");
+        element(xml, "AccessKeyId", "ASIASTANDIN" + Math.abs(roleArn.hashCode()));
+        element(xml, "SecretAccessKey", "standin-secret");
+        element(xml, "SessionToken", "standin-session-" + UUID.randomUUID());
+        element(xml, "Expiration", timestamp(new Date(System.currentTimeMillis() + 60 * 60 * 1000)));
+        xml.append("</Credentials><AssumedRoleUser>");
+        element(xml, "Arn", roleArn.replace(":iam::", ":sts::").replace(":role/", ":assumed-role/") + "/" + params.get("RoleSessionName"));
+        element(xml, "AssumedRoleId", "AROASTANDIN:" + params.get("RoleSessionName"));
+        xml.append("</AssumedRoleUser></AssumeRoleResult>");
+        return ok(xml.append(responseMetadata()).append("</AssumeRoleResponse>"));
+    }
+
+    // ---- Route53 -------------------------------------------------------------------------------------------
+
+    private Response handleRoute53(String method, String path, String rawQuery, String body)
+    {
+        String[] segments = path.substring(ROUTE53_ZONE_PATH.length()).split("/");
+        String zoneId = segments[0];
+        boolean recordSets = segments.length > 1 && segments[1].equals("rrset");
+        String action = !recordSets ? "GetHostedZone" : method.equals("POST") ? "ChangeResourceRecordSets" : "ListResourceRecordSets";
+        Response fault = injectFaults(action, Protocol.ROUTE53);
+        if(fault != null) return fault;
+        try {
+            synchronized(this)
+            {
+                String zoneName = _hostedZones.get(zoneId);
+                if(zoneName == null) throw new ServiceError(404, "NoSuchHostedZone", "No hosted zone found with ID: " + zoneId);
+                if(action.equals("GetHostedZone")) return getHostedZone(zoneId, zoneName);
+                if(action.equals("ListResourceRecordSets")) return listResourceRecordSets(zoneId, parseForm(rawQuery));
+                return changeResourceRecordSets(zoneId, body);
+            }
+        } catch (ServiceError e) {
+            return error(Protocol.ROUTE53, e.status, e.code, e.getMessage());
+        }
+    }
+
+    private Response getHostedZone(String zoneId, String zoneName)
+    {
+        StringBuilder xml = new StringBuilder("<GetHostedZoneResponse xmlns=\"").append(ROUTE53_NAMESPACE).append("\"><HostedZone>");
+        element(xml, "Id", "/hostedzone/" + zoneId);
+        element(xml, "Name", zoneName);
+        element(xml, "CallerReference", zoneId);
+        xml.append("<Config><PrivateZone>true</PrivateZone></Config>");
+        element(xml, "ResourceRecordSetCount", _records.get(zoneId).size());
+        return ok(xml.append("</HostedZone></GetHostedZoneResponse>"));
+    }
+
+    private Response listResourceRecordSets(String zoneId, Map<String, String> query)
+    {
+        int maxItems = query.containsKey("maxitems") ? Integer.parseInt(query.get("maxitems")) : 100;
+        String start = query.containsKey("name") ? recordKey(query.get("name"), query.containsKey("type") ? query.get("type") : "") : "";
+        StringBuilder xml = new StringBuilder("<ListResourceRecordSetsResponse xmlns=\"").append(ROUTE53_NAMESPACE).append("\"><ResourceRecordSets>");
+        int count = 0;
+        RecordSet next = null;
+        for(RecordSet record : _records.get(zoneId).tailMap(start, true).values())
+        {
+            if(count == maxItems) { next = record; break; }
+            xml.append("<ResourceRecordSet>");
+            element(xml, "Name", record.name);
+            element(xml, "Type", record.type);
+            element(xml, "TTL", record.ttl);
+            xml.append("<ResourceRecords>");
+            for(String value : record.values) xml.append("<ResourceRecord><Value>").append(escape(value)).append("</Value></ResourceRecord>");
+            xml.append("</ResourceRecords></ResourceRecordSet>");
+            count++;
+        }
+        xml.append("</ResourceRecordSets>");
+        element(xml, "IsTruncated", next != null);
+        if(next != null)
+        {
+            element(xml, "NextRecordName", next.name);
+            element(xml, "NextRecordType", next.type);
+        }
+        element(xml, "MaxItems", maxItems);
+        return ok(xml.append("</ListResourceRecordSetsResponse>"));
+    }
+
+    /**
+     * Applies the whole batch or nothing, like Route53: CREATE of an existing record or DELETE of a missing or
+     * different one rejects the batch with InvalidChangeBatch.
+     */
+    private Response changeResourceRecordSets(String zoneId, String body)
+    {
+        NavigableMap<String, RecordSet> staged = new TreeMap<String, RecordSet>(_records.get(zoneId));
+        NodeList changes = parseXml(body).getElementsByTagName("Change");
+        int elements = 0;
+        for(int i = 0; i < changes.getLength(); i++)
+        {
+            Element change = (Element) changes.item(i);
+            elements += Math.max(1, change.getElementsByTagName("Value").getLength()) * (text(change, "Action").equals("UPSERT") ? 2 : 1);
+        }
+        // UPSERT counts as a delete and a create
+        if(elements > 1000) throw new ServiceError(400, "InvalidChangeBatch", "Number of records limit of 1000 exceeded.");
+        for(int i = 0; i < changes.getLength(); i++)
+        {
+            Element change = (Element) changes.item(i);
+            String action = text(change, "Action");
+            RecordSet record = new RecordSet(text(change, "Name"), text(change, "Type"), Long.parseLong(text(change, "TTL")));
+            NodeList values = change.getElementsByTagName("Value");
+            for(int v = 0; v < values.getLength(); v++) record.values.add(values.item(v).getTextContent());
+            String key = recordKey(record.name, record.type);
+
+            if(action.equals("CREATE") && staged.containsKey(key))
+                throw new ServiceError(400, "InvalidChangeBatch", "Tried to create resource record set " + record.name + " but it already exists");
+            if(action.equals("DELETE") && !record.equals(staged.get(key)))
+                throw new ServiceError(400, "InvalidChangeBatch", "Tried to delete resource record set " + record.name + " but it was not found");
+            if(action.equals("DELETE")) staged.remove(key);
+            else staged.put(key, record);
+        }
+        _records.put(zoneId, staged);
+        StringBuilder xml = new StringBuilder("<ChangeResourceRecordSetsResponse xmlns=\"").append(ROUTE53_NAMESPACE).append("\"><ChangeInfo>");
+        element(xml, "Id", "/change/C" + UUID.randomUUID().toString().replace("-", "").substring(0, 12).toUpperCase());
+        element(xml, "Status", "INSYNC");
+        element(xml, "SubmittedAt", timestamp(new Date()));
+        return ok(xml.append("</ChangeInfo></ChangeResourceRecordSetsResponse>"));
+    }
+
+    /**
+     * Sorts like Route53 lists records: by name with the labels reversed (com.example.www), then by type.
+     */
+    private static String recordKey(String name, String type)
+    {
+        String[] labels = name.toLowerCase().split("\\.");
+        StringBuilder key = new StringBuilder(name.length() + type.length() + 1);
+        for(int i = labels.length - 1; i >= 0; i--)
+        {
+            key.append(labels[i]);
+            if(i > 0) key.append('\1');
+        }
+        return key.append('\0').append(type).toString();
+    }
+
+    // ---- request parsing -----------------------------------------------------------------------------------
+
+    private List<Filter> parseFilters(Map<String, String> params)
+    {
+        List<Filter> filters = new ArrayList<Filter>();
+        for(int i = 1; params.containsKey("Filter." + i + ".Name"); i++)
+        {
+            List<String> values = indexedValues(params, "Filter." + i + ".Value");
+            if(values.size() > EC2Client.MAX_FILTER_VALUES) throw new ServiceError(400, "FilterLimitExceeded", "The maximum number of filter values is 200");
+            filters.add(new Filter(params.get("Filter." + i + ".Name"), values));
+        }
+        return filters;
+    }
+
+    private Page page(Map<String, String> params, int total)
+    {
+        int from = params.containsKey("NextToken") ? Integer.parseInt(params.get("NextToken")) : 0;
+        int size = params.containsKey("MaxResults") ? Integer.parseInt(params.get("MaxResults")) : total;
+        int to = Math.min(total, from + Math.max(1, size));
+        return new Page(from, to, to < total ? String.valueOf(to) : null);
+    }
+
+    private static List<String> indexedValues(Map<String, String> params, String prefix)
+    {
+        List<String> values = new ArrayList<String>();
+        for(int i = 1; params.containsKey(prefix + "." + i); i++) values.add(params.get(prefix + "." + i));
+        return values;
+    }
+
+    private static Map<String, String> parseForm(String form)
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if(form == null || form.isEmpty()) return params;
+        try {
+            for(String pair : form.split("&"))
+            {
+                int eq = pair.indexOf('=');
+                if(eq < 0) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    private static Document parseXml(String body)
+    {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            return factory.newDocumentBuilder().parse(new java.io.ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new ServiceError(400, "InvalidInput", "Malformed XML: " + e.getMessage());
+        }
+    }
+
+    private static String text(Element parent, String tag)
+    {
+        NodeList nodes = parent.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? "0" : nodes.item(0).getTextContent();
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for(int n; (n = in.read(buffer)) > 0;) bytes.write(buffer, 0, n);
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // ---- response rendering --------------------------------------------------------------------------------
+
+    private static StringBuilder ec2Start(String root)
+    {
+        StringBuilder xml = new StringBuilder(4096).append('<').append(root).append(" xmlns=\"").append(EC2_NAMESPACE).append("\">");
+        element(xml, "requestId", UUID.randomUUID().toString());
+        return xml;
+    }
+
+    private static String responseMetadata()
+    {
+        return "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata>";
+    }
+
+    private static void tagSet(StringBuilder xml, List<Tag> tags)
+    {
+        xml.append("<tagSet>");
+        if(tags != null) for(Tag tag : tags)
+        {
+            xml.append("<item>");
+            element(xml, "key", tag.getKey());
+            element(xml, "value", tag.getValue());
+            xml.append("</item>");
+        }
+        xml.append("</tagSet>");
+    }
+
+    private static void instanceState(StringBuilder xml, String name, InstanceState state)
+    {
+        xml.append('<').append(name).append('>');
+        element(xml, "code", state.getCode());
+        element(xml, "name", state.getName());
+        xml.append("</").append(name).append('>');
+    }
+
+    private static void element(StringBuilder xml, String name, Object value)
+    {
+        if(value == null) return;
+        xml.append('<').append(name).append('>').append(escape(String.valueOf(value))).append("</").append(name).append('>');
+    }
+
+    private static String escape(String text)
+    {
+        StringBuilder escaped = null;
+        for(int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            String replacement = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;" : null;
+            if(replacement == null && escaped == null) continue;
+            if(escaped == null) escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            if(replacement != null) escaped.append(replacement);
+            else escaped.append(c);
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+
+    private static String timestamp(Date date)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static Response ok(CharSequence xml)
+    {
+        return new Response(200, xml.toString());
+    }
+
+    private static Response error(Protocol protocol, int status, String code, String message)
+    {
+        String requestId = UUID.randomUUID().toString();
+        if(protocol == Protocol.EC2)
+        {
+            return new Response(status, "<Response><Errors><Error><Code>" + code + "</Code><Message>" + escape(message)
+                                        + "</Message></Error></Errors><RequestID>" + requestId + "</RequestID></Response>");
+        }
+        String namespace = protocol == Protocol.SNS ? SNS_NAMESPACE : protocol == Protocol.STS ? STS_NAMESPACE : ROUTE53_NAMESPACE;
+        return new Response(status, "<ErrorResponse xmlns=\"" + namespace + "\"><Error><Type>Sender</Type><Code>" + code + "</Code><Message>"
+                                    + escape(message) + "</Message></Error><RequestId>" + requestId + "</RequestId></ErrorResponse>");
+    }
+
+    private enum Protocol { EC2, SNS, STS, ROUTE53 }
+
+    private static final class Response
+    {
+        final int    status;
+        final String body;
+
+        Response(int status, String body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static final class Page
+    {
+        final int    from;
+        final int    to;
+        final String nextToken;
+
+        Page(int from, int to, String nextToken)
+        {
+            this.from = from;
+            this.to = to;
+            this.nextToken = nextToken;
+        }
+    }
+
+    /**
+     * EC2 filter values, with the '*' and '?' wildcards.
+     */
+    private final class Filter
+    {
+        final String        name;
+        final List<Pattern> values = new ArrayList<Pattern>();
+
+        Filter(String name, List<String> values)
+        {
+            this.name = name;
+            for(String value : values) this.values.add(_wildcards.computeIfAbsent(value, AWSStandIn::wildcard));
+        }
+
+        boolean matches(String value)
+        {
+            if(value == null) return false;
+            for(Pattern pattern : values) if(pattern.matcher(value).matches()) return true;
+            return false;
+        }
+    }
+
+    private static Pattern wildcard(String value)
+    {
+        StringBuilder regex = new StringBuilder();
+        for(char c : value.toCharArray())
+        {
+            if(c == '*') regex.append(".*");
+            else if(c == '?') regex.append('.');
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static final class RecordSet
+    {
+        final String       name;
+        final String       type;
+        final long         ttl;
+        final List<String> values = new ArrayList<String>();
+
+        RecordSet(String name, String type, long ttl)
+        {
+            this.name = name.endsWith(".") ? name : name + ".";
+            this.type = type;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof RecordSet)) return false;
+            RecordSet that = (RecordSet) other;
+            return name.equalsIgnoreCase(that.name) && type.equals(that.type) && ttl == that.ttl && values.equals(that.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.toLowerCase().hashCode();
+        }
+    }
+
+    private static final class ServiceError extends RuntimeException
+    {
+        final int    status;
+        final String code;
+
+        ServiceError(int status, String code, String message)
+        {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.sheraz.aws.lambda;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * Cold-start harness: runs each handler in a fresh JVM, the way Lambda starts a new container, against an AWSStandIn
+ * in this process, and reports the time from JVM start to the handler class being initialized, the first (cold)
+ * invocation and a second (warm) one, with HandlerPrimer's priming on and off.
+ *
+ *     mvn clean install -Plambda -DskipTests && (cd benchmarks && mvn clean package)
+ *     java -cp benchmarks/target/benchmarks.jar com.sheraz.aws.lambda.ColdStartHarness \
+ *          jar=target/aws-lambda-compliance-0.0.1-lambda.jar runs=5
+ *
+ * Priming moves work from the first invocation into init, which Lambda runs at full CPU (and, with SnapStart, only
+ * once per version), so the number to watch is the first invocation rather than the total.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class ColdStartHarness
+{
+    private static final String REGION = "us-east-1";
+    private static final String RESULT_PREFIX = "COLD-START ";
+
+    private static final String[][] HANDLERS = {
+        { "com.sheraz.aws.lambda.DetachedVolumeJanitor", "handleDetachedVolumeScheduleDeleteStampStream", "schedule" },
+        { "com.sheraz.aws.lambda.DetachedVolumeJanitor", "handleDetachedVolumeNotifyAndDeleteStream", "schedule" },
+        { "com.sheraz.aws.lambda.EC2InstanceTagComplianceChecker", "handleEC2InstanceTagComplianceStream", "launch" },
+        { "com.sheraz.aws.lambda.Route53DNSUpdater", "handleRoute53DNSUpdatesStream", "launch" },
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for(String arg : args)
+        {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        String jar = option(options, "jar", "target/aws-lambda-compliance-0.0.1-lambda.jar");
+        int runs = Integer.parseInt(option(options, "runs", "3"));
+        if(!new File(jar).isFile()) throw new IllegalArgumentException("No handler jar at " + jar + ", build it with mvn package -Plambda");
+
+        // the child JVM gets the handler jar and the harness classes only, not benchmarks.jar, which bundles the full
+        // dependencies and would hide anything the trimmed jar is missing
+        String classes = option(options, "classes", "benchmarks/target/classes");
+        if(!new File(classes, "com/sheraz/aws/lambda/ColdStartHarness$Child.class").isFile()) throw new IllegalArgumentException("No harness classes in " + classes);
+        String classpath = jar + File.pathSeparator + classes;
+
+        try(AWSStandIn standIn = new AWSStandIn()) {
+            SyntheticInventory inventory = new SyntheticInventory(42);
+            standIn.seedVolumes(inventory.volumes(200, 0.5));
+            List<Instance> instances = inventory.instances(20, 0.5);
+            standIn.seedInstances(instances);
+            standIn.addHostedZone("Z1BRVK3TABIDQ9", "corp.example.com");
+            String instanceId = instances.get(0).getInstanceId();
+
+            System.out.println("Stand-in at " + standIn.getEndpoint() + ", " + runs + " runs per handler, classpath " + classpath);
+            System.out.println(String.format("%-70s %-8s %10s %10s %10s", "handler", "priming", "init ms", "first ms", "warm ms"));
+            for(String[] handler : HANDLERS)
+            {
+                String event = "schedule".equals(handler[2]) ? scheduleEvent() : launchEvent(instanceId);
+                for(boolean priming : new boolean[] { false, true })
+                {
+                    long[] totals = new long[3];
+                    for(int run = 0; run < runs; run++)
+                    {
+                        long[] result = launch(classpath, standIn.getEndpoint(), priming, handler[0], handler[1], event);
+                        for(int i = 0; i < totals.length; i++) totals[i] += result[i];
+                    }
+                    System.out.println(String.format("%-70s %-8s %10d %10d %10d", simpleName(handler[0]) + "." + handler[1],
+                                                     priming ? "on" : "off", totals[0] / runs, totals[1] / runs, totals[2] / runs));
+                }
+            }
+        }
+    }
+
+    private static long[] launch(String classpath, String endpoint, boolean priming, String handlerClass, String method, String event) throws Exception
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-XX:TieredStopAtLevel=1"); // what the Lambda Java runtimes run with
+        command.add("-cp");
+        command.add(classpath);
+        command.add("-D" + AWSClientRegistry.ENDPOINT_OVERRIDE_PROPERTY + "=" + endpoint);
+        command.add("-Daws.accessKeyId=standin");
+        command.add("-Daws.secretKey=standin");
+        command.add(Child.class.getName());
+        command.add(handlerClass);
+        command.add(method);
+        command.add(event);
+
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put(HandlerPrimer.PRIMING_ENV, String.valueOf(priming));
+        builder.environment().put("AWS_REGION", REGION);
+        builder.environment().put("LOG_LEVEL", "WARN");
+        Process process = builder.start();
+
+        String result = null;
+        StringBuilder output = new StringBuilder();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for(String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                if(line.startsWith(RESULT_PREFIX)) result = line.substring(RESULT_PREFIX.length());
+                else output.append(line).append('\n');
+            }
+        }
+        if(process.waitFor() != 0 || result == null) throw new IllegalStateException(handlerClass + "." + method + " failed:\n" + output);
+
+        String[] millis = result.split(" ");
+        return new long[] { Long.parseLong(millis[0]), Long.parseLong(millis[1]), Long.parseLong(millis[2]) };
+    }
+
+    private static String scheduleEvent()
+    {
+        return "{\"version\":\"0\",\"id\":\"cold-start\",\"detail-type\":\"Scheduled Event\",\"source\":\"aws.events\","
+               + "\"account\":\"" + AWSStandIn.ACCOUNT + "\",\"time\":\"2016-08-01T00:00:00Z\",\"region\":\"" + REGION + "\","
+               + "\"resources\":[],\"detail\":{}}";
+    }
+
+    private static String launchEvent(String instanceId)
+    {
+        return "{\"version\":\"0\",\"id\":\"cold-start\",\"detail-type\":\"EC2 Instance State-change Notification\",\"source\":\"aws.ec2\","
+               + "\"account\":\"" + AWSStandIn.ACCOUNT + "\",\"time\":\"2016-08-01T00:00:00Z\",\"region\":\"" + REGION + "\","
+               + "\"resources\":[],\"detail\":{\"instance-id\":\"" + instanceId + "\",\"state\":\"running\"}}";
+    }
+
+    private static String simpleName(String className)
+    {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue)
+    {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    /**
+     * Runs in the child JVM: initializes the handler class, as the runtime does when the container starts, then
+     * invokes the handler twice and prints the three timings.
+     */
+    public static class Child
+    {
+        public static void main(String[] args) throws Exception
+        {
+            long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+            Class<?> handlerClass = Class.forName(args[0], true, Child.class.getClassLoader());
+            Object handler = handlerClass.getConstructor().newInstance();
+            Method method = handlerClass.getMethod(args[1], InputStream.class, OutputStream.class, Context.class);
+            long init = System.currentTimeMillis() - jvmStart;
+
+            byte[] event = args[2].getBytes(StandardCharsets.UTF_8);
+            long first = invoke(handler, method, event);
+            long warm = invoke(handler, method, event);
+            System.out.println(RESULT_PREFIX + init + " " + first + " " + warm);
+        }
+
+        private static long invoke(Object handler, Method method, byte[] event) throws Exception
+        {
+            long start = System.nanoTime();
+            method.invoke(handler, new ByteArrayInputStream(event), new ByteArrayOutputStream(), null);
+            return (System.nanoTime() - start) / 1000000;
+        }
+    }
+}
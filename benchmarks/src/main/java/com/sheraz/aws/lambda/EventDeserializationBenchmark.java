@@ -0,0 +1,59 @@
+package com.sheraz.aws.lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+
+/**
+ * Cost of binding a CloudWatch instance state-change event to the handler POJO the way the Lambda Java runtime
+ * does it (reflection-based Jackson databind, ignoring unknown properties), against reading it off the stream with
+ * CloudWatchEventParser as the *Stream entry points do.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventDeserializationBenchmark 
+{
+    private ObjectMapper _mapper;
+    private byte[]       _eventJson;
+    
+    @Setup
+    public void setUp()
+    {
+        _mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        _eventJson = new SyntheticInventory(42).instanceStateChangeEventJson(7).getBytes();
+    }
+    
+    @Benchmark
+    public EC2InstanceStateChangeEvent jacksonPojoBinding() throws IOException
+    {
+        return _mapper.readValue(_eventJson, EC2InstanceStateChangeEvent.class);
+    }
+    
+    @Benchmark
+    public EC2InstanceStateChangeEvent streamingParser() throws IOException
+    {
+        return CloudWatchEventParser.parseStateChangeEvent(new ByteArrayInputStream(_eventJson));
+    }
+}
@@ -0,0 +1,122 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEventBatch;
+
+/**
+ * Offline load test: runs the real handlers, with real SDK clients, against an AWSStandIn seeded with a synthetic
+ * inventory, and reports wall time and API calls per handler run. Useful to compare the cost of a change before
+ * it goes anywhere near an account.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar com.sheraz.aws.lambda.StandInLoadTest \
+ *          volumes=100000 instances=5000 latencyMillis=5 throttleRate=0.02
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class StandInLoadTest
+{
+    private static final String HOSTED_ZONE_ID = "Z1BRVK3TABIDQ9";
+    private static final String REGION = "us-east-1";
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for(String arg : args)
+        {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int volumeCount = Integer.parseInt(option(options, "volumes", "100000"));
+        int instanceCount = Integer.parseInt(option(options, "instances", "5000"));
+        double compliantFraction = Double.parseDouble(option(options, "compliant", "1.0"));
+
+        // the stand-in doesn't check signatures, but the SDK insists on having credentials to sign with
+        System.setProperty("aws.accessKeyId", "standin");
+        System.setProperty("aws.secretKey", "standin");
+
+        try(AWSStandIn standIn = new AWSStandIn()) {
+            SyntheticInventory inventory = new SyntheticInventory(42);
+            standIn.seedVolumes(inventory.volumes(volumeCount, 0.5));
+            List<Instance> instances = inventory.instances(instanceCount, compliantFraction);
+            standIn.seedInstances(instances);
+            standIn.addHostedZone(HOSTED_ZONE_ID, "corp.example.com");
+            AWSClientRegistry.setEndpointOverride(standIn.getEndpoint());
+            standIn.setLatencyMillis(Long.parseLong(option(options, "latencyMillis", "0")));
+            standIn.setThrottleRate(Double.parseDouble(option(options, "throttleRate", "0")));
+
+            System.out.println("Stand-in at " + standIn.getEndpoint() + " with " + volumeCount + " volumes and " + instanceCount + " instances");
+            final CloudWatchScheduleEvent schedule = scheduleEvent();
+            final EC2InstanceStateChangeEventBatch launches = stateChangeBatch(instances, "running");
+            final EC2InstanceStateChangeEventBatch terminations = stateChangeBatch(instances, "terminated");
+
+            run(standIn, "DetachedVolumeJanitor stamp", () -> new DetachedVolumeJanitor().handleDetachedVolumeScheduleDeleteStamp(schedule));
+            run(standIn, "DetachedVolumeJanitor notify+delete", () -> new DetachedVolumeJanitor().handleDetachedVolumeNotifyAndDelete(schedule, null));
+            run(standIn, "DetachedVolumeJanitor fleet sweep", () -> new DetachedVolumeJanitor().handleDetachedVolumeFleetSweep(schedule, null));
+            run(standIn, "Tag compliance batch", () -> new EC2InstanceTagComplianceChecker().handleEC2InstanceTagComplianceBatch(launches));
+            run(standIn, "Route53 DNS batch (launch)", () -> new Route53DNSUpdater().handleRoute53DNSBatch(launches));
+            System.out.println("    records in zone: " + standIn.getRecordCount(HOSTED_ZONE_ID));
+            run(standIn, "Route53 DNS batch (terminate)", () -> new Route53DNSUpdater().handleRoute53DNSBatch(terminations));
+            System.out.println("    records in zone: " + standIn.getRecordCount(HOSTED_ZONE_ID));
+        } finally {
+            AWSClientRegistry.setEndpointOverride(null);
+        }
+    }
+
+    private static void run(AWSStandIn standIn, String name, Runnable handler)
+    {
+        standIn.resetCounters();
+        long start = System.nanoTime();
+        String outcome = "ok";
+        try {
+            handler.run();
+        } catch (RuntimeException e) {
+            outcome = "failed: " + e;
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println(String.format("%-40s %8d ms %8d calls %6d throttled %10d bytes published  %s",
+                                         name, millis, standIn.getTotalCalls(), standIn.getThrottledCalls(), standIn.getPublishedBytes(), outcome));
+        System.out.println("    " + standIn.getCallCounts());
+    }
+
+    private static CloudWatchScheduleEvent scheduleEvent()
+    {
+        CloudWatchScheduleEvent event = new CloudWatchScheduleEvent();
+        event.setId("standin-load-test");
+        event.setRegion(REGION);
+        event.setAccount(AWSStandIn.ACCOUNT);
+        event.setDetail(new HashMap<String, String>());
+        return event;
+    }
+
+    private static EC2InstanceStateChangeEventBatch stateChangeBatch(List<Instance> instances, String state)
+    {
+        List<EC2InstanceStateChangeEvent> events = new ArrayList<EC2InstanceStateChangeEvent>(instances.size());
+        for(Instance instance : instances)
+        {
+            EC2InstanceStateChangeEvent event = new EC2InstanceStateChangeEvent();
+            event.setRegion(REGION);
+            event.setAccount(AWSStandIn.ACCOUNT);
+            Map<String, String> detail = new HashMap<String, String>();
+            detail.put("instance-id", instance.getInstanceId());
+            detail.put("state", state);
+            event.setDetail(detail);
+            events.add(event);
+        }
+        EC2InstanceStateChangeEventBatch batch = new EC2InstanceStateChangeEventBatch();
+        batch.setEvents(events);
+        return batch;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue)
+    {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+}
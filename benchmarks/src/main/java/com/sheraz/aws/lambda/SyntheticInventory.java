@@ -0,0 +1,114 @@
+package com.sheraz.aws.lambda;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+/**
+ * Generates deterministic synthetic EC2 inventories (volumes, instances, tags and events) for benchmarks.
+ * A fixed seed keeps runs comparable with each other.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public final class SyntheticInventory 
+{
+    public static final String SCHEDULE_DELETE_TAG = "lambda:DetachedVolumeJanitor:delete-scheduled-on";
+    
+    private static final long  DAY_MILLIS = 24L * 60 * 60 * 1000;
+    
+    private final Random       _random;
+    
+    public SyntheticInventory(long seed)
+    {
+        _random = new Random(seed);
+    }
+    
+    /**
+     * @param markedFraction share of volumes already carrying a delete-scheduled-on tag, spread from 40 days in 
+     *        the past to 40 days in the future so every lifecycle bucket is populated
+     */
+    public List<Volume> volumes(int count, double markedFraction)
+    {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        long now = System.currentTimeMillis();
+        List<Volume> volumes = new ArrayList<Volume>(count);
+        for(int i = 0; i < count; i++)
+        {
+            List<Tag> tags = new ArrayList<Tag>();
+            tags.add(new Tag("Name", "data-" + i));
+            tags.add(new Tag("Application_Name", "app-" + (i % 50)));
+            tags.add(new Tag("Owner", "owner" + (i % 200) + "@example.com"));
+            if(_random.nextDouble() < markedFraction)
+            {
+                long deleteOn = now + (_random.nextInt(81) - 40) * DAY_MILLIS;
+                tags.add(new Tag(SCHEDULE_DELETE_TAG, formatter.format(new Date(deleteOn))));
+            }
+            volumes.add(new Volume().withVolumeId(volumeId(i)).withSize(8 + i % 500).withState("available").withTags(tags));
+        }
+        return volumes;
+    }
+    
+    /**
+     * @param compliantFraction share of instances that satisfy the default tag policy
+     */
+    public List<Instance> instances(int count, double compliantFraction)
+    {
+        List<Instance> instances = new ArrayList<Instance>(count);
+        for(int i = 0; i < count; i++)
+        {
+            instances.add(new Instance().withInstanceId(instanceId(i))
+                                        .withPrivateIpAddress("10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255))
+                                        .withTags(instanceTags(i, _random.nextDouble() < compliantFraction)));
+        }
+        return instances;
+    }
+    
+    private List<Tag> instanceTags(int i, boolean compliant)
+    {
+        List<Tag> tags = new ArrayList<Tag>();
+        tags.add(new Tag("Name", "lx238app" + i));
+        tags.add(new Tag("Environment", i % 2 == 0 ? "prod" : "non-prod"));
+        tags.add(new Tag("aws:cloudformation:stack-name", "stack-" + (i % 20)));
+        tags.add(new Tag(" Owner ", " owner" + (i % 200) + "@example.com "));
+        tags.add(new Tag("Approver", "approver" + (i % 10)));
+        tags.add(new Tag("Application_Name", "app-" + (i % 50)));
+        if(compliant) tags.add(new Tag(i % 3 == 0 ? "Cost_Center" : "PO_Number", String.valueOf(4500000 + i)));
+        return tags;
+    }
+    
+    public List<String> volumeIds(int count)
+    {
+        List<String> ids = new ArrayList<String>(count);
+        for(int i = 0; i < count; i++) ids.add(volumeId(i));
+        return ids;
+    }
+    
+    /**
+     * A CloudWatch "EC2 Instance State-change Notification" event as delivered to the handlers.
+     */
+    public String instanceStateChangeEventJson(int i)
+    {
+        return "{\"version\":\"0\",\"id\":\"ee376907-2647-4179-9203-343cfb3017a4\","
+             + "\"detail-type\":\"EC2 Instance State-change Notification\",\"source\":\"aws.ec2\","
+             + "\"account\":\"123456789012\",\"time\":\"2016-08-16T12:00:00Z\",\"region\":\"us-east-1\","
+             + "\"resources\":[\"arn:aws:ec2:us-east-1:123456789012:instance/" + instanceId(i) + "\"],"
+             + "\"detail\":{\"instance-id\":\"" + instanceId(i) + "\",\"state\":\"running\"}}";
+    }
+    
+    public static String volumeId(int i)
+    {
+        return String.format("vol-%017x", i);
+    }
+    
+    public static String instanceId(int i)
+    {
+        return String.format("i-%017x", i);
+    }
+}
@@ -0,0 +1,100 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+import com.sheraz.aws.lambda.TagPolicy.TagMatch;
+
+/**
+ * Cost of evaluating the tag policy across a fleet of instances. legacyHasTagChecks reproduces the original
+ * per-key scan (one pass and a trim of every key/value per required tag) as a baseline for the compiled TagPolicy.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagComplianceBenchmark 
+{
+    private static final String[] LEGACY_REQUIRED_KEYS = { "Application_Name", "Approver", "Owner", "Name" };
+    
+    @Param({"10", "1000", "100000"})
+    public int              instanceCount;
+    
+    private List<Instance>  _instances;
+    private TagPolicy       _policy;
+    private TagPolicy       _hostnamePolicy;
+    
+    @Setup
+    public void setUp()
+    {
+        _instances = new SyntheticInventory(42).instances(instanceCount, 0.7);
+        _policy = TagPolicy.getDefault();
+        _hostnamePolicy = TagPolicy.capturing("Name");
+    }
+    
+    @Benchmark
+    public void compiledPolicyMatch(Blackhole blackhole)
+    {
+        for(Instance instance : _instances) blackhole.consume(_policy.isCompliant(_policy.matchMask(instance.getTags())));
+    }
+    
+    @Benchmark
+    public void compiledPolicyViolations(Blackhole blackhole)
+    {
+        for(Instance instance : _instances) blackhole.consume(_policy.match(instance.getTags()).getViolations());
+    }
+    
+    @Benchmark
+    public void hostnameLookup(Blackhole blackhole)
+    {
+        TagMatch match = _hostnamePolicy.newMatch();
+        for(Instance instance : _instances) blackhole.consume(_hostnamePolicy.match(instance.getTags(), match).getValue("Name"));
+    }
+    
+    @Benchmark
+    public void legacyHasTagChecks(Blackhole blackhole)
+    {
+        for(Instance instance : _instances)
+        {
+            List<String> messages = new ArrayList<String>();
+            List<Tag> tags = instance.getTags();
+            boolean compliant = legacyHasTag(tags, "PO_Number", messages) || legacyHasTag(tags, "Cost_Center", messages);
+            for(String key : LEGACY_REQUIRED_KEYS) compliant &= legacyHasTag(tags, key, messages);
+            blackhole.consume(compliant);
+            blackhole.consume(messages);
+        }
+    }
+    
+    private static boolean legacyHasTag(List<Tag> tags, String tagKeyToCheck, List<String> messages)
+    {
+        for(Tag tag : tags)
+        {
+            String key = tag.getKey().trim();
+            String value = tag.getValue() != null ? tag.getValue().trim() : "";
+            if(key.equals(tagKeyToCheck) && value.length() > 0) return true;
+        }
+        messages.add("Please provide missing tag: " + tagKeyToCheck);
+        return false;
+    }
+}
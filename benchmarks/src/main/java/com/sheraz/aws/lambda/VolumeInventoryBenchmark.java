@@ -0,0 +1,106 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.ec2.model.Volume;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+
+/**
+ * Cost of the janitor's volume inventory snapshot per run: building and saving it, loading (mapping and indexing)
+ * the previous one, and comparing a full scan against it.
+ *
+ * @author Sheraz Khan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolumeInventoryBenchmark
+{
+    private static final String     NAME = "volumes-detached-123456789012-us-east-1";
+
+    @Param({"1000", "100000"})
+    public int                      volumeCount;
+
+    private Path                            _directory;
+    private LocalDirectoryInventoryStore    _store;
+    private List<ClassifiedVolume>          _classifiedVolumes;
+    private ByteBuffer                      _snapshot;
+    private Instant                         _now;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        _directory = Files.createTempDirectory("inventory-benchmark");
+        _store = new LocalDirectoryInventoryStore(_directory);
+        _now = Instant.now();
+        VolumeLifecycleClassifier classifier = new DetachedVolumeJanitor().createClassifier(_now);
+        _classifiedVolumes = new ArrayList<ClassifiedVolume>(volumeCount);
+        for(Volume volume : new SyntheticInventory(42).volumes(volumeCount, 0.8)) _classifiedVolumes.add(classifier.classify(volume));
+
+        VolumeInventory.Builder builder = VolumeInventory.builder();
+        for(ClassifiedVolume volume : _classifiedVolumes)
+        {
+            builder.add(volume.getVolumeId(), volume.getDeleteOn(), VolumeInventory.tagHash(volume.getVolume().getTags()));
+        }
+        _snapshot = builder.build(_now.toEpochMilli());
+        _store.save(NAME, _snapshot);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        try(Stream<Path> files = Files.list(_directory)) {
+            for(Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+        }
+        Files.delete(_directory);
+    }
+
+    @Benchmark
+    public VolumeInventory loadSnapshot() throws IOException
+    {
+        return _store.load(NAME);
+    }
+
+    @Benchmark
+    public void saveSnapshot() throws IOException
+    {
+        _store.save(NAME, _snapshot);
+    }
+
+    /**
+     * A whole run's bookkeeping: load the previous snapshot, record every scanned volume against it and save the next.
+     */
+    @Benchmark
+    public void trackFullScan(Blackhole blackhole)
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, _now, 7);
+        for(ClassifiedVolume volume : _classifiedVolumes) blackhole.consume(tracker.record(volume));
+        tracker.commit();
+    }
+}
@@ -0,0 +1,112 @@
+package com.sheraz.aws.lambda;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.VolumeClassification;
+
+/**
+ * Per-run CPU and allocation cost of the janitor's in-memory work: classifying every volume by its 
+ * delete-scheduled-on date and rendering the notification messages. Run with "-prof gc" to see allocation per operation.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolumeJanitorBenchmark 
+{
+    @Param({"10", "1000", "100000"})
+    public int                      volumeCount;
+    
+    private DetachedVolumeJanitor     _janitor;
+    private CloudWatchScheduleEvent   _event;
+    private List<Volume>              _volumes;
+    private List<ClassifiedVolume>    _classifiedVolumes;
+    private List<String>              _volumeIds;
+    private VolumeLifecycleClassifier _classifier;
+    private SimpleDateFormat          _legacyFormatter;
+    
+    @Setup
+    public void setUp()
+    {
+        SyntheticInventory inventory = new SyntheticInventory(42);
+        _janitor = new DetachedVolumeJanitor();
+        _event = new CloudWatchScheduleEvent();
+        _event.setAccount("123456789012");
+        _event.setRegion("us-east-1");
+        _volumes = inventory.volumes(volumeCount, 0.8);
+        _volumeIds = inventory.volumeIds(volumeCount);
+        _classifier = _janitor.createClassifier(Instant.now());
+        _classifiedVolumes = new ArrayList<ClassifiedVolume>(volumeCount);
+        for(Volume volume : _volumes) _classifiedVolumes.add(_classifier.classify(volume));
+        _legacyFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    }
+    
+    @Benchmark
+    public VolumeClassification classifyVolumes()
+    {
+        return _classifier.classify(_volumes);
+    }
+    
+    /**
+     * Baseline: the original per-scan lookup and SimpleDateFormat parse of the delete-scheduled-on tag.
+     */
+    @Benchmark
+    public void legacySimpleDateFormatParse(Blackhole blackhole)
+    {
+        for(Volume volume : _volumes)
+        {
+            Date deleteOn = null;
+            for(Tag tag : volume.getTags())
+            {
+                if(!tag.getKey().equals(SyntheticInventory.SCHEDULE_DELETE_TAG)) continue;
+                try {
+                    deleteOn = _legacyFormatter.parse(tag.getValue());
+                } catch (ParseException e) {
+                    deleteOn = null;
+                }
+                break;
+            }
+            blackhole.consume(deleteOn);
+        }
+    }
+    
+    @Benchmark
+    public List<String> volumeDeletionNotificationMessages()
+    {
+        return _janitor.createVolumeDeletionNotificationMessages(_event, _classifiedVolumes);
+    }
+    
+    @Benchmark
+    public List<String> volumeDeleteConfirmationMessages()
+    {
+        return _janitor.createVolumeDeleteConfirmationMessages(_event, _volumeIds);
+    }
+}
@@ -0,0 +1,208 @@
+package com.sheraz.aws.lambda;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.regions.ServiceAbbreviations;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.route53.AmazonRoute53AsyncClient;
+import com.amazonaws.services.route53.AmazonRoute53Client;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
+import com.amazonaws.services.sns.AmazonSNSAsyncClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Process-wide registry of AWS SDK clients, keyed by service, region and credentials provider.
+ * 
+ * Lambda keeps the JVM alive between invocations of a warm container, so clients (and their connection pools) 
+ * created here are reused instead of paying client setup and TLS handshakes on every invocation. SDK clients 
+ * are thread-safe once configured, and each client is fully configured before it is published to the map.
+ * 
+ * Clients created with a null credentials provider use the default provider chain (i.e. the Lambda execution role).
+ * Providers are compared by identity, so callers should hold on to long-lived provider instances.
+ * 
+ * EC2, SNS and Route53 clients are the SDK's async clients, running on the shared AsyncCalls pool, so the same 
+ * client (and connection pool) serves both blocking calls and the ones started through AsyncCalls.
+ * 
+ * Regional clients are given their endpoint rather than a Regions constant, as the pinned SDK's region list predates
+ * us-east-2, ca-central-1, eu-west-2 and every region since, all of which DescribeRegions reports and a fleet sweep
+ * has to reach.
+ * 
+ * All clients can be pointed at a single alternative endpoint (e.g. a local stand-in for offline load tests) with
+ * the AWS_ENDPOINT_OVERRIDE environment variable, the aws.endpointOverride system property, or setEndpointOverride().
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public final class AWSClientRegistry 
+{
+    public static final String                            ENDPOINT_OVERRIDE_ENV = "AWS_ENDPOINT_OVERRIDE";
+    public static final String                            ENDPOINT_OVERRIDE_PROPERTY = "aws.endpointOverride";
+    
+    private static final AWSCredentialsProvider           DEFAULT_CREDENTIALS = new DefaultAWSCredentialsProviderChain();
+    private static final ConcurrentMap<ClientKey, Object> CLIENTS = new ConcurrentHashMap<ClientKey, Object>();
+    
+    private static volatile String                        endpointOverride = System.getProperty(ENDPOINT_OVERRIDE_PROPERTY, System.getenv(ENDPOINT_OVERRIDE_ENV));
+    
+    private AWSClientRegistry() {}
+    
+    /**
+     * Sends every client created from now on to the given endpoint (e.g. http://localhost:8080), or back to the 
+     * regular AWS endpoints if null. Clients created before the call are discarded.
+     */
+    public static void setEndpointOverride(String endpoint)
+    {
+        endpointOverride = StringUtils.isNullOrEmpty(endpoint) ? null : endpoint;
+        CLIENTS.clear();
+    }
+    
+    public static AmazonEC2Client ec2(String region)
+    {
+        return ec2(region, null);
+    }
+    
+    public static AmazonEC2Client ec2(String region, AWSCredentialsProvider credentials)
+    {
+        return ec2Async(region, credentials);
+    }
+    
+    public static AmazonEC2AsyncClient ec2Async(final String region, AWSCredentialsProvider credentials)
+    {
+        requireRegion(region, "EC2");
+        return (AmazonEC2AsyncClient) CLIENTS.computeIfAbsent(new ClientKey("ec2", region, credentials), key -> {
+            AmazonEC2AsyncClient ec2 = new AmazonEC2AsyncClient(key.getCredentials(), clientConfiguration(), AsyncCalls.EXECUTOR);
+            configureRegion(ec2, ServiceAbbreviations.EC2, region);
+            return configure(ec2);
+        });
+    }
+    
+    public static AmazonSNSClient sns(String region)
+    {
+        return sns(region, null);
+    }
+    
+    public static AmazonSNSClient sns(String region, AWSCredentialsProvider credentials)
+    {
+        return snsAsync(region, credentials);
+    }
+    
+    public static AmazonSNSAsyncClient snsAsync(String region)
+    {
+        return snsAsync(region, null);
+    }
+    
+    public static AmazonSNSAsyncClient snsAsync(final String region, AWSCredentialsProvider credentials)
+    {
+        requireRegion(region, "SNS");
+        return (AmazonSNSAsyncClient) CLIENTS.computeIfAbsent(new ClientKey("sns", region, credentials), key -> {
+            AmazonSNSAsyncClient sns = new AmazonSNSAsyncClient(key.getCredentials(), clientConfiguration(), AsyncCalls.EXECUTOR);
+            configureRegion(sns, ServiceAbbreviations.SNS, region);
+            return configure(sns);
+        });
+    }
+    
+    /**
+     * Route53 is a global service, so there is no region in the key.
+     */
+    public static AmazonRoute53Client route53(AWSCredentialsProvider credentials)
+    {
+        return route53Async(credentials);
+    }
+    
+    public static AmazonRoute53AsyncClient route53Async(AWSCredentialsProvider credentials)
+    {
+        return (AmazonRoute53AsyncClient) CLIENTS.computeIfAbsent(new ClientKey("route53", null, credentials), 
+                                                                  key -> configure(new AmazonRoute53AsyncClient(key.getCredentials(), clientConfiguration(), 
+                                                                                                                AsyncCalls.EXECUTOR)));
+    }
+    
+    public static AWSSecurityTokenServiceClient sts()
+    {
+        return (AWSSecurityTokenServiceClient) CLIENTS.computeIfAbsent(new ClientKey("sts", null, null), 
+                                                                       key -> configure(new AWSSecurityTokenServiceClient(key.getCredentials(), clientConfiguration())));
+    }
+    
+    private static ClientConfiguration clientConfiguration()
+    {
+        return new ClientConfiguration().withRetryPolicy(HandlerMetrics.RETRY_POLICY)
+                                        .withMaxConnections(Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, AsyncCalls.MAX_IN_FLIGHT));
+    }
+    
+    private static void configureRegion(AmazonWebServiceClient client, String service, String region)
+    {
+        client.setEndpoint(serviceEndpoint(service, region));
+        client.setSignerRegionOverride(region);
+    }
+    
+    /**
+     * @return the service's host name in the region: from the SDK's region metadata where it knows the region, 
+     *         otherwise from the standard service.region.amazonaws.com pattern
+     */
+    static String serviceEndpoint(String service, String region)
+    {
+        Region known = RegionUtils.getRegion(region);
+        if(known != null && known.isServiceSupported(service)) return known.getServiceEndpoint(service);
+        return service + "." + region + (region.startsWith("cn-") ? ".amazonaws.com.cn" : ".amazonaws.com");
+    }
+    
+    /**
+     * Every client reports its calls to HandlerMetrics, and honors the endpoint override.
+     */
+    private static <T extends AmazonWebServiceClient> T configure(T client)
+    {
+        client.addRequestHandler(HandlerMetrics.REQUEST_HANDLER);
+        String endpoint = endpointOverride;
+        if(endpoint != null) client.setEndpoint(endpoint);
+        return client;
+    }
+    
+    private static void requireRegion(String region, String service)
+    {
+        if(StringUtils.isNullOrEmpty(region)) throw new RuntimeException("Region is blank, cannot create " + service + " client.");
+    }
+    
+    private static final class ClientKey
+    {
+        private final String                 _service;
+        private final String                 _region;
+        private final AWSCredentialsProvider _credentials;
+        
+        ClientKey(String service, String region, AWSCredentialsProvider credentials)
+        {
+            _service = service;
+            _region = region;
+            _credentials = credentials != null ? credentials : DEFAULT_CREDENTIALS;
+        }
+        
+        AWSCredentialsProvider getCredentials()
+        {
+            return _credentials;
+        }
+        
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof ClientKey)) return false;
+            ClientKey that = (ClientKey) other;
+            return _service.equals(that._service) 
+                   && (_region == null ? that._region == null : _region.equals(that._region))
+                   && _credentials == that._credentials;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hash = _service.hashCode();
+            hash = 31 * hash + (_region != null ? _region.hashCode() : 0);
+            return 31 * hash + System.identityHashCode(_credentials);
+        }
+    }
+}
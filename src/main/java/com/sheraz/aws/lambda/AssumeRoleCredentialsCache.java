@@ -0,0 +1,173 @@
+package com.sheraz.aws.lambda;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.Credentials;
+
+/**
+ * Credentials provider that caches an assumed-role session per role ARN for the life of the (warm) container.
+ * 
+ * - Within REFRESH_AHEAD_MILLIS of expiry the cached session is still returned, and a refresh is kicked off in 
+ *   the background so the next caller gets fresh credentials without waiting on STS.
+ * - Within MIN_VALIDITY_MILLIS of expiry (or before the first session) callers block until a refresh completes.
+ * - Refreshes are single-flight: concurrent callers share one in-flight AssumeRole call.
+ * 
+ * Instances are obtained via forRole() so that the same provider (and therefore the same cached SDK clients 
+ * in AWSClientRegistry) is reused for a given role.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class AssumeRoleCredentialsCache implements AWSCredentialsProvider 
+{
+    private static final long   REFRESH_AHEAD_MILLIS = 5 * 60 * 1000;
+    private static final long   MIN_VALIDITY_MILLIS = 60 * 1000;
+    
+    private static final ConcurrentMap<String, AssumeRoleCredentialsCache> PROVIDERS = 
+            new ConcurrentHashMap<String, AssumeRoleCredentialsCache>();
+    
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "sts-credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    private final String                               _roleArn;
+    private final String                               _sessionName;
+    private final AtomicReference<FutureTask<Session>> _inFlightRefresh = new AtomicReference<FutureTask<Session>>();
+    private volatile Session                           _session;
+    
+    private AssumeRoleCredentialsCache(String roleArn, String sessionName)
+    {
+        _roleArn = roleArn;
+        _sessionName = sessionName;
+    }
+    
+    /**
+     * @param sessionName only used when the provider for this role is first created
+     */
+    public static AssumeRoleCredentialsCache forRole(String roleArn, String sessionName)
+    {
+        AssumeRoleCredentialsCache provider = PROVIDERS.get(roleArn);
+        if(provider != null) return provider;
+        PROVIDERS.putIfAbsent(roleArn, new AssumeRoleCredentialsCache(roleArn, sessionName));
+        return PROVIDERS.get(roleArn);
+    }
+    
+    /**
+     * Drops every cached session, e.g. before a snapshot of the container is taken, so that no temporary 
+     * credentials are captured in it; the next call to getCredentials() assumes the role again.
+     */
+    public static void discardSessions()
+    {
+        for(AssumeRoleCredentialsCache provider : PROVIDERS.values()) provider._session = null;
+    }
+    
+    public String getRoleArn()
+    {
+        return _roleArn;
+    }
+    
+    public AWSCredentials getCredentials()
+    {
+        Session session = _session;
+        long now = System.currentTimeMillis();
+        if(session != null && now < session.expiresAt - REFRESH_AHEAD_MILLIS) return session.credentials;
+        if(session != null && now < session.expiresAt - MIN_VALIDITY_MILLIS)
+        {
+            refreshInBackground();
+            return session.credentials;
+        }
+        return awaitRefresh().credentials;
+    }
+    
+    public void refresh()
+    {
+        awaitRefresh();
+    }
+    
+    private void refreshInBackground()
+    {
+        RefreshTask task = new RefreshTask();
+        if(_inFlightRefresh.compareAndSet(null, task)) REFRESHER.execute(task);
+    }
+    
+    private Session awaitRefresh()
+    {
+        while(true)
+        {
+            FutureTask<Session> task = _inFlightRefresh.get();
+            if(task == null)
+            {
+                task = new RefreshTask();
+                if(!_inFlightRefresh.compareAndSet(null, task)) continue; // lost the race, join the winner instead
+                task.run();
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while assuming role " + _roleArn, e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Unable to assume role " + _roleArn, e.getCause());
+            }
+        }
+    }
+    
+    private Session assumeRole()
+    {
+        Credentials credentials = AWSClientRegistry.sts().assumeRole(new AssumeRoleRequest()
+                .withRoleArn(_roleArn)
+                .withRoleSessionName(_sessionName)).getCredentials();
+        Session session = new Session(credentials);
+        _session = session;
+        return session;
+    }
+    
+    /**
+     * Clears itself from the in-flight slot once done (successfully or not), so the next caller can refresh again.
+     */
+    private final class RefreshTask extends FutureTask<Session>
+    {
+        RefreshTask()
+        {
+            super(new Callable<Session>() {
+                public Session call() { return assumeRole(); }
+            });
+        }
+        
+        @Override
+        protected void done()
+        {
+            _inFlightRefresh.compareAndSet(this, null);
+        }
+    }
+    
+    private static final class Session
+    {
+        final AWSCredentials credentials;
+        final long           expiresAt;
+        
+        Session(Credentials credentials)
+        {
+            this.credentials = new BasicSessionCredentials(credentials.getAccessKeyId(), 
+                                                           credentials.getSecretAccessKey(), 
+                                                           credentials.getSessionToken());
+            this.expiresAt = credentials.getExpiration().getTime();
+        }
+    }
+}
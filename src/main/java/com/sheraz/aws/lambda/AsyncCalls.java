@@ -0,0 +1,118 @@
+package com.sheraz.aws.lambda;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Turns the SDK's callback-style *Async calls into CompletableFutures, so a handler can start independent calls
+ * (e.g. resolving the hosted zone while an instance is described) and wait for them together.
+ *
+ *     CompletableFuture<DescribeInstancesResult> result = AsyncCalls.call(ec2::describeInstancesAsync, request);
+ *
+ * The number of calls in flight across the whole container is bounded by AWS_MAX_IN_FLIGHT (default 16). Once the
+ * limit is reached call() blocks the caller until a call completes, which keeps a handler that fires off thousands
+ * of calls from queuing them all up (and from tripping the API rate limits all at once).
+ *
+ * The SDK v1 transport is blocking, so each call in flight holds a thread of the shared pool the async clients in
+ * AWSClientRegistry run on.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class AsyncCalls
+{
+    public static final String  MAX_IN_FLIGHT_ENV = "AWS_MAX_IN_FLIGHT";
+
+    private static final int    DEFAULT_MAX_IN_FLIGHT = 16;
+
+    static final int            MAX_IN_FLIGHT = maxInFlightFromEnvironment();
+
+    // a cached pool rather than a fixed one: the permits already bound the calls running, and a fixed pool the size
+    // of the limit could deadlock when a completion callback starts a call of its own
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "aws-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Semaphore PERMITS = new Semaphore(MAX_IN_FLIGHT);
+
+    private AsyncCalls() {}
+
+    /**
+     * An SDK *Async method taking a request and a callback, e.g. ec2::describeInstancesAsync.
+     */
+    public interface AsyncOperation<REQUEST extends AmazonWebServiceRequest, RESULT>
+    {
+        Future<RESULT> call(REQUEST request, AsyncHandler<REQUEST, RESULT> handler);
+    }
+
+    /**
+     * Starts the call once a slot is free and returns without waiting for the response. The future fails with the
+     * SDK's own exception (AmazonServiceException etc.) if the call does.
+     */
+    public static <REQUEST extends AmazonWebServiceRequest, RESULT> CompletableFuture<RESULT> call(AsyncOperation<REQUEST, RESULT> operation, REQUEST request)
+    {
+        final CompletableFuture<RESULT> future = new CompletableFuture<RESULT>();
+        PERMITS.acquireUninterruptibly();
+        try {
+            operation.call(request, new AsyncHandler<REQUEST, RESULT>() {
+                public void onError(Exception exception) {
+                    PERMITS.release();
+                    future.completeExceptionally(exception);
+                }
+
+                public void onSuccess(REQUEST request, RESULT result) {
+                    PERMITS.release();
+                    future.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            PERMITS.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the future, rethrowing a failure as the exception the blocking call would have thrown.
+     */
+    public static <T> T join(CompletableFuture<T> future)
+    {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * @return the cause of a CompletionException, as a RuntimeException
+     */
+    static RuntimeException unwrap(Throwable e)
+    {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if(cause instanceof RuntimeException) return (RuntimeException) cause;
+        if(cause instanceof Error) throw (Error) cause;
+        return new RuntimeException(cause);
+    }
+
+    private static int maxInFlightFromEnvironment()
+    {
+        String value = System.getenv(MAX_IN_FLIGHT_ENV);
+        if(StringUtils.isNullOrEmpty(value)) return DEFAULT_MAX_IN_FLIGHT;
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_IN_FLIGHT;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEventBatch;
+import com.sheraz.aws.lambda.EC2Client.VolumeAPICallDetail;
+import com.sheraz.aws.lambda.EC2Client.VolumeAPICallEvent;
+
+/**
+ * Reads CloudWatch events straight off the handler's input stream, for the RequestStreamHandler style entry points,
+ * instead of the Lambda runtime binding them to the POJOs with reflection-based Jackson.
+ *
+ * Only id, region and account, and instance-id and state inside detail, are extracted (for CloudTrail API call events,
+ * also time, and eventName, errorCode and the volumeId of requestParameters and responseElements). Everything else 
+ * (resources, typed detail payloads of any shape, ...) is skipped byte by byte without being decoded or allocated, and
+ * keys are matched against the wanted names in place.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class CloudWatchEventParser
+{
+    private static final int    BUFFER_SIZE = 8 * 1024;
+    private static final int    MAX_KEY_LENGTH = 32;
+
+    private static final byte[] ID = ascii("id");
+    private static final byte[] REGION = ascii("region");
+    private static final byte[] ACCOUNT = ascii("account");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] DETAIL = ascii("detail");
+    private static final byte[] INSTANCE_ID = ascii("instance-id");
+    private static final byte[] STATE = ascii("state");
+    private static final byte[] EVENTS = ascii("events");
+    private static final byte[] EVENT_NAME = ascii("eventName");
+    private static final byte[] ERROR_CODE = ascii("errorCode");
+    private static final byte[] REQUEST_PARAMETERS = ascii("requestParameters");
+    private static final byte[] RESPONSE_ELEMENTS = ascii("responseElements");
+    private static final byte[] VOLUME_ID = ascii("volumeId");
+
+    // the read buffer is recycled per thread, so a warm container parses each event without allocating one
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final InputStream   _in;
+    private final byte[]        _buffer = BUFFERS.get();
+    private int                 _position;
+    private int                 _limit;
+    private long                _consumed;
+    private final byte[]        _key = new byte[MAX_KEY_LENGTH];
+    private int                 _keyLength;
+    private char[]              _chars = new char[64];
+
+    private CloudWatchEventParser(InputStream in)
+    {
+        _in = in;
+    }
+
+    public static CloudWatchScheduleEvent parseScheduleEvent(InputStream in) throws IOException
+    {
+        CloudWatchEventParser parser = new CloudWatchEventParser(in);
+        CloudWatchScheduleEvent event = parser.readEvent(new CloudWatchScheduleEvent());
+        parser.expectEnd();
+        return event;
+    }
+
+    public static EC2InstanceStateChangeEvent parseStateChangeEvent(InputStream in) throws IOException
+    {
+        CloudWatchEventParser parser = new CloudWatchEventParser(in);
+        EC2InstanceStateChangeEvent event = parser.readEvent(new EC2InstanceStateChangeEvent());
+        parser.expectEnd();
+        return event;
+    }
+
+    /**
+     * @param in {"events":[...]} with one state change event per element, as bound to EC2InstanceStateChangeEventBatch
+     */
+    public static EC2InstanceStateChangeEventBatch parseStateChangeEventBatch(InputStream in) throws IOException
+    {
+        CloudWatchEventParser parser = new CloudWatchEventParser(in);
+        EC2InstanceStateChangeEventBatch batch = new EC2InstanceStateChangeEventBatch();
+        parser.expect('{');
+        if(!parser.consumeIf('}')) do {
+            parser.readKey();
+            if(parser.keyIs(EVENTS) && parser.peek() == '[') batch.setEvents(parser.readEvents());
+            else parser.skipValue(parser.next());
+        } while(parser.nextMember('}'));
+        parser.expectEnd();
+        return batch;
+    }
+
+    public static VolumeAPICallEvent parseVolumeAPICallEvent(InputStream in) throws IOException
+    {
+        CloudWatchEventParser parser = new CloudWatchEventParser(in);
+        VolumeAPICallEvent event = new VolumeAPICallEvent();
+        parser.expect('{');
+        if(!parser.consumeIf('}')) do {
+            parser.readKey();
+            if(parser.keyIs(ID)) event.setId(parser.readString());
+            else if(parser.keyIs(REGION)) event.setRegion(parser.readString());
+            else if(parser.keyIs(ACCOUNT)) event.setAccount(parser.readString());
+            else if(parser.keyIs(TIME)) event.setTime(parser.readString());
+            else if(parser.keyIs(DETAIL) && parser.peek() == '{') event.setDetail(parser.readAPICallDetail());
+            else parser.skipValue(parser.next());
+        } while(parser.nextMember('}'));
+        parser.expectEnd();
+        return event;
+    }
+
+    private List<EC2InstanceStateChangeEvent> readEvents() throws IOException
+    {
+        List<EC2InstanceStateChangeEvent> events = new ArrayList<EC2InstanceStateChangeEvent>();
+        expect('[');
+        if(!consumeIf(']')) do {
+            if(peek() == '{') events.add(readEvent(new EC2InstanceStateChangeEvent()));
+            else skipValue(next());
+        } while(nextMember(']'));
+        return events;
+    }
+
+    private <T extends CloudWatchScheduleEvent> T readEvent(T event) throws IOException
+    {
+        expect('{');
+        if(!consumeIf('}')) do {
+            readKey();
+            if(keyIs(ID)) event.setId(readString());
+            else if(keyIs(REGION)) event.setRegion(readString());
+            else if(keyIs(ACCOUNT)) event.setAccount(readString());
+            else if(keyIs(DETAIL) && peek() == '{') event.setDetail(readDetail());
+            else skipValue(next());
+        } while(nextMember('}'));
+        return event;
+    }
+
+    private Map<String, String> readDetail() throws IOException
+    {
+        Map<String, String> detail = new HashMap<String, String>(4);
+        expect('{');
+        if(!consumeIf('}')) do {
+            readKey();
+            if(keyIs(INSTANCE_ID)) putIfPresent(detail, "instance-id", readString());
+            else if(keyIs(STATE)) putIfPresent(detail, "state", readString());
+            else skipValue(next());
+        } while(nextMember('}'));
+        return detail;
+    }
+
+    private VolumeAPICallDetail readAPICallDetail() throws IOException
+    {
+        VolumeAPICallDetail detail = new VolumeAPICallDetail();
+        expect('{');
+        if(!consumeIf('}')) do {
+            readKey();
+            if(keyIs(EVENT_NAME)) detail.setEventName(readString());
+            else if(keyIs(ERROR_CODE)) detail.setErrorCode(readString());
+            else if(keyIs(REQUEST_PARAMETERS) && peek() == '{') detail.setRequestParameters(readVolumeId());
+            else if(keyIs(RESPONSE_ELEMENTS) && peek() == '{') detail.setResponseElements(readVolumeId());
+            else skipValue(next());
+        } while(nextMember('}'));
+        return detail;
+    }
+
+    /**
+     * @return the object's top-level volumeId, as the only entry of the map
+     */
+    private Map<String, Object> readVolumeId() throws IOException
+    {
+        String volumeId = null;
+        expect('{');
+        if(!consumeIf('}')) do {
+            readKey();
+            if(keyIs(VOLUME_ID)) volumeId = readString();
+            else skipValue(next());
+        } while(nextMember('}'));
+        return volumeId != null ? Collections.<String, Object>singletonMap("volumeId", volumeId) : Collections.<String, Object>emptyMap();
+    }
+
+    private static void putIfPresent(Map<String, String> detail, String key, String value)
+    {
+        if(value != null) detail.put(key, value);
+    }
+
+    // ---- tokens ------------------------------------------------------------------------------------------
+
+    /**
+     * Reads "key": into the key buffer, escapes decoded; keys longer than any wanted name are only skipped.
+     */
+    private void readKey() throws IOException
+    {
+        expect('"');
+        _keyLength = 0;
+        for(int b = read(); b != '"'; b = read())
+        {
+            if(b < 0) throw malformed("unterminated key");
+            if(b == '\\')
+            {
+                char c = readEscape();
+                b = c < 0x80 ? c : 0xFF; // never a byte of UTF-8, so a non-ASCII escape can't match a wanted name
+            }
+            if(_keyLength < MAX_KEY_LENGTH) _key[_keyLength] = (byte) b;
+            _keyLength++;
+        }
+        expect(':');
+    }
+
+    private boolean keyIs(byte[] name)
+    {
+        if(_keyLength != name.length) return false;
+        for(int i = 0; i < name.length; i++)
+        {
+            if(_key[i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the string value, or null if the value is null or isn't a string
+     */
+    private String readString() throws IOException
+    {
+        int first = next();
+        if(first != '"')
+        {
+            skipValue(first);
+            return null;
+        }
+        int length = 0;
+        for(int b = read(); b != '"'; b = read())
+        {
+            if(b < 0) throw malformed("unterminated string");
+            if(length + 2 > _chars.length) _chars = Arrays.copyOf(_chars, _chars.length * 2);
+            if(b == '\\') _chars[length++] = readEscape();
+            else if(b < 0x80) _chars[length++] = (char) b;
+            else length = appendUtf8(b, length);
+        }
+        return new String(_chars, 0, length);
+    }
+
+    private char readEscape() throws IOException
+    {
+        int b = read();
+        switch(b)
+        {
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int c = 0;
+                for(int i = 0; i < 4; i++)
+                {
+                    int digit = Character.digit(read(), 16);
+                    if(digit < 0) throw malformed("bad \\u escape");
+                    c = (c << 4) | digit;
+                }
+                return (char) c;
+            case '"':
+            case '\\':
+            case '/':
+                return (char) b;
+            default:
+                throw malformed(b < 0 ? "unterminated string" : "bad escape");
+        }
+    }
+
+    private int appendUtf8(int lead, int length) throws IOException
+    {
+        int continuation = lead >= 0xF0 ? 3 : lead >= 0xE0 ? 2 : 1;
+        int codePoint = lead & (0x3F >> continuation);
+        for(int i = 0; i < continuation; i++) codePoint = (codePoint << 6) | (read() & 0x3F);
+        if(Character.isSupplementaryCodePoint(codePoint))
+        {
+            _chars[length++] = Character.highSurrogate(codePoint);
+            _chars[length++] = Character.lowSurrogate(codePoint);
+        }
+        else _chars[length++] = codePoint <= Character.MAX_CODE_POINT ? (char) codePoint : '\uFFFD';
+        return length;
+    }
+
+    /**
+     * Skips the value starting with the given (already consumed) byte, nested objects and arrays included.
+     */
+    private void skipValue(int first) throws IOException
+    {
+        if(first == '"')
+        {
+            skipString();
+        }
+        else if(first == '{' || first == '[')
+        {
+            for(int depth = 1; depth > 0; )
+            {
+                int b = read();
+                if(b == '"') skipString();
+                else if(b == '{' || b == '[') depth++;
+                else if(b == '}' || b == ']') depth--;
+                else if(b < 0) throw malformed("unterminated " + (first == '{' ? "object" : "array"));
+            }
+        }
+        else if(first == 't') skipLiteral("rue");
+        else if(first == 'f') skipLiteral("alse");
+        else if(first == 'n') skipLiteral("ull");
+        else if(first == '-' || (first >= '0' && first <= '9'))
+        {
+            // the number's digits, sign, point and exponent; whatever follows must be a separator
+            for(int b = peekRaw(); (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-'; b = peekRaw()) _position++;
+        }
+        else
+        {
+            throw malformed("expected a value");
+        }
+    }
+
+    private void skipLiteral(String rest) throws IOException
+    {
+        for(int i = 0; i < rest.length(); i++)
+        {
+            if(read() != rest.charAt(i)) throw malformed("expected a value");
+        }
+    }
+
+    private void skipString() throws IOException
+    {
+        while(_position < _limit || fill())
+        {
+            // scan the buffered bytes in a tight loop rather than a read() per byte
+            byte[] buffer = _buffer;
+            for(int i = _position, limit = _limit; i < limit; i++)
+            {
+                byte b = buffer[i];
+                if(b == '"')
+                {
+                    _position = i + 1;
+                    return;
+                }
+                if(b == '\\')
+                {
+                    _position = i + 1;
+                    if(read() < 0) break;
+                    i = _position - 1;
+                    limit = _limit;
+                }
+            }
+            _position = _limit;
+        }
+        throw malformed("unterminated string");
+    }
+
+    /**
+     * After a member or element: true if another one follows, false at the closing bracket.
+     */
+    private boolean nextMember(char close) throws IOException
+    {
+        int b = next();
+        if(b == ',') return true;
+        if(b == close) return false;
+        throw malformed("expected ',' or '" + close + "'");
+    }
+
+    private void expect(char expected) throws IOException
+    {
+        if(next() != expected) throw malformed("expected '" + expected + "'");
+    }
+
+    private boolean consumeIf(char expected) throws IOException
+    {
+        if(peek() != expected) return false;
+        _position++;
+        return true;
+    }
+
+    private void expectEnd() throws IOException
+    {
+        if(next() >= 0) throw malformed("unexpected content after the event");
+    }
+
+    // ---- bytes -------------------------------------------------------------------------------------------
+
+    /**
+     * @return the next byte that isn't whitespace, consumed, or -1 at the end of the stream
+     */
+    private int next() throws IOException
+    {
+        int b = read();
+        while(isWhitespace(b)) b = read();
+        return b;
+    }
+
+    /**
+     * @return the next byte that isn't whitespace, left unconsumed, or -1 at the end of the stream
+     */
+    private int peek() throws IOException
+    {
+        int b = peekRaw();
+        while(isWhitespace(b))
+        {
+            _position++;
+            b = peekRaw();
+        }
+        return b;
+    }
+
+    private int peekRaw() throws IOException
+    {
+        if(_position == _limit && !fill()) return -1;
+        return _buffer[_position] & 0xFF;
+    }
+
+    private int read() throws IOException
+    {
+        if(_position == _limit && !fill()) return -1;
+        return _buffer[_position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException
+    {
+        _consumed += _limit;
+        _position = 0;
+        _limit = 0;
+        int read = _in.read(_buffer, 0, _buffer.length);
+        if(read <= 0) return false;
+        _limit = read;
+        return true;
+    }
+
+    private static boolean isWhitespace(int b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private IOException malformed(String problem)
+    {
+        return new IOException("Malformed event JSON, " + problem + " at byte " + (_consumed + _position));
+    }
+
+    private static byte[] ascii(String name)
+    {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,164 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Fans a piece of work out across many AWS accounts, so a single deployment of a lambda can cover the whole 
+ * organization instead of one copy per account.
+ * 
+ * For each target account a configured role is assumed (arn:aws:iam::[account]:role/[role name]). Sessions are
+ * cached per account in AssumeRoleCredentialsCache, so warm invocations don't go back to STS. At most a bounded 
+ * number of accounts are in flight at once, and a failing account is reported without affecting the others.
+ * 
+ * Target accounts and the role name are read from the TARGET_ACCOUNTS (comma separated) and 
+ * TARGET_ACCOUNT_ROLE_NAME environment variables.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class CrossAccountSweep 
+{
+    public static final int     DEFAULT_ACCOUNT_CONCURRENCY = 4;
+    public static final String  TARGET_ACCOUNTS_ENV = "TARGET_ACCOUNTS";
+    public static final String  TARGET_ACCOUNT_ROLE_NAME_ENV = "TARGET_ACCOUNT_ROLE_NAME";
+    
+    private static final String DEFAULT_ROLE_NAME = "CrossAccount-LambdaCompliance";
+    private static final String SESSION_NAME = "Lambda-CrossAccountSweep";
+    
+    private final List<String>  _accounts;
+    private final String        _roleName;
+    private final int           _concurrency;
+    
+    public CrossAccountSweep(List<String> accounts, String roleName, int concurrency)
+    {
+        if(concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        _accounts = accounts;
+        _roleName = roleName;
+        _concurrency = concurrency;
+    }
+    
+    public static CrossAccountSweep fromEnvironment()
+    {
+        List<String> accounts = new ArrayList<String>();
+        String configured = System.getenv(TARGET_ACCOUNTS_ENV);
+        if(!StringUtils.isNullOrEmpty(configured))
+        {
+            for(String account : configured.split(","))
+            {
+                if(!account.trim().isEmpty()) accounts.add(account.trim());
+            }
+        }
+        String roleName = System.getenv(TARGET_ACCOUNT_ROLE_NAME_ENV);
+        return new CrossAccountSweep(accounts, StringUtils.isNullOrEmpty(roleName) ? DEFAULT_ROLE_NAME : roleName.trim(), 
+                                     DEFAULT_ACCOUNT_CONCURRENCY);
+    }
+    
+    public List<String> getAccounts()
+    {
+        return _accounts;
+    }
+    
+    public String getRoleArn(String account)
+    {
+        return "arn:aws:iam::" + account + ":role/" + _roleName;
+    }
+    
+    /**
+     * Runs the task once per account, concurrently.
+     * 
+     * @param deadline epoch millis by which every account must have finished (or is reported as timed out)
+     * @return one report per account, in configured order
+     */
+    public <T> List<AccountReport<T>> run(final AccountTask<T> task, final long deadline)
+    {
+        List<AccountReport<T>> reports = new ArrayList<AccountReport<T>>(_accounts.size());
+        if(_accounts.isEmpty()) return reports;
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_concurrency, _accounts.size()));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(_accounts.size());
+            for(final String account : _accounts)
+            {
+                final AWSCredentialsProvider credentials = AssumeRoleCredentialsCache.forRole(getRoleArn(account), SESSION_NAME);
+                futures.add(executor.submit(new Callable<T>() {
+                    public T call() { return task.run(account, credentials, deadline); }
+                }));
+            }
+            for(int i = 0; i < _accounts.size(); i++) reports.add(awaitReport(_accounts.get(i), futures.get(i), deadline));
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private <T> AccountReport<T> awaitReport(String account, Future<T> future, long deadline)
+    {
+        try {
+            return new AccountReport<T>(account, future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS), null);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return new AccountReport<T>(account, null, "Did not finish within the time budget");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new AccountReport<T>(account, null, "Interrupted");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof CancellationException) return new AccountReport<T>(account, null, e.getCause().getMessage());
+            HandlerLog.error("AccountSweepFailed", "account", account, "error", e.getCause());
+            return new AccountReport<T>(account, null, String.valueOf(e.getCause()));
+        }
+    }
+    
+    /**
+     * Work to run inside one target account. A task that outlives the deadline is cancelled and its thread 
+     * interrupted, but only the task itself can stop: long-running tasks should check in between steps (see 
+     * EC2Client.checkDeadline()).
+     */
+    public interface AccountTask<T>
+    {
+        T run(String account, AWSCredentialsProvider credentials, long deadline);
+    }
+    
+    /**
+     * Result of an AccountTask for one account, or the reason it failed.
+     */
+    public static final class AccountReport<T>
+    {
+        private final String _account;
+        private final T      _result;
+        private final String _error;
+        
+        AccountReport(String account, T result, String error)
+        {
+            _account = account;
+            _result = result;
+            _error = error;
+        }
+        
+        public String getAccount() {
+            return _account;
+        }
+        
+        public T getResult() {
+            return _result;
+        }
+        
+        /**
+         * @return null if the task completed
+         */
+        public String getError() {
+            return _error;
+        }
+    }
+}
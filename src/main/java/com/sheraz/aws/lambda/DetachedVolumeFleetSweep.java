@@ -0,0 +1,187 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.sheraz.aws.lambda.VolumeDeleter.VolumeDeletionResult;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+
+/**
+ * Runs the janitor's stamp, notify and delete pipeline across many regions at the same time, on a bounded pool.
+ * 
+ * Each region gets its own EC2 client (via AWSClientRegistry) and its own time budget, capped by the overall
+ * deadline of the invocation, so one slow region can't starve the others. A region that fails or runs out of 
+ * time is reported as such and does not affect the rest; the sweep as a whole takes roughly as long as the 
+ * slowest region. A region that runs out of time is cancelled and stops at its next step (see sweepRegion), 
+ * deletes included, rather than carrying on after the sweep has returned.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class DetachedVolumeFleetSweep 
+{
+    public static final int             DEFAULT_REGION_CONCURRENCY = 4;
+    
+    private final DetachedVolumeJanitor _janitor;
+    private final int                   _concurrency;
+    private final long                  _regionTimeBudgetMillis;
+    
+    public DetachedVolumeFleetSweep(DetachedVolumeJanitor janitor, int concurrency, long regionTimeBudgetMillis)
+    {
+        if(concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        _janitor = janitor;
+        _concurrency = concurrency;
+        _regionTimeBudgetMillis = regionTimeBudgetMillis;
+    }
+    
+    public List<RegionSweepReport> sweep(String account, List<String> regions, long deadline)
+    {
+        return sweep(account, regions, null, deadline);
+    }
+    
+    /**
+     * @param account the account being swept, which names its volume inventories
+     * @param credentials credentials for the account being swept, or null for the lambda execution role
+     * @param deadline epoch millis by which every region must have finished (or is reported as timed out)
+     * @return one report per region, in the order the regions were given
+     */
+    public List<RegionSweepReport> sweep(final String account, List<String> regions, final AWSCredentialsProvider credentials, final long deadline)
+    {
+        if(regions.isEmpty()) return Collections.emptyList();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_concurrency, regions.size()));
+        try {
+            List<Future<RegionSweepReport>> futures = new ArrayList<Future<RegionSweepReport>>(regions.size());
+            for(final String region : regions)
+            {
+                futures.add(executor.submit(new Callable<RegionSweepReport>() {
+                    public RegionSweepReport call() {
+                        long regionDeadline = Math.min(deadline, System.currentTimeMillis() + _regionTimeBudgetMillis);
+                        return _janitor.sweepRegion(new EC2Client(region, credentials), account, region, regionDeadline);
+                    }
+                }));
+            }
+            List<RegionSweepReport> reports = new ArrayList<RegionSweepReport>(regions.size());
+            for(int i = 0; i < regions.size(); i++) reports.add(awaitReport(regions.get(i), futures.get(i), deadline));
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private RegionSweepReport awaitReport(String region, Future<RegionSweepReport> future, long deadline)
+    {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return RegionSweepReport.failed(region, "Did not finish within the time budget");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RegionSweepReport.failed(region, "Interrupted");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof CancellationException) return RegionSweepReport.failed(region, e.getCause().getMessage());
+            HandlerLog.error("RegionSweepFailed", "region", region, "error", e.getCause());
+            return RegionSweepReport.failed(region, String.valueOf(e.getCause()));
+        }
+    }
+    
+    /**
+     * Outcome of running the janitor pipeline in one region.
+     */
+    public static class RegionSweepReport
+    {
+        private final String                 _region;
+        private int                          _scannedCount;
+        private int                          _markedCount;
+        private List<ClassifiedVolume>       _notifyVolumes = Collections.emptyList();
+        private VolumeDeletionResult         _deletionResult = new VolumeDeletionResult();
+        private String                       _error;
+        private VolumeInventoryTracker       _inventory;
+        
+        RegionSweepReport(String region)
+        {
+            _region = region;
+        }
+        
+        static RegionSweepReport failed(String region, String error)
+        {
+            RegionSweepReport report = new RegionSweepReport(region);
+            report._error = error;
+            return report;
+        }
+        
+        void setScannedCount(int scannedCount) {
+            _scannedCount = scannedCount;
+        }
+        
+        void setMarkedCount(int markedCount) {
+            _markedCount = markedCount;
+        }
+        
+        void setNotifyVolumes(List<ClassifiedVolume> notifyVolumes) {
+            _notifyVolumes = notifyVolumes;
+        }
+        
+        void setDeletionResult(VolumeDeletionResult deletionResult) {
+            _deletionResult = deletionResult;
+        }
+        
+        void setInventory(VolumeInventoryTracker inventory) {
+            _inventory = inventory;
+        }
+        
+        /**
+         * @return the region's volume inventory, committed once the report has been sent; null if the sweep failed
+         */
+        VolumeInventoryTracker getInventory() {
+            return _inventory;
+        }
+        
+        public String getRegion() {
+            return _region;
+        }
+        
+        public int getScannedCount() {
+            return _scannedCount;
+        }
+        
+        public int getMarkedCount() {
+            return _markedCount;
+        }
+        
+        public List<ClassifiedVolume> getNotifyVolumes() {
+            return _notifyVolumes;
+        }
+        
+        public List<String> getDeletedVolumeIds() {
+            return _deletionResult.getDeletedVolumeIds();
+        }
+        
+        public Map<String, String> getFailedVolumes() {
+            return _deletionResult.getFailedVolumes();
+        }
+        
+        /**
+         * @return null if the region was swept successfully
+         */
+        public String getError() {
+            return _error;
+        }
+        
+        public boolean hasActivity() {
+            return _error != null || !_notifyVolumes.isEmpty() || _deletionResult.getAttemptedCount() > 0;
+        }
+    }
+}
@@ -1,19 +1,32 @@
 package com.sheraz.aws.lambda;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 
-import com.amazonaws.regions.Regions;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.Volume;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.ec2.model.VolumeAttachment;
+import com.amazonaws.util.StringUtils;
+import com.sheraz.aws.lambda.CrossAccountSweep.AccountReport;
+import com.sheraz.aws.lambda.CrossAccountSweep.AccountTask;
 import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
+import com.sheraz.aws.lambda.DetachedVolumeFleetSweep.RegionSweepReport;
+import com.sheraz.aws.lambda.EC2Client.VolumeAPICallEvent;
+import com.sheraz.aws.lambda.EC2Client.VolumePageHandler;
+import com.sheraz.aws.lambda.HandlerPrimer.Service;
+import com.sheraz.aws.lambda.VolumeDeleter.VolumeDeletionResult;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.VolumeClassification;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.VolumeLifecycle;
 
 /**
  * DetachedVolumeJanitor contains a set of AWS lambda functions that keep your environment clean and tidy when
@@ -31,6 +44,16 @@ import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
  *    that have a “delete-scheduled-on” date in the past. Also sends out a confirmation notification with deleted 
  *    volume Id's listed.
  *  
+ * handleDetachedVolumeFleetSweep() runs all of the above from a single schedule across many regions at once, 
+ * sending one combined report instead of per-region notifications.
+ * 
+ * handleCrossAccountDetachedVolumeSweep() goes one step further and runs the fleet sweep in every account listed
+ * in TARGET_ACCOUNTS through an assumed role (see CrossAccountSweep), with one report section per account.
+ * 
+ * handleVolumeAPICallEvent() keeps the delete-scheduled-on tag up to date as volumes change, from the CloudTrail 
+ * events for CreateVolume, AttachVolume and DetachVolume: a volume is stamped as soon as it is created or detached, 
+ * and the tag is cleared when it is attached. The scheduled stamp run is then only a safety net for missed events.
+ *  
  * If someone wants to save a particular volume from deletion you can either remove the “delete-scheduled-on” tag 
  * (this will delay deletion for another 30 days), or modify the date to some large date in the future.
  *  
@@ -42,185 +65,601 @@ public class DetachedVolumeJanitor
     private static final String            SNS_TOPIC_DELETE_VOLUMES = "Lambda-DetachedVolumeJanitor";
     private static final int               DETACHED_VOLUME_RETENTION_DAYS = 30;
     private static final int               SCHEDULED_DELETION_NOTIFY_DAYS = 7;
+    private static final int               VOLUME_PAGE_SIZE = EC2Client.MAX_VOLUME_PAGE_SIZE;
+    private static final int               DELETE_CONCURRENCY = VolumeDeleter.DEFAULT_CONCURRENCY;
+    private static final long              NOTIFICATION_TIME_RESERVE_MILLIS = 15 * 1000;
+    private static final String            JANITOR_REGIONS_ENV = "JANITOR_REGIONS";
+    private static final int               FLEET_SWEEP_REGION_CONCURRENCY = DetachedVolumeFleetSweep.DEFAULT_REGION_CONCURRENCY;
+    private static final long              FLEET_SWEEP_REGION_TIME_BUDGET_MILLIS = 4 * 60 * 1000;
+    private static final String            CREATE_VOLUME_EVENT = "CreateVolume";
+    private static final String            ATTACH_VOLUME_EVENT = "AttachVolume";
+    private static final String            DETACH_VOLUME_EVENT = "DetachVolume";
     
-    private final SimpleDateFormat         _dateFromatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final String            VOLUME_DELETION_FOOTER = "If you would like to prevent a volume from deletion, you can remove the Volume tag: [" 
+                                                                  + SCHEDULE_DELETE_TAG + "] or set the tag value to a future date.\n\n"
+                                                                  + "-Cloud Services Team";
+    
+    private final NotificationPublisher    _publisher = new NotificationPublisher();
+    
+    static {
+        HandlerPrimer.prime("DetachedVolumeJanitor", Service.EC2, Service.SNS, Service.STS);
+    }
     
     public void handleDetachedVolumeScheduleDeleteStamp(CloudWatchScheduleEvent event)
     {
-        EC2Client ec2Client = new EC2Client(event);
-        List<Volume> detachedVolumes = ec2Client.describeAllDetachedVolumes();
-        markVolumesForDeletion(ec2Client, detachedVolumes, DETACHED_VOLUME_RETENTION_DAYS);
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleDetachedVolumeScheduleDeleteStamp");
+        try {
+            EC2Client ec2Client = new EC2Client(event);
+            final ResourceTagBatcher tagBatcher = ResourceTagBatcher.forTagging(ec2Client);
+            final Instant now = Instant.now();
+            final VolumeLifecycleClassifier classifier = createClassifier(now);
+            final Tag deleteOnTag = createScheduledDeleteTag(now, DETACHED_VOLUME_RETENTION_DAYS);
+            ec2Client.scanDetachedVolumes(VOLUME_PAGE_SIZE, new VolumePageHandler() {
+                public void handlePage(List<Volume> volumes) {
+                    markVolumesForDeletion(tagBatcher, classifier.classify(volumes), deleteOnTag);
+                }
+            });
+            tagBatcher.flush();
+            HandlerLog.summary("VolumesMarked", "marked", tagBatcher.getSucceededCount(), "submitted", tagBatcher.getSubmittedCount());
+        } finally {
+            metrics.finish();
+        }
     }
     
-    public void handleDetachedVolumeNotifyAndDelete(CloudWatchScheduleEvent event)
+    public void handleDetachedVolumeNotifyAndDelete(CloudWatchScheduleEvent event, Context context)
     {
-        EC2Client ec2Client = new EC2Client(event);
-        List<Volume> detachedVolumes = ec2Client.describeAllDetachedVolumes();
-        notifyVolumesScheduledForFutureDeletion(event, detachedVolumes, SCHEDULED_DELETION_NOTIFY_DAYS);
-        deleteVolumesScheduledForDeletion(event, ec2Client, detachedVolumes);
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleDetachedVolumeNotifyAndDelete");
+        try {
+            EC2Client ec2Client = new EC2Client(event);
+            final Instant now = Instant.now();
+            final VolumeLifecycleClassifier classifier = createClassifier(now);
+            final VolumeInventoryTracker inventory = openInventory("scheduled", event.getAccount(), event.getRegion(), now);
+            final List<ClassifiedVolume> notifyVolumes = new ArrayList<ClassifiedVolume>();
+            final List<String> deleteVolumeIds = new ArrayList<String>();
+            ec2Client.scanVolumes(scheduledForDeletionVolumes(), VOLUME_PAGE_SIZE, new VolumePageHandler() {
+                public void handlePage(List<Volume> volumes) {
+                    VolumeClassification classification = classifier.classify(volumes);
+                    collectUnwarnedVolumes(inventory, classification, notifyVolumes);
+                    deleteVolumeIds.addAll(classification.getVolumeIds(VolumeLifecycle.DUE));
+                }
+            });
+            sendVolumeScheduledForDeletionNotification(event, notifyVolumes);
+            _publisher.send(); // the warning goes out while the deletions run, the confirmation once they're done
+            deleteVolumesScheduledForDeletion(event, ec2Client, deleteVolumeIds, getDeleteTimeBudget(context));
+            inventory.commitIfNotified(_publisher.flush());
+        } finally {
+            _publisher.flush();
+            metrics.finish();
+        }
     }
     
     /**
-     * Helpful for testing purposes, so you can reset/clear any volumes tagged for deletion.
+     * Fleet-sweep mode: runs the full stamp, notify and delete pipeline in every configured region concurrently 
+     * and sends a single combined report. Regions come from the JANITOR_REGIONS environment variable 
+     * (comma separated), or default to all regions enabled for the account.
      */
-    public void handleDetachedVolumeClearScheduleDeleteTag(CloudWatchScheduleEvent event)
+    public void handleDetachedVolumeFleetSweep(CloudWatchScheduleEvent event, Context context)
     {
-        EC2Client ec2Client = new EC2Client(event);
-        List<Volume> detachedVolumes = ec2Client.describeAllDetachedVolumes();
-        clearScheduledDeleteTag(ec2Client, detachedVolumes);
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleDetachedVolumeFleetSweep");
+        try {
+            long deadline = System.currentTimeMillis() + getDeleteTimeBudget(context);
+            List<String> regions = getFleetSweepRegions(new EC2Client(event));
+            HandlerLog.info("FleetSweepStarted", "regionCount", regions.size(), "regions", regions);
+            
+            DetachedVolumeFleetSweep fleetSweep = new DetachedVolumeFleetSweep(this, FLEET_SWEEP_REGION_CONCURRENCY, FLEET_SWEEP_REGION_TIME_BUDGET_MILLIS);
+            List<RegionSweepReport> reports = fleetSweep.sweep(event.getAccount(), regions, deadline);
+            sendFleetSweepReportNotification(event, reports);
+            commitInventories(reports, _publisher.flush());
+        } finally {
+            metrics.finish();
+        }
     }
     
-    private void markVolumesForDeletion(EC2Client ec2Client, List<Volume> volumes, int retentionDays)
+    /**
+     * Cross-account mode: the fleet sweep is run in every target account (see CrossAccountSweep) through an assumed 
+     * role, a bounded number of accounts at a time. A single report with one section per account is published 
+     * from the account the lambda runs in.
+     */
+    public void handleCrossAccountDetachedVolumeSweep(final CloudWatchScheduleEvent event, Context context)
     {
-        if(volumes == null || volumes.isEmpty()) return;
-        int count = 0;
-        for(Volume volume : volumes)
-        {
-            Date deleteOn = getScheduledForDeletionDate(volume);
-            if(deleteOn == null)
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleCrossAccountDetachedVolumeSweep");
+        try {
+            long deadline = System.currentTimeMillis() + getDeleteTimeBudget(context);
+            CrossAccountSweep accountSweep = CrossAccountSweep.fromEnvironment();
+            if(accountSweep.getAccounts().isEmpty())
             {
-                tagVolumeForFutureDeletion(ec2Client, volume, retentionDays);
-                count++;
+                HandlerLog.warn("NoTargetAccounts", "variable", CrossAccountSweep.TARGET_ACCOUNTS_ENV);
+                return;
             }
+            HandlerLog.info("CrossAccountSweepStarted", "accountCount", accountSweep.getAccounts().size(), "accounts", accountSweep.getAccounts());
+            
+            final DetachedVolumeFleetSweep fleetSweep = new DetachedVolumeFleetSweep(this, FLEET_SWEEP_REGION_CONCURRENCY, FLEET_SWEEP_REGION_TIME_BUDGET_MILLIS);
+            List<AccountReport<List<RegionSweepReport>>> reports = accountSweep.run(new AccountTask<List<RegionSweepReport>>() {
+                public List<RegionSweepReport> run(String account, AWSCredentialsProvider credentials, long deadline) {
+                    List<String> regions = getFleetSweepRegions(new EC2Client(event.getRegion(), credentials));
+                    return fleetSweep.sweep(account, regions, credentials, deadline);
+                }
+            }, deadline);
+            sendCrossAccountSweepReportNotification(event, reports);
+            int failedNotifications = _publisher.flush();
+            for(AccountReport<List<RegionSweepReport>> account : reports)
+            {
+                if(account.getError() == null) commitInventories(account.getResult(), failedNotifications);
+            }
+        } finally {
+            metrics.finish();
         }
-        System.out.println("Marked " + count + " Volumes with scheduled for deletion tag.");
     }
     
-    private void notifyVolumesScheduledForFutureDeletion(CloudWatchScheduleEvent event, List<Volume> volumes, int daysOut)
+    private List<String> getFleetSweepRegions(EC2Client ec2Client)
     {
-        if(volumes == null || volumes.isEmpty()) return;
+        String configured = System.getenv(JANITOR_REGIONS_ENV);
+        if(StringUtils.isNullOrEmpty(configured)) return ec2Client.describeEnabledRegions();
         
-        Date today = new Date();
-        List<Volume> notifyVolumes = new ArrayList<Volume>(volumes.size());
-        for(Volume volume: volumes)
+        List<String> regions = new ArrayList<String>();
+        for(String region : configured.split(","))
         {
-            Date deleteOn = getScheduledForDeletionDate(volume);
-            if(deleteOn == null) continue;
-            Date notifyDate = adjustDateByDays(deleteOn, -1 * daysOut);
-            if(today.after(notifyDate) && today.before(deleteOn))
+            if(!region.trim().isEmpty()) regions.add(region.trim());
+        }
+        return regions;
+    }
+    
+    /**
+     * The whole pipeline for one region off a single volume scan: unmarked volumes are stamped, volumes inside the 
+     * notification window are collected for the report (those not reported on before, see VolumeInventoryTracker), 
+     * and volumes past their date are deleted.
+     * 
+     * A region that runs past its deadline, or whose task is cancelled, stops before the next page, before the 
+     * remaining stamps are sent and before any volume is deleted (throwing CancellationException), so a region 
+     * the fleet sweep has given up on doesn't go on changing volumes after the handler has returned.
+     */
+    RegionSweepReport sweepRegion(EC2Client ec2Client, String account, String region, long deadline)
+    {
+        final ResourceTagBatcher tagBatcher = ResourceTagBatcher.forTagging(ec2Client);
+        final Instant now = Instant.now();
+        final VolumeLifecycleClassifier classifier = createClassifier(now);
+        final VolumeInventoryTracker inventory = openInventory("detached", account, region, now);
+        final Tag deleteOnTag = createScheduledDeleteTag(now, DETACHED_VOLUME_RETENTION_DAYS);
+        final List<ClassifiedVolume> notifyVolumes = new ArrayList<ClassifiedVolume>();
+        final List<String> deleteVolumeIds = new ArrayList<String>();
+        int scanned = ec2Client.scanDetachedVolumes(VOLUME_PAGE_SIZE, deadline, new VolumePageHandler() {
+            public void handlePage(List<Volume> volumes) {
+                VolumeClassification classification = classifier.classify(volumes);
+                markVolumesForDeletion(tagBatcher, classification, deleteOnTag);
+                collectUnwarnedVolumes(inventory, classification, notifyVolumes);
+                deleteVolumeIds.addAll(classification.getVolumeIds(VolumeLifecycle.DUE));
+            }
+        });
+        EC2Client.checkDeadline(deadline);
+        tagBatcher.flush();
+        
+        RegionSweepReport report = new RegionSweepReport(region);
+        report.setInventory(inventory);
+        report.setScannedCount(scanned);
+        report.setMarkedCount(tagBatcher.getSucceededCount());
+        report.setNotifyVolumes(notifyVolumes);
+        if(!deleteVolumeIds.isEmpty())
+        {
+            EC2Client.checkDeadline(deadline);
+            long timeBudget = Math.max(0, deadline - System.currentTimeMillis());
+            report.setDeletionResult(ec2Client.deleteVolumes(deleteVolumeIds, DELETE_CONCURRENCY, timeBudget));
+        }
+        HandlerLog.summary("RegionSwept", "region", region, "scanned", scanned, "marked", report.getMarkedCount(), 
+                           "notified", notifyVolumes.size(), "deleted", report.getDeletedVolumeIds().size(), "due", deleteVolumeIds.size());
+        return report;
+    }
+    
+    /**
+     * Stamps or clears the delete-on tag of the one volume a CreateVolume, AttachVolume or DetachVolume call was 
+     * about. CloudTrail delivers events minutes late and not necessarily in order, so the volume is described and 
+     * its current state decides rather than the call: a volume in use loses its tag, a detached one without a date 
+     * gets one. A detach also restarts the retention period of a volume that still carries an old date.
+     * 
+     * Dates are counted from the time of the call, not from when the event arrives, and an existing date is only
+     * ever moved later: a late or redelivered event (delivery is at least once) leaves the tag as it is.
+     */
+    public void handleVolumeAPICallEvent(VolumeAPICallEvent event)
+    {
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleVolumeAPICallEvent");
+        try {
+            String eventName = event.getEventName();
+            String volumeId = event.getVolumeId();
+            if(event.getErrorCode() != null || volumeId == null || !isVolumeEvent(eventName))
+            {
+                HandlerLog.info("VolumeEventIgnored", "eventId", event.getId(), "eventName", eventName, "errorCode", event.getErrorCode());
+                return;
+            }
+            
+            EC2Client ec2Client = new EC2Client(event.getRegion());
+            Volume volume = ec2Client.describeVolume(volumeId);
+            if(volume == null || "deleting".equals(volume.getState()) || "deleted".equals(volume.getState()))
+            {
+                HandlerLog.info("VolumeGone", "volumeId", volumeId, "eventName", eventName);
+                return;
+            }
+            
+            Instant now = Instant.now();
+            Instant calledAt = getCallTime(event, now);
+            if(isInUse(volume))
+            {
+                if(!hasScheduledDeleteTag(volume)) return;
+                Tag tag = new Tag();
+                tag.setKey(SCHEDULE_DELETE_TAG);
+                ec2Client.untagResource(volumeId, tag);
+                HandlerMetrics.current().add("VolumesUnmarked", 1);
+                HandlerLog.summary("VolumeUnmarked", "volumeId", volumeId, "eventName", eventName);
+            }
+            else
             {
-                notifyVolumes.add(volume);
+                ClassifiedVolume classified = createClassifier(now).classify(volume);
+                if(!DETACH_VOLUME_EVENT.equals(eventName) && classified.getLifecycle() != VolumeLifecycle.UNMARKED) return;
+                
+                Tag deleteOnTag = createScheduledDeleteTag(calledAt, DETACHED_VOLUME_RETENTION_DAYS);
+                if(classified.getDeleteOn() >= VolumeLifecycleClassifier.parseDeleteOn(deleteOnTag.getValue()))
+                {
+                    HandlerLog.info("VolumeMarkUnchanged", "volumeId", volumeId, "eventName", eventName, "eventId", event.getId());
+                    return;
+                }
+                ec2Client.tagResource(volumeId, deleteOnTag);
+                HandlerMetrics.current().add("VolumesMarked", 1);
+                HandlerLog.summary("VolumeMarked", "volumeId", volumeId, "eventName", eventName, "deleteOn", deleteOnTag.getValue());
             }
+        } finally {
+            metrics.finish();
         }
-        sendVolumeScheduledForDeletionNotification(event, notifyVolumes);
     }
     
-    private void deleteVolumesScheduledForDeletion(CloudWatchScheduleEvent event, EC2Client ec2Client, List<Volume> volumes)
+    /**
+     * @return the time of the call, or now if the event doesn't carry a valid one; never later than now
+     */
+    private Instant getCallTime(VolumeAPICallEvent event, Instant now)
     {
-        if(volumes == null || volumes.isEmpty()) return;
-        
-        Date today = new Date();
-        List<String> deleteVolumeIds = new ArrayList<String>();
-        for(Volume volume : volumes)
+        if(StringUtils.isNullOrEmpty(event.getTime())) return now;
+        try {
+            Instant calledAt = Instant.parse(event.getTime());
+            return calledAt.isAfter(now) ? now : calledAt;
+        } catch (DateTimeParseException e) {
+            HandlerLog.warn("EventTimeInvalid", "eventId", event.getId(), "time", event.getTime());
+            return now;
+        }
+    }
+    
+    private boolean isVolumeEvent(String eventName)
+    {
+        return CREATE_VOLUME_EVENT.equals(eventName) || ATTACH_VOLUME_EVENT.equals(eventName) || DETACH_VOLUME_EVENT.equals(eventName);
+    }
+    
+    /**
+     * A volume that is only still detaching counts as detached already.
+     */
+    private boolean isInUse(Volume volume)
+    {
+        List<VolumeAttachment> attachments = volume.getAttachments();
+        for(VolumeAttachment attachment : attachments)
         {
-            Date deleteOn = getScheduledForDeletionDate(volume);
-            if(deleteOn != null && deleteOn.before(today)) deleteVolumeIds.add(volume.getVolumeId());
+            if("attaching".equals(attachment.getState()) || "attached".equals(attachment.getState())) return true;
         }
-        ec2Client.deleteVolumes(deleteVolumeIds); 
-        sendVolumeDeleteConfirmationNotification(event, deleteVolumeIds);
+        return attachments.isEmpty() && "in-use".equals(volume.getState());
     }
     
-    private Date getScheduledForDeletionDate(Volume volume)
+    private boolean hasScheduledDeleteTag(Volume volume)
     {
-        List<Tag> tags = volume.getTags();
-        for(Tag tag : tags) 
+        for(Tag tag : volume.getTags())
         {
-            if(tag.getKey().equals(SCHEDULE_DELETE_TAG))
-            {
-                try {
-                    return _dateFromatter.parse(tag.getValue());
-                } catch (ParseException e) {
-                    return null;
+            if(SCHEDULE_DELETE_TAG.equals(tag.getKey())) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Helpful for testing purposes, so you can reset/clear any volumes tagged for deletion.
+     */
+    public void handleDetachedVolumeClearScheduleDeleteTag(CloudWatchScheduleEvent event)
+    {
+        HandlerMetrics metrics = HandlerMetrics.start("DetachedVolumeJanitor.handleDetachedVolumeClearScheduleDeleteTag");
+        try {
+            EC2Client ec2Client = new EC2Client(event);
+            final ResourceTagBatcher untagBatcher = ResourceTagBatcher.forUntagging(ec2Client);
+            ec2Client.scanVolumes(scheduledForDeletionVolumes(), VOLUME_PAGE_SIZE, new VolumePageHandler() {
+                public void handlePage(List<Volume> volumes) {
+                    clearScheduledDeleteTag(untagBatcher, volumes);
                 }
+            });
+            untagBatcher.flush();
+        } finally {
+            metrics.finish();
+        }
+    }
+    
+    /*
+     * Stream entry points: the same handlers for deploying as <method>Stream, with the event read straight off the
+     * input by CloudWatchEventParser rather than bound by the runtime's reflection-based Jackson.
+     */
+    
+    public void handleDetachedVolumeScheduleDeleteStampStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleDetachedVolumeScheduleDeleteStamp(CloudWatchEventParser.parseScheduleEvent(input));
+    }
+    
+    public void handleDetachedVolumeNotifyAndDeleteStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleDetachedVolumeNotifyAndDelete(CloudWatchEventParser.parseScheduleEvent(input), context);
+    }
+    
+    public void handleDetachedVolumeFleetSweepStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleDetachedVolumeFleetSweep(CloudWatchEventParser.parseScheduleEvent(input), context);
+    }
+    
+    public void handleCrossAccountDetachedVolumeSweepStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleCrossAccountDetachedVolumeSweep(CloudWatchEventParser.parseScheduleEvent(input), context);
+    }
+    
+    public void handleVolumeAPICallEventStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleVolumeAPICallEvent(CloudWatchEventParser.parseVolumeAPICallEvent(input));
+    }
+    
+    public void handleDetachedVolumeClearScheduleDeleteTagStream(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        handleDetachedVolumeClearScheduleDeleteTag(CloudWatchEventParser.parseScheduleEvent(input));
+    }
+    
+    /**
+     * Only detached volumes that already carry the delete-on tag; unmarked volumes are filtered out by EC2 
+     * rather than downloaded just to be skipped.
+     */
+    private EC2Query scheduledForDeletionVolumes()
+    {
+        return EC2Query.detachedVolumes().tagKey(SCHEDULE_DELETE_TAG);
+    }
+    
+    VolumeLifecycleClassifier createClassifier(Instant now)
+    {
+        return new VolumeLifecycleClassifier(SCHEDULE_DELETE_TAG, now, SCHEDULED_DELETION_NOTIFY_DAYS);
+    }
+    
+    /**
+     * One snapshot per handler, account and region, as each handler scans a different set of volumes.
+     */
+    private VolumeInventoryTracker openInventory(String scan, String account, String region, Instant now)
+    {
+        return VolumeInventoryTracker.open(VolumeInventory.storeFromEnvironment(), "volumes-" + scan + "-" + account + "-" + region, 
+                                           now, SCHEDULED_DELETION_NOTIFY_DAYS);
+    }
+    
+    /**
+     * Records every classified volume in the inventory, and adds the ones in the notification window that haven't 
+     * been warned about yet to notifyVolumes.
+     */
+    private void collectUnwarnedVolumes(VolumeInventoryTracker inventory, VolumeClassification classification, List<ClassifiedVolume> notifyVolumes)
+    {
+        for(VolumeLifecycle lifecycle : VolumeLifecycle.values())
+        {
+            for(ClassifiedVolume volume : classification.get(lifecycle))
+            {
+                if(inventory.record(volume) && lifecycle == VolumeLifecycle.NOTIFY) notifyVolumes.add(volume);
             }
         }
-        return null;
     }
     
-    private void tagVolumeForFutureDeletion(EC2Client ec2Client, Volume volume, int daysFromNow)
+    private void commitInventories(List<RegionSweepReport> reports, int failedNotifications)
     {
-        String deleteOnDate = getFormattedDateDaysFromToday(daysFromNow);
-        Tag tag = new Tag(SCHEDULE_DELETE_TAG, deleteOnDate);
-        ec2Client.tagResource(volume.getVolumeId(), tag);
+        for(RegionSweepReport report : reports)
+        {
+            if(report.getInventory() != null) report.getInventory().commitIfNotified(failedNotifications);
+        }
     }
     
-    private String getFormattedDateDaysFromToday(int days)
+    private void markVolumesForDeletion(ResourceTagBatcher tagBatcher, VolumeClassification classification, Tag deleteOnTag)
     {
-        Date todayWithOffset = adjustDateByDays(new Date(), days);
-        return _dateFromatter.format(todayWithOffset);
+        for(ClassifiedVolume volume : classification.get(VolumeLifecycle.UNMARKED)) tagBatcher.add(volume.getVolumeId(), deleteOnTag);
     }
     
-    private void sendVolumeScheduledForDeletionNotification(CloudWatchScheduleEvent event, List<Volume> volumes)
+    private void deleteVolumesScheduledForDeletion(CloudWatchScheduleEvent event, EC2Client ec2Client, 
+                                                   List<String> deleteVolumeIds, long timeBudgetMillis)
+    {
+        if(deleteVolumeIds.isEmpty()) return;
+        VolumeDeletionResult result = ec2Client.deleteVolumes(deleteVolumeIds, DELETE_CONCURRENCY, timeBudgetMillis); 
+        sendVolumeDeleteConfirmationNotification(event, result.getDeletedVolumeIds());
+    }
+    
+    /**
+     * Leaves enough of the remaining invocation time to send out the confirmation notification.
+     */
+    private long getDeleteTimeBudget(Context context)
+    {
+        if(context == null) return EC2Client.DEFAULT_DELETE_TIME_BUDGET_MILLIS;
+        return Math.max(0, context.getRemainingTimeInMillis() - NOTIFICATION_TIME_RESERVE_MILLIS);
+    }
+    
+    /**
+     * The delete-on date is computed once per run, so all volumes marked together share one tag value
+     * and can be tagged in bulk.
+     */
+    private Tag createScheduledDeleteTag(Instant now, int daysFromNow)
+    {
+        String deleteOnDate = VolumeLifecycleClassifier.formatDeleteOn(now.plus(daysFromNow, ChronoUnit.DAYS).toEpochMilli());
+        return new Tag(SCHEDULE_DELETE_TAG, deleteOnDate);
+    }
+    
+    private void sendVolumeScheduledForDeletionNotification(CloudWatchScheduleEvent event, List<ClassifiedVolume> volumes)
     {
         if(volumes == null || volumes.isEmpty()) return;
         
-        AmazonSNSClient sns = createAmazonSNSClient(event);
-        CreateTopicResult topicResult = sns.createTopic(SNS_TOPIC_DELETE_VOLUMES);
-        sns.publish(topicResult.getTopicArn(), createVolumeDeletionNotificationMessage(event, volumes), 
-                    "[" + event.getAccount() + "] WARN: Detached Volumes Scheduled for Deletion");
+        HandlerMetrics.current().add("VolumesNotified", volumes.size());
+        _publisher.enqueue(event.getRegion(), SNS_TOPIC_DELETE_VOLUMES, 
+                           "[" + event.getAccount() + "] WARN: Detached Volumes Scheduled for Deletion", 
+                           createVolumeDeletionNotificationMessages(event, volumes));
     }
     
-    private AmazonSNSClient createAmazonSNSClient(CloudWatchScheduleEvent event)
+    /**
+     * @return the warning, split or summarized (see DigestRenderer) if listing every volume would exceed the SNS limit
+     */
+    List<String> createVolumeDeletionNotificationMessages(CloudWatchScheduleEvent event, List<ClassifiedVolume> volumes)
     {
-        AmazonSNSClient sns = new AmazonSNSClient();
-        sns.configureRegion(Regions.fromName(event.getRegion())); 
-        return sns;
+        String header = "Account: " + event.getAccount() + " (" + event.getRegion() + ")\n\n"
+                      + "The following EBS Volumes are scheduled for deletion within the next " + SCHEDULED_DELETION_NOTIFY_DAYS + " days:\n\n";
+        DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, header, VOLUME_DELETION_FOOTER);
+        for(ClassifiedVolume volume : volumes)
+        {
+            StringBuilder entry = digest.entry();
+            entry.append(volume.getVolumeId()).append(" -> ").append(VolumeLifecycleClassifier.formatDeleteOn(volume.getDeleteOn())).append("\n");
+            entry.append("Tags: ");
+            for(Tag tag : volume.getVolume().getTags()) entry.append('{').append(tag.getKey()).append(": ").append(tag.getValue()).append("} ");
+            entry.append("\n\n");
+            digest.endEntry();
+        }
+        return digest.render("detached-volumes-scheduled-" + event.getAccount() + "-" + event.getRegion() + "-" + System.currentTimeMillis(), 
+                             DigestRenderer.sinkFromEnvironment());
     }
     
-    private String createVolumeDeletionNotificationMessage(CloudWatchScheduleEvent event, List<Volume> volumes)
+    private void sendFleetSweepReportNotification(CloudWatchScheduleEvent event, List<RegionSweepReport> reports)
     {
-        StringBuffer msg = new StringBuffer();
-        msg.append("Account: ").append(event.getAccount()).append(" (").append(event.getRegion()).append(")\n\n");
-        msg.append("The following EBS Volumes are scheduled for deletion within the next " + SCHEDULED_DELETION_NOTIFY_DAYS + " days:\n\n");
-        for(Volume volume : volumes)
+        int notifyCount = 0, deletedCount = 0;
+        boolean activity = false;
+        for(RegionSweepReport report : reports)
         {
-            msg.append(volume.getVolumeId()).append(" -> ").append(getScheduledForDeletionDate(volume)).append("\n");
-            msg.append("Tags: ");
-            for(Tag tag : volume.getTags()) msg.append("{"+ tag.getKey() + ": " + tag.getValue() + "} ");
-            msg.append("\n\n");    
+            notifyCount += report.getNotifyVolumes().size();
+            deletedCount += report.getDeletedVolumeIds().size();
+            activity |= report.hasActivity();
         }
-        msg.append("If you would like to prevent a volume from deletion, you can remove the Volume tag: [" + SCHEDULE_DELETE_TAG + "]"
-                   + " or set the tag value to a future date.\n\n");
-        msg.append("-Cloud Services Team");
-        return msg.toString();
+        if(!activity) return;
+        
+        _publisher.publish(event.getRegion(), SNS_TOPIC_DELETE_VOLUMES, 
+                           "[" + event.getAccount() + "] Detached Volumes: " + deletedCount + " deleted, " 
+                           + notifyCount + " scheduled for deletion across " + reports.size() + " regions", 
+                           createFleetSweepReportMessages(event, reports));
     }
     
-    private void sendVolumeDeleteConfirmationNotification(CloudWatchScheduleEvent event, List<String> volumeIds)
+    List<String> createFleetSweepReportMessages(CloudWatchScheduleEvent event, List<RegionSweepReport> reports)
     {
-        if(volumeIds == null || volumeIds.isEmpty()) return;
-        AmazonSNSClient sns = createAmazonSNSClient(event);
-        CreateTopicResult topicResult = sns.createTopic(SNS_TOPIC_DELETE_VOLUMES);
-        sns.publish(topicResult.getTopicArn(), createVolumeDeleteConfirmationMessage(event, volumeIds), 
-                    "[" + event.getAccount() + "] INFO: Detached Volumes Deletion Completed");
+        DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, "Account: " + event.getAccount() + "\n\n", 
+                                                   VOLUME_DELETION_FOOTER);
+        appendRegionSections(digest, reports);
+        return digest.render("detached-volumes-fleet-sweep-" + event.getAccount() + "-" + System.currentTimeMillis(), 
+                             DigestRenderer.sinkFromEnvironment());
     }
     
-    private String createVolumeDeleteConfirmationMessage(CloudWatchScheduleEvent event, List<String> volumeIds)
+    private void sendCrossAccountSweepReportNotification(CloudWatchScheduleEvent event, List<AccountReport<List<RegionSweepReport>>> reports)
     {
-        StringBuffer msg = new StringBuffer();
-        msg.append("Account: ").append(event.getAccount()).append(" (").append(event.getRegion()).append(")\n\n");
-        msg.append("The following EBS volumes have been deleted: \n\n");
-        for(String volumeId : volumeIds) msg.append(volumeId).append("\n");
-        msg.append("\nSorry if we deleted a volume you weren't ready to dispose off yet, it may still be "
-                 + "retrievable from a nightly snapshot ... but we did send warnings! :)\n\n");
-        msg.append("-Cloud Services Team\n");
-        msg.append("000-CloudServices@corp.sysco.com");
-        return msg.toString();
+        int notifyCount = 0, deletedCount = 0;
+        boolean activity = false;
+        for(AccountReport<List<RegionSweepReport>> account : reports)
+        {
+            if(account.getError() != null)
+            {
+                activity = true;
+                continue;
+            }
+            for(RegionSweepReport report : account.getResult())
+            {
+                notifyCount += report.getNotifyVolumes().size();
+                deletedCount += report.getDeletedVolumeIds().size();
+                activity |= report.hasActivity();
+            }
+        }
+        if(!activity) return;
+        
+        _publisher.publish(event.getRegion(), SNS_TOPIC_DELETE_VOLUMES, 
+                           "Detached Volumes: " + deletedCount + " deleted, " + notifyCount 
+                           + " scheduled for deletion across " + reports.size() + " accounts", 
+                           createCrossAccountSweepReportMessages(reports));
     }
-
-    // TODO use util class
-    private Date adjustDateByDays(Date date, int days)
+    
+    List<String> createCrossAccountSweepReportMessages(List<AccountReport<List<RegionSweepReport>>> reports)
     {
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(date);
-        cal.add(Calendar.DAY_OF_MONTH, days);
-        return cal.getTime();
+        DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, "", VOLUME_DELETION_FOOTER);
+        for(AccountReport<List<RegionSweepReport>> account : reports)
+        {
+            digest.addEntry("##### Account: " + account.getAccount() + " #####\n\n");
+            if(account.getError() != null) digest.addEntry("Sweep did not complete: " + account.getError() + "\n\n");
+            else appendRegionSections(digest, account.getResult());
+        }
+        return digest.render("detached-volumes-cross-account-sweep-" + System.currentTimeMillis(), DigestRenderer.sinkFromEnvironment());
     }
     
-    private void clearScheduledDeleteTag(EC2Client ec2Client, List<Volume> volumes)
+    /**
+     * One entry per line, so a long region section can continue in the next part.
+     */
+    private void appendRegionSections(DigestRenderer digest, List<RegionSweepReport> reports)
+    {
+        for(RegionSweepReport report : reports)
+        {
+            digest.addEntry("=== " + report.getRegion() + " ===\n");
+            if(report.getError() != null)
+            {
+                digest.addEntry("Sweep did not complete: " + report.getError() + "\n\n");
+                continue;
+            }
+            digest.entry().append("Scanned ").append(report.getScannedCount()).append(" detached volumes, newly scheduled ")
+                          .append(report.getMarkedCount()).append(" for deletion.\n\n");
+            digest.endEntry();
+            if(!report.getNotifyVolumes().isEmpty())
+            {
+                digest.addEntry("Scheduled for deletion within the next " + SCHEDULED_DELETION_NOTIFY_DAYS + " days:\n");
+                for(ClassifiedVolume volume : report.getNotifyVolumes())
+                {
+                    digest.entry().append(volume.getVolumeId()).append(" -> ").append(VolumeLifecycleClassifier.formatDeleteOn(volume.getDeleteOn())).append("\n");
+                    digest.endEntry();
+                }
+                digest.addEntry("\n");
+            }
+            if(!report.getDeletedVolumeIds().isEmpty())
+            {
+                digest.addEntry("Deleted:\n");
+                for(String volumeId : report.getDeletedVolumeIds())
+                {
+                    digest.entry().append(volumeId).append("\n");
+                    digest.endEntry();
+                }
+                digest.addEntry("\n");
+            }
+            if(!report.getFailedVolumes().isEmpty())
+            {
+                digest.addEntry("Failed to delete:\n");
+                for(Map.Entry<String, String> failure : report.getFailedVolumes().entrySet())
+                {
+                    digest.entry().append(failure.getKey()).append(": ").append(failure.getValue()).append("\n");
+                    digest.endEntry();
+                }
+                digest.addEntry("\n");
+            }
+        }
+    }
+    
+    private void sendVolumeDeleteConfirmationNotification(CloudWatchScheduleEvent event, List<String> volumeIds)
+    {
+        if(volumeIds == null || volumeIds.isEmpty()) return;
+        _publisher.enqueue(event.getRegion(), SNS_TOPIC_DELETE_VOLUMES, 
+                           "[" + event.getAccount() + "] INFO: Detached Volumes Deletion Completed", 
+                           createVolumeDeleteConfirmationMessages(event, volumeIds));
+    }
+    
+    List<String> createVolumeDeleteConfirmationMessages(CloudWatchScheduleEvent event, List<String> volumeIds)
+    {
+        String header = "Account: " + event.getAccount() + " (" + event.getRegion() + ")\n\n"
+                      + "The following EBS volumes have been deleted: \n\n";
+        String footer = "\nSorry if we deleted a volume you weren't ready to dispose off yet, it may still be "
+                      + "retrievable from a nightly snapshot ... but we did send warnings! :)\n\n"
+                      + "-Cloud Services Team\n"
+                      + "000-CloudServices@corp.sysco.com";
+        DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, header, footer);
+        for(String volumeId : volumeIds)
+        {
+            digest.entry().append(volumeId).append('\n');
+            digest.endEntry();
+        }
+        return digest.render("detached-volumes-deleted-" + event.getAccount() + "-" + event.getRegion() + "-" + System.currentTimeMillis(), 
+                             DigestRenderer.sinkFromEnvironment());
+    }
+
+    private void clearScheduledDeleteTag(ResourceTagBatcher untagBatcher, List<Volume> volumes)
     {
         Tag tag = new Tag();
         tag.setKey(SCHEDULE_DELETE_TAG);
-        for(Volume volume : volumes) ec2Client.untagResource(volume.getVolumeId(), tag);
+        for(Volume volume : volumes) untagBatcher.add(volume.getVolumeId(), tag);
     }
     
 }
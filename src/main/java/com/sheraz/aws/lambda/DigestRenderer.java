@@ -0,0 +1,204 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Renders a notification digest (a header, any number of entries and a footer) under a hard size budget, so a
+ * big day's listing can't push a message over the SNS limit and fail the publish.
+ *
+ * Entries are written straight into the current part as they are added, and a new part is started as soon as the
+ * next entry would not fit; an entry is never split across parts. Each byte is written and measured once, so
+ * rendering is linear in the size of the digest.
+ *
+ * If everything fits, render() returns the single message. Otherwise it returns either numbered parts, or, when an
+ * overflow sink is configured, a single summary message with the first entries and a pointer to the full listing
+ * written to the sink.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class DigestRenderer
+{
+    public static final String OVERFLOW_DIR_ENV = "DIGEST_OVERFLOW_DIR";
+
+    private static final int    PART_RESERVE_BYTES = 1024;
+    private static final String TRUNCATED = "... [truncated]\n";
+
+    private final int                 _budgetBytes;
+    private final String              _header;
+    private final String              _footer;
+    private final int                 _entryCapacity;
+    private final StringBuilder       _entry = new StringBuilder();
+    private final List<StringBuilder> _parts = new ArrayList<StringBuilder>();
+    private final List<Integer>       _partEntryCounts = new ArrayList<Integer>();
+    private StringBuilder             _part;
+    private int                       _partBytes;
+    private int                       _entryCount;
+
+    public DigestRenderer(int budgetBytes, String header, String footer)
+    {
+        _budgetBytes = budgetBytes;
+        _header = header;
+        _footer = footer;
+        _entryCapacity = budgetBytes - utf8Length(header) - utf8Length(footer) - PART_RESERVE_BYTES;
+        if(_entryCapacity <= TRUNCATED.length()) throw new IllegalArgumentException("Budget of " + budgetBytes + " bytes leaves no room for entries");
+    }
+
+    /**
+     * @return a cleared scratch buffer for the next entry, added to the digest by endEntry()
+     */
+    public StringBuilder entry()
+    {
+        _entry.setLength(0);
+        return _entry;
+    }
+
+    public void endEntry()
+    {
+        addEntry(_entry);
+    }
+
+    public void addEntry(CharSequence entry)
+    {
+        int bytes = utf8Length(entry);
+        if(_part == null || _partBytes + bytes > _entryCapacity) startPart();
+        if(bytes > _entryCapacity)
+        {
+            int end = fitLength(entry, _entryCapacity - TRUNCATED.length());
+            _part.append(entry, 0, end).append(TRUNCATED);
+            bytes = _entryCapacity;
+        }
+        else
+        {
+            _part.append(entry);
+        }
+        _partBytes += bytes;
+        _entryCount++;
+        _partEntryCounts.set(_parts.size() - 1, _partEntryCounts.get(_parts.size() - 1) + 1);
+    }
+
+    public int getEntryCount()
+    {
+        return _entryCount;
+    }
+
+    public int getBudgetBytes()
+    {
+        return _budgetBytes;
+    }
+
+    /**
+     * @param name identifies the full listing in the overflow sink, e.g. a file name
+     * @param sink where the full listing goes when it does not fit one message, or null to split into numbered parts
+     * @return the message(s) to send, each within the budget
+     */
+    public List<String> render(String name, DigestSink sink)
+    {
+        if(_parts.size() <= 1) return Collections.singletonList(_header + (_part == null ? "" : _part) + _footer);
+
+        if(sink != null)
+        {
+            try {
+                return Collections.singletonList(renderSummary(sink.store(name, renderFull())));
+            } catch (IOException e) {
+                HandlerLog.warn("DigestOverflowNotStored", "digest", name, "error", e, "fallback", "parts");
+            }
+        }
+        List<String> messages = new ArrayList<String>(_parts.size());
+        for(int i = 0; i < _parts.size(); i++)
+        {
+            messages.add(new StringBuilder(_budgetBytes).append("Part ").append(i + 1).append(" of ").append(_parts.size()).append("\n\n")
+                         .append(_header).append(_parts.get(i)).append(_footer).toString());
+        }
+        return messages;
+    }
+
+    private String renderFull()
+    {
+        StringBuilder full = new StringBuilder(_header);
+        for(StringBuilder part : _parts) full.append(part);
+        return full.append(_footer).toString();
+    }
+
+    private String renderSummary(String location)
+    {
+        int shown = _partEntryCounts.get(0);
+        StringBuilder summary = new StringBuilder(_budgetBytes).append(_header).append(_parts.get(0));
+        summary.append("\n... ").append(_entryCount - shown).append(" more entries not shown. The full listing of ")
+               .append(_entryCount).append(" entries is available at: ");
+        summary.append(location, 0, fitLength(location, PART_RESERVE_BYTES / 2)).append("\n\n");
+        return summary.append(_footer).toString();
+    }
+
+    private void startPart()
+    {
+        _part = new StringBuilder();
+        _partBytes = 0;
+        _parts.add(_part);
+        _partEntryCounts.add(0);
+    }
+
+    /**
+     * @return where overflowing digests should go according to the DIGEST_OVERFLOW_DIR environment variable,
+     *         or null if unset (digests are then split into numbered parts)
+     */
+    public static DigestSink sinkFromEnvironment()
+    {
+        String directory = System.getenv(OVERFLOW_DIR_ENV);
+        return StringUtils.isNullOrEmpty(directory) ? null : new LocalDirectoryDigestSink(Paths.get(directory.trim()));
+    }
+
+    static int utf8Length(CharSequence text)
+    {
+        return utf8Length(text, text.length());
+    }
+
+    private static int utf8Length(CharSequence text, int end)
+    {
+        int bytes = 0;
+        for(int i = 0; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if(c < 0x80) bytes++;
+            else if(c < 0x800) bytes += 2;
+            else if(Character.isHighSurrogate(c)) { bytes += 4; i++; }
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the longest prefix length of text that is at most maxBytes in UTF-8, without splitting a surrogate pair
+     */
+    private static int fitLength(CharSequence text, int maxBytes)
+    {
+        int bytes = 0;
+        int i = 0;
+        while(i < text.length())
+        {
+            char c = text.charAt(i);
+            int width = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 : 3;
+            if(bytes + width > maxBytes) break;
+            bytes += width;
+            i += width == 4 ? 2 : 1;
+        }
+        return Math.min(i, text.length());
+    }
+
+    /**
+     * Destination for full digest listings that do not fit in a single message.
+     */
+    public interface DigestSink
+    {
+        /**
+         * @return a location recipients can use to find the listing
+         */
+        String store(String name, String content) throws IOException;
+    }
+}
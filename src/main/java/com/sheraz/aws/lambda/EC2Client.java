@@ -1,25 +1,35 @@
 package com.sheraz.aws.lambda;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.CreateTagsResult;
 import com.amazonaws.services.ec2.model.DeleteTagsRequest;
-import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
 import com.amazonaws.services.ec2.model.DescribeVolumesResult;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Region;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.Volume;
 import com.amazonaws.util.StringUtils;
+import com.sheraz.aws.lambda.HandlerLog.Level;
+import com.sheraz.aws.lambda.VolumeDeleter.VolumeDeletionResult;
 
 /**
  * Wrapper calls for AmazonEC2Client to abstract out and simplify low level calls.
@@ -31,25 +41,45 @@ import com.amazonaws.util.StringUtils;
 public class EC2Client 
 {
 	
-	private CloudWatchScheduleEvent     _cloudWatchEvent;
-	private AmazonEC2Client			    _amazonEC2;
+	public static final int            MIN_VOLUME_PAGE_SIZE = 5;
+	public static final int            MAX_VOLUME_PAGE_SIZE = 500;
+	public static final int            MAX_TAG_RESOURCES_PER_REQUEST = 1000;
+	public static final long           DEFAULT_DELETE_TIME_BUDGET_MILLIS = 60 * 1000;
+	
+	public static final int            MAX_INSTANCE_IDS_PER_REQUEST = 1000;
+	public static final int            MAX_FILTER_VALUES = 200;
+	
+	private String                      _region;
+	private AmazonEC2AsyncClient		_amazonEC2;
 	
 	public EC2Client(CloudWatchScheduleEvent cloudWatchEvent)
 	{
-		_cloudWatchEvent = cloudWatchEvent;
-		createEC2Client(cloudWatchEvent.getRegion());
+		this(cloudWatchEvent.getRegion());
+	}
+	
+	public EC2Client(String region)
+	{
+		this(region, null);
 	}
 	
-	private void createEC2Client(String region)
+	/**
+	 * @param credentials e.g. an assumed-role session for another account, or null for the lambda execution role
+	 */
+	public EC2Client(String region, AWSCredentialsProvider credentials)
+	{
+		_region = region;
+		createEC2Client(region, credentials);
+	}
+	
+	private void createEC2Client(String region, AWSCredentialsProvider credentials)
 	{
 		if(StringUtils.isNullOrEmpty(region)) throw new RuntimeException("Region is blank, cannot create EC2 client.");
-		_amazonEC2 = new AmazonEC2Client();
-		_amazonEC2.configureRegion(Regions.fromName(region));
+		_amazonEC2 = AWSClientRegistry.ec2Async(region, credentials);
 	}
 	
 	public Instance describeInstance(String instanceId) 
 	{
-		System.out.println("Describing instance-id: " + instanceId + ", in region: " + _cloudWatchEvent.getRegion());
+		HandlerLog.sample(Level.INFO, "DescribeInstance", "instanceId", instanceId, "region", _region);
 		
 		DescribeInstancesRequest request = new DescribeInstancesRequest();
 		request.withInstanceIds(instanceId);
@@ -71,22 +101,213 @@ public class EC2Client
 		return instance;
 	}
 	
+	/**
+	 * Describes many instances with as few calls as possible: ids are de-duplicated and sent up to 1000 per 
+	 * DescribeInstances call, and every reservation and instance in each response is collected. 
+	 * Ids that no longer exist are skipped rather than failing the whole batch.
+	 */
+	public List<Instance> describeInstances(Collection<String> instanceIds)
+	{
+		return describeInstances(instanceIds, EC2Query.create());
+	}
+	
+	/**
+	 * As describeInstances(ids), but only returns the instances that also match the query, e.g. only those with a 
+	 * particular tag, so the rest are never sent back by EC2.
+	 */
+	public List<Instance> describeInstances(Collection<String> instanceIds, EC2Query query)
+	{
+		List<String> uniqueIds = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+		List<Instance> instances = new ArrayList<Instance>(uniqueIds.size());
+		if(!query.isEmpty())
+		{
+			describeInstancesByFilter(uniqueIds, query, instances);
+		}
+		else for(int from = 0; from < uniqueIds.size(); from += MAX_INSTANCE_IDS_PER_REQUEST)
+		{
+			List<String> batch = uniqueIds.subList(from, Math.min(uniqueIds.size(), from + MAX_INSTANCE_IDS_PER_REQUEST));
+			try {
+				collectInstances(_amazonEC2.describeInstances(new DescribeInstancesRequest().withInstanceIds(batch)), instances);
+			} catch (AmazonServiceException e) {
+				if(!"InvalidInstanceID.NotFound".equals(e.getErrorCode())) throw e;
+				describeInstancesByFilter(batch, query, instances);
+			}
+		}
+		HandlerMetrics.current().add("InstancesDescribed", instances.size());
+		HandlerLog.summary("InstancesDescribed", "described", instances.size(), "requested", uniqueIds.size(), "region", _region, 
+		                   "query", query.isEmpty() ? null : query);
+		return instances;
+	}
+	
+	/**
+	 * Unlike InstanceIds, an instance-id filter silently ignores ids that don't exist, at the cost of 
+	 * smaller batches (filters accept up to 200 values).
+	 */
+	private void describeInstancesByFilter(List<String> instanceIds, EC2Query query, List<Instance> instances)
+	{
+		for(int from = 0; from < instanceIds.size(); from += MAX_FILTER_VALUES)
+		{
+			List<String> batch = instanceIds.subList(from, Math.min(instanceIds.size(), from + MAX_FILTER_VALUES));
+			DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(query.copy().instanceIds(batch).toFilters());
+			String nextToken = null;
+			do
+			{
+				DescribeInstancesResult result = _amazonEC2.describeInstances(request.withNextToken(nextToken));
+				collectInstances(result, instances);
+				nextToken = result.getNextToken();
+			}
+			while(!StringUtils.isNullOrEmpty(nextToken));
+		}
+	}
+	
+	private void collectInstances(DescribeInstancesResult result, List<Instance> instances)
+	{
+		for(Reservation reservation : result.getReservations()) instances.addAll(reservation.getInstances());
+	}
+	
+	/**
+	 * Streams all instances matching the query page by page, following NextToken until exhausted.
+	 * 
+	 * @param pageSize MaxResults per DescribeInstances call, clamped to the API bounds of 5..1000
+	 * @return total number of instances scanned
+	 */
+	public int scanInstances(EC2Query query, int pageSize, InstancePageHandler handler)
+	{
+		return scanInstances(query, pageSize, Long.MAX_VALUE, handler);
+	}
+	
+	/**
+	 * As scanInstances(), but gives up before fetching the next page once the deadline has passed or the thread 
+	 * has been interrupted (see checkDeadline()).
+	 */
+	public int scanInstances(EC2Query query, int pageSize, long deadline, InstancePageHandler handler)
+	{
+		DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(query.toFilters())
+		                                       .withMaxResults(Math.max(MIN_VOLUME_PAGE_SIZE, Math.min(MAX_INSTANCE_IDS_PER_REQUEST, pageSize)));
+		int count = 0;
+		String nextToken = null;
+		do
+		{
+			checkDeadline(deadline);
+			DescribeInstancesResult result = _amazonEC2.describeInstances(request.withNextToken(nextToken));
+			List<Instance> page = new ArrayList<Instance>();
+			collectInstances(result, page);
+			count += page.size();
+			HandlerMetrics.current().add("InstancesScanned", page.size());
+			if(!page.isEmpty()) handler.handlePage(page);
+			nextToken = result.getNextToken();
+		}
+		while(!StringUtils.isNullOrEmpty(nextToken));
+		return count;
+	}
+	
+	/**
+	 * Stops work that has been given up on: a sweep that runs out of time cancels its task (and shuts its pool down)
+	 * but can't stop the thread, so long-running loops call this between steps to stop there instead of carrying 
+	 * on behind the handler's back.
+	 * 
+	 * @throws CancellationException if the deadline (epoch millis) has passed or the thread has been interrupted
+	 */
+	public static void checkDeadline(long deadline)
+	{
+		if(Thread.currentThread().isInterrupted()) throw new CancellationException("Interrupted");
+		if(System.currentTimeMillis() >= deadline) throw new CancellationException("Did not finish within the time budget");
+	}
+	
+	/**
+	 * @return names of all regions enabled for this account
+	 */
+	public List<String> describeEnabledRegions()
+	{
+		List<String> regions = new ArrayList<String>();
+		for(Region region : _amazonEC2.describeRegions().getRegions()) regions.add(region.getRegionName());
+		return regions;
+	}
+	
 	public void stopInstance(String instanceId)
 	{
-		System.out.println("***[NOTE] Stopping instance: " + instanceId + " ***");
+		HandlerLog.warn("StoppingInstance", "instanceId", instanceId, "region", _region);
 		StopInstancesRequest request = new StopInstancesRequest();
 		request.setInstanceIds(Arrays.asList(instanceId));
 		_amazonEC2.stopInstances(request);
 	}
 	
+	/**
+	 * @return the volume, or null if it no longer exists
+	 */
+	public Volume describeVolume(String volumeId)
+	{
+	    try {
+	        List<Volume> volumes = _amazonEC2.describeVolumes(new DescribeVolumesRequest().withVolumeIds(volumeId)).getVolumes();
+	        return volumes.isEmpty() ? null : volumes.get(0);
+	    } catch (AmazonServiceException e) {
+	        if(!"InvalidVolume.NotFound".equals(e.getErrorCode())) throw e;
+	        return null;
+	    }
+	}
+	
 	public List<Volume> describeAllDetachedVolumes()
+	{
+	    final List<Volume> volumes = new ArrayList<Volume>();
+	    scanDetachedVolumes(MAX_VOLUME_PAGE_SIZE, new VolumePageHandler() {
+	        public void handlePage(List<Volume> page) { volumes.addAll(page); }
+	    });
+	    return volumes;
+	}
+	
+	/**
+	 * Streams all detached (status=available) volumes page by page, following NextToken until exhausted.
+	 * Only a single page is held at a time, so memory stays flat regardless of account size.
+	 * 
+	 * @param pageSize MaxResults per DescribeVolumes call, clamped to the API bounds of 5..500
+	 * @return total number of volumes scanned
+	 */
+	public int scanDetachedVolumes(int pageSize, VolumePageHandler handler)
+	{
+	    return scanVolumes(EC2Query.detachedVolumes(), pageSize, Long.MAX_VALUE, handler);
+	}
+	
+	/**
+	 * As scanDetachedVolumes(), but gives up before fetching the next page once the deadline has passed or the 
+	 * thread has been interrupted (see checkDeadline()).
+	 */
+	public int scanDetachedVolumes(int pageSize, long deadline, VolumePageHandler handler)
+	{
+	    return scanVolumes(EC2Query.detachedVolumes(), pageSize, deadline, handler);
+	}
+	
+	/**
+	 * As scanDetachedVolumes(), for any volumes matching the query.
+	 */
+	public int scanVolumes(EC2Query query, int pageSize, VolumePageHandler handler)
+	{
+	    return scanVolumes(query, pageSize, Long.MAX_VALUE, handler);
+	}
+	
+	public int scanVolumes(EC2Query query, int pageSize, long deadline, VolumePageHandler handler)
 	{
 	    DescribeVolumesRequest volumeRequest = new DescribeVolumesRequest();
-	    Filter filter = new Filter();
-	    filter.withName("status").withValues("available");
-	    volumeRequest.withFilters(filter);
-	    DescribeVolumesResult volumeResult =_amazonEC2.describeVolumes(volumeRequest);
-	    return volumeResult.getVolumes();
+	    volumeRequest.withFilters(query.toFilters()).withMaxResults(clampVolumePageSize(pageSize));
+	    
+	    int count = 0;
+	    String nextToken = null;
+	    do
+	    {
+	        checkDeadline(deadline);
+	        DescribeVolumesResult volumeResult = _amazonEC2.describeVolumes(volumeRequest.withNextToken(nextToken));
+	        List<Volume> page = volumeResult.getVolumes();
+	        count += page.size();
+	        HandlerMetrics.current().add("VolumesScanned", page.size());
+	        if(!page.isEmpty()) handler.handlePage(page);
+	        nextToken = volumeResult.getNextToken();
+	    }
+	    while(!StringUtils.isNullOrEmpty(nextToken));
+	    return count;
+	}
+	
+	private int clampVolumePageSize(int pageSize)
+	{
+	    return Math.max(MIN_VOLUME_PAGE_SIZE, Math.min(MAX_VOLUME_PAGE_SIZE, pageSize));
 	}
 	
 	public void tagResource(String resourceId, Tag tag)
@@ -103,16 +324,114 @@ public class EC2Client
 	    _amazonEC2.deleteTags(tagRequest);
 	}
 	
-	public void deleteVolumes(List<String> volumeIds)
+	/**
+	 * Applies the same tag to many resources using as few CreateTags calls as possible (up to 1000 ids per call).
+	 * A failed batch is logged and skipped so the remaining batches still go through.
+	 * 
+	 * @return number of resources successfully tagged
+	 */
+	public int tagResources(List<String> resourceIds, Tag tag)
+	{
+	    return AsyncCalls.join(tagResourcesAsync(resourceIds, tag));
+	}
+	
+	/**
+	 * As tagResources(), with the CreateTags calls sent concurrently (see AsyncCalls) and without waiting for them.
+	 */
+	public CompletableFuture<Integer> tagResourcesAsync(List<String> resourceIds, Tag tag)
+	{
+	    return applyTagAsync(resourceIds, tag, false);
+	}
+	
+	/**
+	 * Removes a tag from many resources using DeleteTags calls of up to 1000 ids each. A failed batch is logged 
+	 * and skipped so the remaining batches still go through.
+	 * 
+	 * @return number of resources successfully untagged
+	 */
+	public int untagResources(List<String> resourceIds, Tag tag)
+	{
+	    return AsyncCalls.join(untagResourcesAsync(resourceIds, tag));
+	}
+	
+	public CompletableFuture<Integer> untagResourcesAsync(List<String> resourceIds, Tag tag)
+	{
+	    return applyTagAsync(resourceIds, tag, true);
+	}
+	
+	/**
+	 * @return number of resources successfully (un)tagged, once every batch has completed
+	 */
+	private CompletableFuture<Integer> applyTagAsync(List<String> resourceIds, final Tag tag, final boolean untag)
+	{
+	    final List<CompletableFuture<Integer>> batches = new ArrayList<CompletableFuture<Integer>>();
+	    for(int from = 0; from < resourceIds.size(); from += MAX_TAG_RESOURCES_PER_REQUEST)
+	    {
+	        final List<String> batch = new ArrayList<String>(resourceIds.subList(from, Math.min(resourceIds.size(), from + MAX_TAG_RESOURCES_PER_REQUEST)));
+	        CompletableFuture<?> call;
+	        if(untag) call = AsyncCalls.<DeleteTagsRequest, DeleteTagsResult>call(_amazonEC2::deleteTagsAsync, new DeleteTagsRequest().withResources(batch).withTags(tag));
+	        else call = AsyncCalls.<CreateTagsRequest, CreateTagsResult>call(_amazonEC2::createTagsAsync, new CreateTagsRequest().withResources(batch).withTags(tag));
+	        batches.add(call.handle((result, error) -> {
+	            if(error == null) return batch.size();
+	            RuntimeException cause = AsyncCalls.unwrap(error);
+	            if(!(cause instanceof AmazonServiceException)) throw cause;
+	            AmazonServiceException e = (AmazonServiceException) cause;
+	            HandlerLog.warn(untag ? "UntagBatchFailed" : "TagBatchFailed", "resources", batch.size(), "firstResource", batch.get(0), 
+	                            "tag", tag.getKey(), "errorCode", e.getErrorCode(), "error", e.getErrorMessage());
+	            return 0;
+	        }));
+	    }
+	    return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).thenApply(done -> {
+	        int succeeded = 0;
+	        for(CompletableFuture<Integer> batch : batches) succeeded += batch.join();
+	        return succeeded;
+	    });
+	}
+	
+	public VolumeDeletionResult deleteVolumes(List<String> volumeIds)
+	{
+	    return deleteVolumes(volumeIds, VolumeDeleter.DEFAULT_CONCURRENCY, DEFAULT_DELETE_TIME_BUDGET_MILLIS);
+	}
+	
+	/**
+	 * Deletes volumes concurrently, recording success or failure per volume rather than stopping at the first error.
+	 * 
+	 * @param concurrency maximum number of DeleteVolume calls in flight
+	 * @param timeBudgetMillis no new deletes are attempted once this much time has elapsed
+	 */
+	public VolumeDeletionResult deleteVolumes(List<String> volumeIds, int concurrency, long timeBudgetMillis)
 	{
-	    if(volumeIds == null || volumeIds.isEmpty()) return;
+	    if(volumeIds == null || volumeIds.isEmpty()) return new VolumeDeletionResult();
 	    
-	    System.out.println("Deleting " + volumeIds.size() + " Volumes.");
-	    for(String volumeId : volumeIds)
+	    HandlerLog.info("DeletingVolumes", "volumes", volumeIds.size(), "region", _region);
+	    VolumeDeletionResult result = new VolumeDeleter(_amazonEC2, concurrency, timeBudgetMillis).deleteVolumes(volumeIds);
+	    if(HandlerLog.isEnabled(Level.DEBUG))
 	    {
-	        System.out.println("Deleting EBS volume: " + volumeId);
-	        _amazonEC2.deleteVolume(new DeleteVolumeRequest(volumeId));
+	        for(String volumeId : result.getDeletedVolumeIds()) HandlerLog.sample(Level.DEBUG, "VolumeDeleted", "volumeId", volumeId);
 	    }
+	    for(Map.Entry<String, String> failure : result.getFailedVolumes().entrySet())
+	    {
+	        HandlerLog.sample(Level.WARN, "VolumeDeleteFailed", "volumeId", failure.getKey(), "error", failure.getValue());
+	    }
+	    HandlerLog.summary("VolumesDeleted", "deleted", result.getDeletedVolumeIds().size(), "requested", volumeIds.size(), 
+	                       "failed", result.getFailedVolumes().size(), "region", _region);
+	    return result;
+	}
+	
+	/**
+	 * Callback for paginated scans, invoked once per page of results as it arrives.
+	 */
+	public interface VolumePageHandler
+	{
+	    void handlePage(List<Volume> volumes);
+	}
+	
+	/**
+	 * Callback for paginated instance scans, invoked once per page of results as it arrives.
+	 */
+	public interface InstancePageHandler
+	{
+	    void handlePage(List<Instance> instances);
 	}
 	
 	public static class EC2InstanceStateChangeEvent extends CloudWatchScheduleEvent 
@@ -121,6 +440,147 @@ public class EC2Client
 		    Map<String, String> detail = getDetail();
 			return detail != null ? detail.get("instance-id") : null;
 		}
+		
+		public String getState() {
+		    Map<String, String> detail = getDetail();
+		    return detail != null ? detail.get("state") : null;
+		}
+	}
+	
+	/**
+	 * A batch of state change events delivered in one invocation, e.g. relayed from an SQS queue in batches.
+	 * Events are expected in the order they occurred.
+	 */
+	public static class EC2InstanceStateChangeEventBatch
+	{
+	    private List<EC2InstanceStateChangeEvent> events;
+	    
+	    public List<EC2InstanceStateChangeEvent> getEvents() {
+	        return events;
+	    }
+	    
+	    public void setEvents(List<EC2InstanceStateChangeEvent> events) {
+	        this.events = events;
+	    }
+	}
+	
+	/**
+	 * An EC2 API call recorded by CloudTrail and delivered by CloudWatch Events ("AWS API Call via CloudTrail"), e.g. 
+	 * AttachVolume. Only the parts the volume handlers need are kept from detail; requestParameters and 
+	 * responseElements are bound as generic maps, as their shape differs per call.
+	 */
+	public static class VolumeAPICallEvent
+	{
+	    private String id;
+	    private String region;
+	    private String account;
+	    private String time;
+	    
+	    private VolumeAPICallDetail detail;
+	    
+	    public String getId() {
+	        return id;
+	    }
+	    
+	    public void setId(String id) {
+	        this.id = id;
+	    }
+	    
+	    public String getRegion() {
+	        return region;
+	    }
+	    
+	    public void setRegion(String region) {
+	        this.region = region;
+	    }
+	    
+	    public String getAccount() {
+	        return account;
+	    }
+	    
+	    public void setAccount(String account) {
+	        this.account = account;
+	    }
+	    
+	    /**
+	     * @return when the call was made, e.g. 2016-08-04T18:05:12Z
+	     */
+	    public String getTime() {
+	        return time;
+	    }
+	    
+	    public void setTime(String time) {
+	        this.time = time;
+	    }
+	    
+	    public VolumeAPICallDetail getDetail() {
+	        return detail;
+	    }
+	    
+	    public void setDetail(VolumeAPICallDetail detail) {
+	        this.detail = detail;
+	    }
+	    
+	    public String getEventName() {
+	        return detail != null ? detail.getEventName() : null;
+	    }
+	    
+	    /**
+	     * @return the failed call's error code, or null if the call succeeded
+	     */
+	    public String getErrorCode() {
+	        return detail != null ? detail.getErrorCode() : null;
+	    }
+	    
+	    /**
+	     * @return the volume the call was about: from the response for CreateVolume, from the request otherwise
+	     */
+	    public String getVolumeId() {
+	        if(detail == null) return null;
+	        Object volumeId = detail.getResponseElements() != null ? detail.getResponseElements().get("volumeId") : null;
+	        if(volumeId == null && detail.getRequestParameters() != null) volumeId = detail.getRequestParameters().get("volumeId");
+	        return volumeId instanceof String ? (String) volumeId : null;
+	    }
+	}
+	
+	public static class VolumeAPICallDetail
+	{
+	    private String eventName;
+	    private String errorCode;
+	    private Map<String, Object> requestParameters;
+	    private Map<String, Object> responseElements;
+	    
+	    public String getEventName() {
+	        return eventName;
+	    }
+	    
+	    public void setEventName(String eventName) {
+	        this.eventName = eventName;
+	    }
+	    
+	    public String getErrorCode() {
+	        return errorCode;
+	    }
+	    
+	    public void setErrorCode(String errorCode) {
+	        this.errorCode = errorCode;
+	    }
+	    
+	    public Map<String, Object> getRequestParameters() {
+	        return requestParameters;
+	    }
+	    
+	    public void setRequestParameters(Map<String, Object> requestParameters) {
+	        this.requestParameters = requestParameters;
+	    }
+	    
+	    public Map<String, Object> getResponseElements() {
+	        return responseElements;
+	    }
+	    
+	    public void setResponseElements(Map<String, Object> responseElements) {
+	        this.responseElements = responseElements;
+	    }
 	}
 	
 	public static class CloudWatchScheduleEvent
@@ -1,23 +1,37 @@
 package com.sheraz.aws.lambda;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import com.amazonaws.regions.Regions;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.sheraz.aws.lambda.CrossAccountSweep.AccountReport;
+import com.sheraz.aws.lambda.CrossAccountSweep.AccountTask;
+import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
 import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEventBatch;
+import com.sheraz.aws.lambda.EC2Client.InstancePageHandler;
+import com.sheraz.aws.lambda.HandlerLog.Level;
+import com.sheraz.aws.lambda.HandlerPrimer.Service;
 
 /**
  * This lambda enabled class is responsible for enforcing a "Tag or stop" policy.
  * A courtesy email will be sent to the owner and cloud-services team.
  * 
- * The following tag rules are enforced:
+ * The tag rules are defined in tag-policy.properties (see TagPolicy), by default:
  * 
- * - Ensure tags are present: PO_Number, Application_Name, Owner, Approver 
- * - If Cost_Center is present convert to PO_Number
+ * - Ensure tags are present: PO_Number, Application_Name, Owner, Approver, Name 
+ * - Cost_Center is accepted in place of PO_Number
  * 
  * Improvements: 
  * 
@@ -30,25 +44,35 @@ public class EC2InstanceTagComplianceChecker
 {
 	
 	private static final String SNS_TOPIC_NAME = "Lambda-EC2InstanceTagCompliance";
-	private static final long   WAIT_DURATION = 5 * 1000; 
-	
-	private static final String PO_NUMBER = "PO_Number";
-	private static final String COST_CENTER = "Cost_Center";
-	private static final String APPLICATION_NAME = "Application_Name";
-	private static final String APPROVER = "Approver";
-	private static final String OWNER = "Owner";
-	private static final String NAME = "Name";
+	private static final long   INITIAL_RECHECK_DELAY = 250;
+	private static final long   MAX_RECHECK_DELAY = 1000;
+	private static final long   POST_TAGGING_DEADLINE = 1500;
+	private static final int    INSTANCE_PAGE_SIZE = 1000;
+	private static final long   NOTIFICATION_TIME_RESERVE_MILLIS = 15 * 1000;
+	private static final long   DEFAULT_SCAN_TIME_BUDGET_MILLIS = 60 * 1000;
+	private static final String NOTIFICATION_FOOTER = "With love from the Cloud Services team! :)\n";
 	
+	private final TagPolicy             _tagPolicy = TagPolicy.getDefault();
+	private final NotificationPublisher _publisher = new NotificationPublisher();
 	private EC2InstanceStateChangeEvent _runInstanceEvent;
 	private List<String>                _messages;    			  
 	
+	static {
+		HandlerPrimer.prime("EC2InstanceTagComplianceChecker", Service.EC2, Service.SNS, Service.STS);
+	}
+	
 	public void handleEC2InstanceTagCompliance(EC2InstanceStateChangeEvent event)
 	{
-		System.out.println("Handling event id: " + event.getId());
-		performInit(event);
-		waitForAnyPostTaggingToComplete();
-		EC2Client ec2Client = createEC2Client(event);
-		processTagOrStopInstancePolicy(ec2Client, event.getInstanceId());
+		HandlerMetrics metrics = HandlerMetrics.start("EC2InstanceTagComplianceChecker.handleEC2InstanceTagCompliance");
+		try {
+			HandlerLog.info("HandlingEvent", "eventId", event.getId(), "instanceId", event.getInstanceId());
+			performInit(event);
+			EC2Client ec2Client = createEC2Client(event);
+			processTagOrStopInstancePolicy(ec2Client, event.getInstanceId());
+		} finally {
+			_publisher.flush();
+			metrics.finish();
+		}
 	}
 	
 	private void performInit(EC2InstanceStateChangeEvent event)
@@ -57,87 +81,298 @@ public class EC2InstanceTagComplianceChecker
 		_messages = new ArrayList<String>();
 	}
 	
-	private void waitForAnyPostTaggingToComplete()
-	{
-		try {
-			Thread.sleep(WAIT_DURATION);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
-	}
-	
 	private EC2Client createEC2Client(EC2InstanceStateChangeEvent event)
 	{
 		return new EC2Client(event);
 	}
 	
+	/**
+	 * Tags are often applied right after launch (e.g. by CloudFormation or a launch script), so rather than waiting a 
+	 * fixed amount of time up front, check straight away and re-check with exponential backoff only while tags are 
+	 * still missing. Compliant instances cost a single describe call and no waiting at all; a non-compliant one is 
+	 * re-checked at most twice within POST_TAGGING_DEADLINE (1.5s, against the old fixed 5s sleep) and then reported.
+	 */
 	private void processTagOrStopInstancePolicy(EC2Client ec2Client, String instanceId)
 	{
+		long deadline = System.currentTimeMillis() + POST_TAGGING_DEADLINE;
+		long delay = INITIAL_RECHECK_DELAY;
 		Instance instance = ec2Client.describeInstance(instanceId);
-		List<Tag> tags = instance.getTags();
+		boolean compliant = checkRequiredTagsArePresent(instance.getTags(), _messages);
+		while(! compliant && System.currentTimeMillis() + delay < deadline)
+		{
+			waitForPostTagging(delay);
+			delay = Math.min(delay * 2, MAX_RECHECK_DELAY);
+			_messages.clear();
+			instance = ec2Client.describeInstance(instanceId);
+			compliant = checkRequiredTagsArePresent(instance.getTags(), _messages);
+		}
 		
-		if(! checkRequiredTagsArePresent(tags))
+		if(! compliant)
 		{
+			HandlerMetrics.current().increment("NonCompliantInstances");
 			//ec2Client.stopInstance(instanceId); // TODO: temporarily remove this. Should schedule for stopping at future date via tags
-			notifyOwners(instanceId, tags);
-			logMessages(_messages);
+			notifyOwners(instanceId, instance.getTags());
+			logMessages(instanceId, _messages);
+		}
+	}
+	
+	private void waitForPostTagging(long delay)
+	{
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 	}
 	
-	private boolean checkRequiredTagsArePresent(List<Tag> tags)
+	private boolean checkRequiredTagsArePresent(List<Tag> tags, List<String> messages)
 	{
-		return ( hasPOTag(tags) & hasTag(tags, APPLICATION_NAME) & 
-				 hasTag(tags, APPROVER) & hasTag(tags, OWNER) & hasTag(tags, NAME) );
+		if(_tagPolicy.isCompliant(_tagPolicy.matchMask(tags))) return true;
+		messages.addAll(_tagPolicy.match(tags).getViolations());
+		return false;
 	}
 	
-	private boolean hasPOTag(List<Tag> tags)
+	private void notifyOwners(String instanceId, List<Tag> tags)
 	{
-	    return hasTag(tags, PO_NUMBER) || hasTag(tags, COST_CENTER);
+		_publisher.publish(_runInstanceEvent.getRegion(), SNS_TOPIC_NAME, 
+		                   "ALERT: EC2 instance [" + instanceId + "] has non-compliant tagging", createNotificationMessages(tags));
 	}
 	
-	private boolean hasTag(List<Tag> tags, String tagKeyToCheck)
+	private List<String> createNotificationMessages(List<Tag> tags)
 	{
+		String header = "As a curtosy, the EC2 instance with id [" + _runInstanceEvent.getInstanceId() 
+		              + "] was NOT prevented from being started, but the tags are non-compliant and need to be corrected.\n\n";
+		DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, header, NOTIFICATION_FOOTER);
+		
+		digest.addEntry("Currently the tags look like: \n\n");
 		for(Tag tag : tags)
 		{
-			String key = tag.getKey().trim();
-			String value = tag.getValue() != null ? tag.getValue().trim() : "";
-			if(key.equals(tagKeyToCheck) && value.length() > 0) return true;
+			digest.entry().append(tag.getKey()).append(": ").append(tag.getValue()).append("\n");
+			digest.endEntry();
 		}
-		_messages.add("Please provide missing tag: " + tagKeyToCheck);
-		return false;
+		
+		digest.addEntry("\nPlease correct the following tag requirements:\n\n");
+		for(String error : _messages)
+		{
+			digest.entry().append(" * ").append(error).append("\n");
+			digest.endEntry();
+		}
+		digest.addEntry("\n");
+		return digest.render("tag-compliance-" + _runInstanceEvent.getInstanceId(), DigestRenderer.sinkFromEnvironment());
 	}
 	
-	private void notifyOwners(String instanceId, List<Tag> tags)
+	/**
+	 * Batch variant: checks every instance referenced by the batch with a few DescribeInstances calls per region
+	 * (up to 1000 ids each), re-checks only the still non-compliant instances with the same backoff and deadline as the
+	 * single instance handler, and sends one digest notification per region rather than one per instance.
+	 */
+	public void handleEC2InstanceTagComplianceBatch(EC2InstanceStateChangeEventBatch batch)
 	{
-		AmazonSNSClient sns = new AmazonSNSClient();
-		sns.configureRegion(Regions.fromName(_runInstanceEvent.getRegion())); 
-		
-		CreateTopicResult topicResult = sns.createTopic(SNS_TOPIC_NAME);
-		sns.publish(topicResult.getTopicArn(), createNotificationMessage(tags), "ALERT: EC2 instance [" + instanceId + "] has non-compliant tagging");
-		System.out.println("Email notification has been sent to SNS topic: " + SNS_TOPIC_NAME);
+		HandlerMetrics metrics = HandlerMetrics.start("EC2InstanceTagComplianceChecker.handleEC2InstanceTagComplianceBatch");
+		try {
+			List<EC2InstanceStateChangeEvent> events = batch.getEvents();
+			if(events == null || events.isEmpty()) return;
+			
+			Map<String, Set<String>> instanceIdsByRegion = new LinkedHashMap<String, Set<String>>();
+			for(EC2InstanceStateChangeEvent event : events)
+			{
+				if(event.getInstanceId() == null) continue;
+				Set<String> instanceIds = instanceIdsByRegion.get(event.getRegion());
+				if(instanceIds == null)
+				{
+					instanceIds = new LinkedHashSet<String>();
+					instanceIdsByRegion.put(event.getRegion(), instanceIds);
+				}
+				instanceIds.add(event.getInstanceId());
+			}
+			long deadline = System.currentTimeMillis() + POST_TAGGING_DEADLINE;
+			for(Map.Entry<String, Set<String>> entry : instanceIdsByRegion.entrySet())
+			{
+				processTagPolicyForInstances(entry.getKey(), entry.getValue(), deadline);
+			}
+		} finally {
+			_publisher.flush();
+			metrics.finish();
+		}
 	}
 	
-	private String createNotificationMessage(List<Tag> tags)
+	/**
+	 * @param deadline shared by every region in the batch, so a batch never waits longer than a single instance would
+	 */
+	private void processTagPolicyForInstances(String region, Set<String> instanceIds, long deadline)
 	{
-		StringBuffer msg = new StringBuffer();
-		msg.append("As a curtosy, the EC2 instance with id [")
-		   .append(_runInstanceEvent.getInstanceId())
-		   .append("] was NOT prevented from being started, but the tags are non-compliant and need to be corrected.\n\n");
-		
-		msg.append("Currently the tags look like: \n\n");
-		for(Tag tag : tags) msg.append(tag.getKey() + ": " + tag.getValue()).append("\n");
+		EC2Client ec2Client = new EC2Client(region);
+		long delay = INITIAL_RECHECK_DELAY;
+		Map<String, NonCompliantInstance> nonCompliant = findNonCompliantInstances(ec2Client.describeInstances(instanceIds));
+		while(! nonCompliant.isEmpty() && System.currentTimeMillis() + delay < deadline)
+		{
+			waitForPostTagging(delay);
+			delay = Math.min(delay * 2, MAX_RECHECK_DELAY);
+			nonCompliant = findNonCompliantInstances(ec2Client.describeInstances(nonCompliant.keySet()));
+		}
 		
-		msg.append("\nPlease correct the following tag requirements:\n\n");
-		for(String error : _messages) msg.append(" * ").append(error).append("\n");
+		HandlerLog.summary("InstancesChecked", "region", region, "checked", instanceIds.size(), "nonCompliant", nonCompliant.size());
+		HandlerMetrics.current().add("NonCompliantInstances", nonCompliant.size());
+		if(! nonCompliant.isEmpty()) notifyOwnersDigest(region, nonCompliant.values());
+	}
+	
+	private Map<String, NonCompliantInstance> findNonCompliantInstances(List<Instance> instances)
+	{
+		Map<String, NonCompliantInstance> nonCompliant = new LinkedHashMap<String, NonCompliantInstance>();
+		for(Instance instance : instances)
+		{
+			if(_tagPolicy.isCompliant(_tagPolicy.matchMask(instance.getTags()))) continue;
+			List<String> messages = new ArrayList<String>();
+			checkRequiredTagsArePresent(instance.getTags(), messages);
+			nonCompliant.put(instance.getInstanceId(), new NonCompliantInstance(instance, messages));
+		}
+		return nonCompliant;
+	}
+	
+	private void notifyOwnersDigest(String region, Collection<NonCompliantInstance> instances)
+	{
+		_publisher.publish(region, SNS_TOPIC_NAME, "ALERT: " + instances.size() + " EC2 instances have non-compliant tagging (" + region + ")", 
+		                   createDigestNotificationMessages(region, instances));
+	}
+	
+	private List<String> createDigestNotificationMessages(String region, Collection<NonCompliantInstance> instances)
+	{
+		String header = "As a curtosy, the following EC2 instances in " + region 
+		              + " were NOT prevented from being started, but their tags are non-compliant and need to be corrected.\n\n";
+		DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, header, NOTIFICATION_FOOTER);
+		appendNonCompliantInstances(digest, instances);
+		return digest.render("tag-compliance-" + region + "-" + System.currentTimeMillis(), DigestRenderer.sinkFromEnvironment());
+	}
+	
+	/**
+	 * Fleet-wide scan: evaluates the tag policy against every running instance in the event's region of every 
+	 * target account (see CrossAccountSweep), a bounded number of accounts at a time through an assumed role, 
+	 * and sends a single digest with one section per account.
+	 */
+	public void handleCrossAccountTagComplianceScan(final CloudWatchScheduleEvent event, Context context)
+	{
+		HandlerMetrics metrics = HandlerMetrics.start("EC2InstanceTagComplianceChecker.handleCrossAccountTagComplianceScan");
+		try {
+			long budget = context == null ? DEFAULT_SCAN_TIME_BUDGET_MILLIS 
+			                              : Math.max(0, context.getRemainingTimeInMillis() - NOTIFICATION_TIME_RESERVE_MILLIS);
+			CrossAccountSweep accountSweep = CrossAccountSweep.fromEnvironment();
+			if(accountSweep.getAccounts().isEmpty())
+			{
+				HandlerLog.warn("NoTargetAccounts", "variable", CrossAccountSweep.TARGET_ACCOUNTS_ENV);
+				return;
+			}
+			
+			List<AccountReport<Collection<NonCompliantInstance>>> reports = accountSweep.run(new AccountTask<Collection<NonCompliantInstance>>() {
+				public Collection<NonCompliantInstance> run(String account, AWSCredentialsProvider credentials, long deadline) {
+					return scanRunningInstances(new EC2Client(event.getRegion(), credentials), account, deadline);
+				}
+			}, System.currentTimeMillis() + budget);
+			
+			int nonCompliantCount = 0;
+			boolean activity = false;
+			for(AccountReport<Collection<NonCompliantInstance>> report : reports)
+			{
+				if(report.getError() != null) activity = true;
+				else nonCompliantCount += report.getResult().size();
+			}
+			if(nonCompliantCount == 0 && !activity) return;
+			
+			_publisher.publish(event.getRegion(), SNS_TOPIC_NAME, 
+			                   "ALERT: " + nonCompliantCount + " EC2 instances have non-compliant tagging across " + reports.size() 
+			                   + " accounts (" + event.getRegion() + ")", 
+			                   createCrossAccountDigestNotificationMessages(event.getRegion(), reports));
+			_publisher.flush();
+		} finally {
+			metrics.finish();
+		}
+	}
+	
+	/*
+	 * Stream entry points: the same handlers for deploying as <method>Stream, with the event read straight off the
+	 * input by CloudWatchEventParser rather than bound by the runtime's reflection-based Jackson.
+	 */
+	
+	public void handleEC2InstanceTagComplianceStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleEC2InstanceTagCompliance(CloudWatchEventParser.parseStateChangeEvent(input));
+	}
+	
+	public void handleEC2InstanceTagComplianceBatchStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleEC2InstanceTagComplianceBatch(CloudWatchEventParser.parseStateChangeEventBatch(input));
+	}
+	
+	public void handleCrossAccountTagComplianceScanStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleCrossAccountTagComplianceScan(CloudWatchEventParser.parseScheduleEvent(input), context);
+	}
+	
+	/**
+	 * Stops between pages once the account's deadline passes or its task is cancelled, so an account reported as 
+	 * timed out doesn't keep scanning after the handler has moved on.
+	 */
+	private Collection<NonCompliantInstance> scanRunningInstances(EC2Client ec2Client, String account, long deadline)
+	{
+		final Map<String, NonCompliantInstance> nonCompliant = new LinkedHashMap<String, NonCompliantInstance>();
+		int scanned = ec2Client.scanInstances(EC2Query.create().instanceState("running"), INSTANCE_PAGE_SIZE, deadline, new InstancePageHandler() {
+			public void handlePage(List<Instance> instances) {
+				nonCompliant.putAll(findNonCompliantInstances(instances));
+			}
+		});
+		HandlerLog.summary("InstancesChecked", "account", account, "checked", scanned, "nonCompliant", nonCompliant.size());
+		HandlerMetrics.current().add("NonCompliantInstances", nonCompliant.size());
+		return nonCompliant.values();
+	}
+	
+	private List<String> createCrossAccountDigestNotificationMessages(String region, List<AccountReport<Collection<NonCompliantInstance>>> reports)
+	{
+		String header = "The following running EC2 instances in " + region + " have non-compliant tags that need to be corrected.\n\n";
+		DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, header, NOTIFICATION_FOOTER);
+		for(AccountReport<Collection<NonCompliantInstance>> report : reports)
+		{
+			digest.addEntry("##### Account: " + report.getAccount() + " #####\n\n");
+			if(report.getError() != null) digest.addEntry("Scan did not complete: " + report.getError() + "\n\n");
+			else if(report.getResult().isEmpty()) digest.addEntry("All running instances are compliant.\n\n");
+			else appendNonCompliantInstances(digest, report.getResult());
+		}
+		return digest.render("tag-compliance-cross-account-" + region + "-" + System.currentTimeMillis(), DigestRenderer.sinkFromEnvironment());
+	}
+	
+	/**
+	 * One entry per instance, so an instance's tags and violations always stay together in one part.
+	 */
+	private void appendNonCompliantInstances(DigestRenderer digest, Collection<NonCompliantInstance> instances)
+	{
+		for(NonCompliantInstance instance : instances)
+		{
+			StringBuilder entry = digest.entry();
+			entry.append("Instance [").append(instance.instanceId).append("]\n");
+			entry.append("Currently the tags look like: ");
+			for(Tag tag : instance.tags) entry.append('{').append(tag.getKey()).append(": ").append(tag.getValue()).append("} ");
+			entry.append('\n');
+			for(String error : instance.messages) entry.append(" * ").append(error).append('\n');
+			entry.append('\n');
+			digest.endEntry();
+		}
+	}
+	
+	private static final class NonCompliantInstance
+	{
+		final String       instanceId;
+		final List<Tag>    tags;
+		final List<String> messages;
 		
-		msg.append("\nWith love from the Cloud Services team! :)\n");	
-        
-		return msg.toString();
+		NonCompliantInstance(Instance instance, List<String> messages)
+		{
+			this.instanceId = instance.getInstanceId();
+			this.tags = instance.getTags();
+			this.messages = messages;
+		}
 	}
 	
-	private void logMessages(List<String> messages)
+	private void logMessages(String instanceId, List<String> messages)
 	{
-		for(String msg : messages) System.out.println(msg);
+		for(String msg : messages) HandlerLog.sample(Level.INFO, "TagPolicyViolation", "instanceId", instanceId, "violation", msg);
 	}
 	
 }
@@ -0,0 +1,187 @@
+package com.sheraz.aws.lambda;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.model.Filter;
+
+/**
+ * Builds the server-side Filters for Describe* calls, so EC2 only returns the resources a handler is going to act on
+ * instead of everything in the region being downloaded, parsed and then discarded in Java.
+ *
+ * Different filters must all match; the values of one filter are alternatives. Values may use the EC2 wildcards
+ * '*' and '?', and are matched case-sensitively.
+ *
+ *     EC2Query.detachedVolumes().tagKey("lambda:DetachedVolumeJanitor:delete-scheduled-on")
+ *     EC2Query.create().instanceState("running").tag("Name", "lx238*").vpc("vpc-1a2b3c4d")
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class EC2Query
+{
+    private final Map<String, Set<String>> _filters = new LinkedHashMap<String, Set<String>>();
+
+    private EC2Query() {}
+
+    public static EC2Query create()
+    {
+        return new EC2Query();
+    }
+
+    /**
+     * Volumes that aren't attached to any instance (status=available).
+     */
+    public static EC2Query detachedVolumes()
+    {
+        return create().volumeStatus("available");
+    }
+
+    /**
+     * Adds values to the named filter; calling it again for the same name widens the filter rather than replacing it.
+     */
+    public EC2Query where(String name, Collection<String> values)
+    {
+        if(values.isEmpty()) throw new IllegalArgumentException("Filter " + name + " needs at least one value");
+        Set<String> existing = _filters.get(name);
+        if(existing == null)
+        {
+            existing = new LinkedHashSet<String>();
+            _filters.put(name, existing);
+        }
+        existing.addAll(values);
+        if(existing.size() > EC2Client.MAX_FILTER_VALUES)
+        {
+            throw new IllegalArgumentException("Filter " + name + " has " + existing.size() + " values, EC2 accepts at most " + EC2Client.MAX_FILTER_VALUES);
+        }
+        return this;
+    }
+
+    public EC2Query where(String name, String... values)
+    {
+        return where(name, Arrays.asList(values));
+    }
+
+    /**
+     * Resources that have the tag, whatever its value.
+     */
+    public EC2Query tagKey(String... keys)
+    {
+        return where("tag-key", keys);
+    }
+
+    public EC2Query tag(String key, String... values)
+    {
+        return where("tag:" + key, values);
+    }
+
+    /**
+     * Tag values starting with the prefix, ignoring the case of its letters (every case variant becomes a value,
+     * so keep the prefix short).
+     */
+    public EC2Query tagPrefixIgnoreCase(String key, String prefix)
+    {
+        List<String> variants = new ArrayList<String>();
+        variants.add("");
+        for(char c : prefix.toCharArray())
+        {
+            char lower = Character.toLowerCase(c), upper = Character.toUpperCase(c);
+            List<String> next = new ArrayList<String>(variants.size() * 2);
+            for(String variant : variants)
+            {
+                next.add(variant + lower);
+                if(upper != lower) next.add(variant + upper);
+            }
+            variants = next;
+        }
+        for(int i = 0; i < variants.size(); i++) variants.set(i, variants.get(i) + "*");
+        return where("tag:" + key, variants);
+    }
+
+    public EC2Query instanceIds(Collection<String> instanceIds)
+    {
+        return where("instance-id", instanceIds);
+    }
+
+    /**
+     * @param states e.g. pending, running, shutting-down, terminated, stopping, stopped
+     */
+    public EC2Query instanceState(String... states)
+    {
+        return where("instance-state-name", states);
+    }
+
+    /**
+     * @param statuses e.g. creating, available, in-use, deleting, deleted, error
+     */
+    public EC2Query volumeStatus(String... statuses)
+    {
+        return where("status", statuses);
+    }
+
+    public EC2Query vpc(String... vpcIds)
+    {
+        return where("vpc-id", vpcIds);
+    }
+
+    /**
+     * Instances launched on the given UTC date.
+     */
+    public EC2Query launchedOn(LocalDate date)
+    {
+        return where("launch-time", date + "*");
+    }
+
+    /**
+     * Instances launched on any UTC date from one date to another, both inclusive. launch-time only supports
+     * wildcards, not ranges, so each day becomes one filter value.
+     */
+    public EC2Query launchedBetween(LocalDate from, LocalDate to)
+    {
+        List<String> days = new ArrayList<String>();
+        for(LocalDate day = from; !day.isAfter(to); day = day.plusDays(1))
+        {
+            if(days.size() == EC2Client.MAX_FILTER_VALUES) throw new IllegalArgumentException("Launch time range " + from + ".." + to + " is too long");
+            days.add(day + "*");
+        }
+        return where("launch-time", days);
+    }
+
+    public boolean isEmpty()
+    {
+        return _filters.isEmpty();
+    }
+
+    public List<Filter> toFilters()
+    {
+        List<Filter> filters = new ArrayList<Filter>(_filters.size());
+        for(Map.Entry<String, Set<String>> filter : _filters.entrySet())
+        {
+            filters.add(new Filter(filter.getKey(), new ArrayList<String>(filter.getValue())));
+        }
+        return filters;
+    }
+
+    /**
+     * @return a copy that can be narrowed further without affecting this query
+     */
+    public EC2Query copy()
+    {
+        EC2Query copy = new EC2Query();
+        for(Map.Entry<String, Set<String>> filter : _filters.entrySet()) copy.where(filter.getKey(), filter.getValue());
+        return copy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _filters.toString();
+    }
+}
@@ -0,0 +1,224 @@
+package com.sheraz.aws.lambda;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Structured log records, one JSON object per line, buffered in memory during an invocation and written to stdout
+ * in one go when it ends, rather than a synchronous println per resource.
+ *
+ *     {"level":"INFO","event":"VolumesDeleted","handler":"DetachedVolumeJanitor.handleDetachedVolumeNotifyAndDelete","ms":5102,"deleted":514,"requested":514}
+ *
+ * Records below LOG_LEVEL (DEBUG, INFO, WARN or ERROR, default INFO) are dropped before anything is formatted.
+ * Per-resource events go through sample(): the first LOG_SAMPLE_FIRST records of each event are kept, then one in
+ * every LOG_SAMPLE_EVERY, and the totals are reported when the log is flushed, so a run over tens of thousands of
+ * volumes logs a few hundred lines rather than tens of thousands. Outcomes ("deleted N of M") go through summary(),
+ * which is never sampled.
+ *
+ * HandlerMetrics starts and flushes the log along with the invocation's metrics. Outside of an invocation records
+ * are written straight through.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class HandlerLog
+{
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public static final String  LEVEL_ENV = "LOG_LEVEL";
+    public static final String  SAMPLE_FIRST_ENV = "LOG_SAMPLE_FIRST";
+    public static final String  SAMPLE_EVERY_ENV = "LOG_SAMPLE_EVERY";
+
+    private static final int    DEFAULT_SAMPLE_FIRST = 10;
+    private static final int    DEFAULT_SAMPLE_EVERY = 100;
+    private static final int    MAX_BUFFERED_CHARS = 1024 * 1024;
+
+    private static final Level  THRESHOLD = parseLevel(System.getenv(LEVEL_ENV));
+    private static final int    SAMPLE_FIRST = intFromEnvironment(SAMPLE_FIRST_ENV, DEFAULT_SAMPLE_FIRST);
+    private static final int    SAMPLE_EVERY = Math.max(1, intFromEnvironment(SAMPLE_EVERY_ENV, DEFAULT_SAMPLE_EVERY));
+
+    private static final StringBuilder                  BUFFER = new StringBuilder(16 * 1024);
+    private static final ConcurrentMap<String, AtomicLong> SAMPLED = new ConcurrentHashMap<String, AtomicLong>();
+    private static volatile String                      handler;
+    private static volatile long                        startMillis;
+
+    private HandlerLog() {}
+
+    /**
+     * Starts buffering records for an invocation of the named handler.
+     */
+    static void start(String handlerName)
+    {
+        synchronized(BUFFER)
+        {
+            SAMPLED.clear();
+            startMillis = System.currentTimeMillis();
+            handler = handlerName;
+        }
+    }
+
+    /**
+     * Reports how many records each sampled event dropped, writes everything buffered followed by the given line
+     * (the invocation's metrics) as-is, and stops buffering.
+     */
+    static void flush(String lastLine)
+    {
+        synchronized(BUFFER)
+        {
+            if(handler != null && !SAMPLED.isEmpty())
+            {
+                Map<String, Long> totals = new TreeMap<String, Long>();
+                for(Map.Entry<String, AtomicLong> sampled : SAMPLED.entrySet()) totals.put(sampled.getKey(), sampled.getValue().get());
+                for(Map.Entry<String, Long> total : totals.entrySet())
+                {
+                    if(total.getValue() > SAMPLE_FIRST) append(Level.INFO, "SampledEvent", "sampledEvent", total.getKey(),
+                                                               "total", total.getValue(), "logged", loggedCount(total.getValue()));
+                }
+                SAMPLED.clear();
+            }
+            if(lastLine != null) BUFFER.append(lastLine).append('\n');
+            handler = null;
+            write();
+        }
+    }
+
+    public static boolean isEnabled(Level level)
+    {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    /**
+     * @param fields alternating names and values; numbers and booleans are written as JSON numbers and booleans,
+     *               null values are left out and anything else is written as a string
+     */
+    public static void debug(String event, Object... fields)
+    {
+        log(Level.DEBUG, event, fields);
+    }
+
+    public static void info(String event, Object... fields)
+    {
+        log(Level.INFO, event, fields);
+    }
+
+    public static void warn(String event, Object... fields)
+    {
+        log(Level.WARN, event, fields);
+    }
+
+    public static void error(String event, Object... fields)
+    {
+        log(Level.ERROR, event, fields);
+    }
+
+    /**
+     * The outcome of a unit of work, such as "deleted N of M"; logged at INFO whatever the level threshold.
+     */
+    public static void summary(String event, Object... fields)
+    {
+        write(Level.INFO, event, fields);
+    }
+
+    /**
+     * A per-resource event, kept or dropped by the sampling described above.
+     */
+    public static void sample(Level level, String event, Object... fields)
+    {
+        if(!isEnabled(level)) return;
+        AtomicLong count = SAMPLED.get(event);
+        if(count == null) count = SAMPLED.computeIfAbsent(event, key -> new AtomicLong());
+        long n = count.incrementAndGet();
+        if(n <= SAMPLE_FIRST || (n - SAMPLE_FIRST) % SAMPLE_EVERY == 0) write(level, event, fields);
+    }
+
+    public static void log(Level level, String event, Object... fields)
+    {
+        if(isEnabled(level)) write(level, event, fields);
+    }
+
+    private static void write(Level level, String event, Object... fields)
+    {
+        synchronized(BUFFER)
+        {
+            append(level, event, fields);
+            if(handler == null || BUFFER.length() > MAX_BUFFERED_CHARS) write();
+        }
+    }
+
+    private static void append(Level level, String event, Object... fields)
+    {
+        BUFFER.append("{\"level\":\"").append(level).append("\",\"event\":");
+        appendString(BUFFER, event);
+        String handlerName = handler;
+        if(handlerName != null)
+        {
+            BUFFER.append(",\"handler\":");
+            appendString(BUFFER, handlerName);
+            BUFFER.append(",\"ms\":").append(System.currentTimeMillis() - startMillis);
+        }
+        for(int i = 0; i + 1 < fields.length; i += 2)
+        {
+            Object value = fields[i + 1];
+            if(value == null) continue;
+            BUFFER.append(',');
+            appendString(BUFFER, String.valueOf(fields[i]));
+            BUFFER.append(':');
+            if(value instanceof Number || value instanceof Boolean) BUFFER.append(value);
+            else appendString(BUFFER, value.toString());
+        }
+        BUFFER.append("}\n");
+    }
+
+    private static void write()
+    {
+        if(BUFFER.length() == 0) return;
+        System.out.print(BUFFER);
+        System.out.flush();
+        BUFFER.setLength(0);
+    }
+
+    private static long loggedCount(long total)
+    {
+        return Math.min(total, SAMPLE_FIRST) + Math.max(0, total - SAMPLE_FIRST) / SAMPLE_EVERY;
+    }
+
+    static void appendString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') json.append('\\').append(c);
+            else if(c == '\n') json.append("\\n");
+            else if(c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    private static Level parseLevel(String level)
+    {
+        if(StringUtils.isNullOrEmpty(level)) return Level.INFO;
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static int intFromEnvironment(String name, int defaultValue)
+    {
+        String value = System.getenv(name);
+        if(StringUtils.isNullOrEmpty(value)) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
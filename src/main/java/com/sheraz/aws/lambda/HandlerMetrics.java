@@ -0,0 +1,274 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryPolicy.RetryCondition;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Per-invocation performance metrics, written at the end of the handler as a single line in CloudWatch Embedded
+ * Metric Format. CloudWatch Logs turns the line into metrics, so recording them costs no extra API calls.
+ *
+ * Every AWS API call made through a client from AWSClientRegistry is counted and timed per service and operation,
+ * along with SDK retries, throttling errors and response sizes. Handlers add their own counts (volumes scanned,
+ * marked, deleted, ...) through current().
+ *
+ * Lambda runs one invocation at a time per container, so the invocation being recorded is process-wide rather than
+ * per thread, which also covers work handed off to worker pools. Outside of start()/finish() recording is a no-op.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class HandlerMetrics
+{
+    public static final String  COUNT = "Count";
+    public static final String  MILLISECONDS = "Milliseconds";
+    public static final String  BYTES = "Bytes";
+    public static final String  NAMESPACE_ENV = "METRICS_NAMESPACE";
+
+    private static final String DEFAULT_NAMESPACE = "LambdaCompliance";
+    private static final int    MAX_METRICS_PER_DIRECTIVE = 100;
+    private static final double HISTOGRAM_BUCKETS_PER_DOUBLING = 4;
+
+    private static final HandlerMetrics   DETACHED = new HandlerMetrics(null);
+    private static volatile HandlerMetrics current = DETACHED;
+
+    private final String                                _handler;
+    private final long                                  _startMillis = System.currentTimeMillis();
+    private final ConcurrentMap<String, AtomicLong>     _counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram>      _histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, String>         _units = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<Request<?>, Long>       _requestStarts = new ConcurrentHashMap<Request<?>, Long>();
+
+    private HandlerMetrics(String handler)
+    {
+        _handler = handler;
+    }
+
+    /**
+     * Starts recording an invocation of the named handler, e.g. "DetachedVolumeJanitor.handleDetachedVolumeFleetSweep".
+     */
+    public static HandlerMetrics start(String handler)
+    {
+        HandlerMetrics metrics = new HandlerMetrics(handler);
+        current = metrics;
+        HandlerLog.start(handler);
+        return metrics;
+    }
+
+    /**
+     * @return the invocation being recorded, or a no-op recorder outside of a handler
+     */
+    public static HandlerMetrics current()
+    {
+        return current;
+    }
+
+    public void increment(String metric)
+    {
+        add(metric, 1, COUNT);
+    }
+
+    public void add(String metric, long amount)
+    {
+        add(metric, amount, COUNT);
+    }
+
+    public void add(String metric, long amount, String unit)
+    {
+        if(this == DETACHED) return;
+        _units.putIfAbsent(metric, unit);
+        AtomicLong counter = _counters.get(metric);
+        if(counter == null) counter = _counters.computeIfAbsent(metric, key -> new AtomicLong());
+        counter.addAndGet(amount);
+    }
+
+    /**
+     * Adds a sample to the metric's distribution (e.g. a latency), reported with its min, max, sum and count.
+     */
+    public void record(String metric, double value, String unit)
+    {
+        if(this == DETACHED) return;
+        _units.putIfAbsent(metric, unit);
+        Histogram histogram = _histograms.get(metric);
+        if(histogram == null) histogram = _histograms.computeIfAbsent(metric, key -> new Histogram());
+        histogram.record(value);
+    }
+
+    /**
+     * Writes the invocation's log (see HandlerLog) and metrics to stdout and stops recording.
+     */
+    public void finish()
+    {
+        if(this == DETACHED) return;
+        record("Duration", System.currentTimeMillis() - _startMillis, MILLISECONDS);
+        if(current == this) current = DETACHED;
+        HandlerLog.flush(toEmf());
+    }
+
+    String toEmf()
+    {
+        Map<String, String> values = new TreeMap<String, String>();
+        for(Map.Entry<String, AtomicLong> counter : _counters.entrySet()) values.put(counter.getKey(), String.valueOf(counter.getValue().get()));
+        for(Map.Entry<String, Histogram> histogram : _histograms.entrySet()) values.put(histogram.getKey(), histogram.getValue().toJson());
+
+        String namespace = System.getenv(NAMESPACE_ENV);
+        StringBuilder json = new StringBuilder(256 + values.size() * 64);
+        json.append("{\"_aws\":{\"Timestamp\":").append(System.currentTimeMillis()).append(",\"CloudWatchMetrics\":[");
+        List<String> names = new ArrayList<String>(values.keySet());
+        for(int from = 0; from < names.size(); from += MAX_METRICS_PER_DIRECTIVE)
+        {
+            if(from > 0) json.append(',');
+            json.append("{\"Namespace\":");
+            HandlerLog.appendString(json, StringUtils.isNullOrEmpty(namespace) ? DEFAULT_NAMESPACE : namespace);
+            json.append(",\"Dimensions\":[[\"Handler\"]],\"Metrics\":[");
+            for(int i = from; i < Math.min(names.size(), from + MAX_METRICS_PER_DIRECTIVE); i++)
+            {
+                if(i > from) json.append(',');
+                json.append("{\"Name\":");
+                HandlerLog.appendString(json, names.get(i));
+                json.append(",\"Unit\":");
+                HandlerLog.appendString(json, _units.get(names.get(i)));
+                json.append('}');
+            }
+            json.append("]}");
+        }
+        json.append("]},\"Handler\":");
+        HandlerLog.appendString(json, _handler);
+        String functionName = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        if(functionName != null)
+        {
+            json.append(",\"FunctionName\":");
+            HandlerLog.appendString(json, functionName);
+        }
+        for(Map.Entry<String, String> value : values.entrySet())
+        {
+            json.append(',');
+            HandlerLog.appendString(json, value.getKey());
+            json.append(':').append(value.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    // ---- SDK instrumentation -------------------------------------------------------------------------------
+
+    /**
+     * Request handler for every SDK client: one call, its latency and response size per service and operation.
+     */
+    static final RequestHandler2 REQUEST_HANDLER = new RequestHandler2() {
+        @Override
+        public void beforeRequest(Request<?> request)
+        {
+            HandlerMetrics metrics = current;
+            if(metrics != DETACHED) metrics._requestStarts.put(request, System.nanoTime());
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response)
+        {
+            HandlerMetrics metrics = complete(request);
+            if(metrics == null) return;
+            String length = response.getHttpResponse() != null ? response.getHttpResponse().getHeaders().get("Content-Length") : null;
+            if(length != null) metrics.record(operation(request) + ".ResponseBytes", Long.parseLong(length), BYTES);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e)
+        {
+            HandlerMetrics metrics = complete(request);
+            if(metrics == null) return;
+            metrics.increment(operation(request) + ".Errors");
+            if(e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e)) metrics.increment("Throttles");
+        }
+
+        private HandlerMetrics complete(Request<?> request)
+        {
+            HandlerMetrics metrics = current;
+            Long start = metrics._requestStarts.remove(request);
+            if(start == null) return null;
+            String operation = operation(request);
+            metrics.increment("ApiCalls");
+            metrics.increment(operation + ".Calls");
+            metrics.record(operation + ".Latency", (System.nanoTime() - start) / 1e6, MILLISECONDS);
+            return metrics;
+        }
+    };
+
+    /**
+     * The SDK's default retry policy, counting each retry (and each throttled attempt) it makes.
+     */
+    static final RetryPolicy RETRY_POLICY = new RetryPolicy(new RetryCondition() {
+        public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception, int retriesAttempted) {
+            boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted);
+            HandlerMetrics metrics = current;
+            if(exception instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) exception)) metrics.increment("Throttles");
+            if(retry) metrics.increment("Retries");
+            return retry;
+        }
+    }, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+
+    private static String operation(Request<?> request)
+    {
+        String service = request.getServiceName().replaceFirst("^(Amazon|AWS)", "");
+        String operation = request.getOriginalRequest().getClass().getSimpleName().replaceFirst("Request$", "");
+        return service + "." + operation;
+    }
+
+    /**
+     * Log-scale buckets (four per doubling, each reported at its geometric middle), so a distribution is reported
+     * as a few dozen values at most whatever the number of samples, within the 100 values EMF allows.
+     */
+    private static final class Histogram
+    {
+        private final Map<Double, Integer> _buckets = new TreeMap<Double, Integer>();
+        private double                     _min = Double.MAX_VALUE;
+        private double                     _max;
+        private double                     _sum;
+        private int                        _count;
+
+        synchronized void record(double value)
+        {
+            double bucket = value <= 1 ? Math.max(0, Math.round(value))
+                                       : Math.round(Math.pow(2, (Math.floor(Math.log(value) / Math.log(2) * HISTOGRAM_BUCKETS_PER_DOUBLING) + 0.5) / HISTOGRAM_BUCKETS_PER_DOUBLING));
+            Integer count = _buckets.get(bucket);
+            _buckets.put(bucket, count == null ? 1 : count + 1);
+            _min = Math.min(_min, value);
+            _max = Math.max(_max, value);
+            _sum += value;
+            _count++;
+        }
+
+        synchronized String toJson()
+        {
+            StringBuilder values = new StringBuilder("[");
+            StringBuilder counts = new StringBuilder("[");
+            for(Map.Entry<Double, Integer> bucket : _buckets.entrySet())
+            {
+                if(values.length() > 1)
+                {
+                    values.append(',');
+                    counts.append(',');
+                }
+                values.append(bucket.getKey());
+                counts.append(bucket.getValue());
+            }
+            return "{\"Values\":" + values + "],\"Counts\":" + counts + "],\"Min\":" + _min + ",\"Max\":" + _max
+                   + ",\"Sum\":" + _sum + ",\"Count\":" + _count + "}";
+        }
+    }
+}
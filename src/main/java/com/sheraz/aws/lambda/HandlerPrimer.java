@@ -0,0 +1,232 @@
+package com.sheraz.aws.lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.transform.CreateTagsRequestMarshaller;
+import com.amazonaws.services.ec2.model.transform.DeleteVolumeRequestMarshaller;
+import com.amazonaws.services.ec2.model.transform.DescribeInstancesRequestMarshaller;
+import com.amazonaws.services.ec2.model.transform.DescribeInstancesResultStaxUnmarshaller;
+import com.amazonaws.services.ec2.model.transform.DescribeVolumesRequestMarshaller;
+import com.amazonaws.services.ec2.model.transform.DescribeVolumesResultStaxUnmarshaller;
+import com.amazonaws.services.ec2.model.transform.EC2RequestHandler;
+import com.amazonaws.services.ec2.model.transform.GeneratePreSignUrlRequestHandler;
+import com.amazonaws.services.ec2.model.transform.TimestampFormatRequestHandler;
+import com.amazonaws.services.route53.internal.Route53IdRequestHandler;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeBatch;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.amazonaws.services.route53.model.transform.ChangeResourceRecordSetsRequestMarshaller;
+import com.amazonaws.services.route53.model.transform.ListResourceRecordSetsRequestMarshaller;
+import com.amazonaws.services.route53.model.transform.ListResourceRecordSetsResultStaxUnmarshaller;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.transform.AssumeRoleRequestMarshaller;
+import com.amazonaws.services.securitytoken.model.transform.AssumeRoleResultStaxUnmarshaller;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.transform.PublishRequestMarshaller;
+import com.amazonaws.services.sns.model.transform.PublishResultStaxUnmarshaller;
+import com.amazonaws.transform.StaxUnmarshallerContext;
+import com.amazonaws.transform.Unmarshaller;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Moves the cold-start work of a handler out of its first request and into the container's init phase: the
+ * handler classes call prime() from their static initializers, which creates the SDK clients they use and runs
+ * their request marshallers and response unmarshallers (and so the XML parser) over canned data, parses a sample
+ * event, and compiles the tag policy. Nothing is sent over the network and no credentials are resolved.
+ *
+ * The primer also registers org.crac checkpoint hooks for SnapStart (or a CRaC JDK): beforeCheckpoint discards the
+ * cached assumed-role sessions so they aren't captured in the snapshot, and afterRestore logs the restore. These
+ * have only been run against the org.crac no-op implementation, not on a CRaC-capable runtime. On runtimes without
+ * checkpoint support the hooks are never called.
+ *
+ * Priming is skipped if HANDLER_PRIMING is set to false. A step that fails is logged and skipped; it never fails
+ * the handler's initialization.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class HandlerPrimer
+{
+    public enum Service { EC2, SNS, ROUTE53, STS }
+
+    public static final String  PRIMING_ENV = "HANDLER_PRIMING";
+
+    private static final String REGION_ENV = "AWS_REGION";
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    private static final String SAMPLE_EVENT = "{\"version\":\"0\",\"id\":\"00000000-0000-0000-0000-000000000000\","
+                                             + "\"detail-type\":\"EC2 Instance State-change Notification\",\"source\":\"aws.ec2\","
+                                             + "\"account\":\"000000000000\",\"time\":\"2016-01-01T00:00:00Z\",\"region\":\"us-east-1\","
+                                             + "\"resources\":[],\"detail\":{\"instance-id\":\"i-00000000\",\"state\":\"running\"}}";
+
+    private static final String EC2_VOLUMES_RESPONSE = "<DescribeVolumesResponse><requestId>0</requestId><volumeSet><item>"
+                                                     + "<volumeId>vol-00000000</volumeId><size>1</size><availabilityZone>us-east-1a</availabilityZone>"
+                                                     + "<status>available</status><createTime>2016-01-01T00:00:00.000Z</createTime>"
+                                                     + "<tagSet><item><key>Name</key><value>primer</value></item></tagSet>"
+                                                     + "</item></volumeSet></DescribeVolumesResponse>";
+    private static final String EC2_INSTANCES_RESPONSE = "<DescribeInstancesResponse><requestId>0</requestId><reservationSet><item>"
+                                                       + "<reservationId>r-00000000</reservationId><instancesSet><item>"
+                                                       + "<instanceId>i-00000000</instanceId><instanceState><code>16</code><name>running</name></instanceState>"
+                                                       + "<privateIpAddress>10.0.0.1</privateIpAddress><launchTime>2016-01-01T00:00:00.000Z</launchTime>"
+                                                       + "<tagSet><item><key>Name</key><value>primer</value></item></tagSet>"
+                                                       + "</item></instancesSet></item></reservationSet></DescribeInstancesResponse>";
+    private static final String SNS_PUBLISH_RESPONSE = "<PublishResponse><PublishResult><MessageId>0</MessageId></PublishResult>"
+                                                     + "<ResponseMetadata><RequestId>0</RequestId></ResponseMetadata></PublishResponse>";
+    private static final String ROUTE53_RECORDS_RESPONSE = "<ListResourceRecordSetsResponse><ResourceRecordSets><ResourceRecordSet>"
+                                                         + "<Name>primer.example.com.</Name><Type>A</Type><TTL>300</TTL><ResourceRecords>"
+                                                         + "<ResourceRecord><Value>10.0.0.1</Value></ResourceRecord></ResourceRecords>"
+                                                         + "</ResourceRecordSet></ResourceRecordSets><IsTruncated>false</IsTruncated>"
+                                                         + "<MaxItems>1</MaxItems></ListResourceRecordSetsResponse>";
+    private static final String STS_ASSUME_ROLE_RESPONSE = "<AssumeRoleResponse><AssumeRoleResult><Credentials>"
+                                                         + "<AccessKeyId>primer</AccessKeyId><SecretAccessKey>primer</SecretAccessKey>"
+                                                         + "<SessionToken>primer</SessionToken><Expiration>2016-01-01T00:00:00Z</Expiration>"
+                                                         + "</Credentials></AssumeRoleResult></AssumeRoleResponse>";
+
+    // instantiated by name from the SDK's request.handlers files; referenced here so the minimized jar keeps them
+    private static final Class<?>[]   LOADED_BY_NAME = { EC2RequestHandler.class, GeneratePreSignUrlRequestHandler.class,
+                                                         TimestampFormatRequestHandler.class, Route53IdRequestHandler.class };
+
+    private static final Set<Service> PRIMED = EnumSet.noneOf(Service.class);
+    private static boolean            commonPrimed;
+    private static final Resource     CHECKPOINT_HOOKS = new CheckpointHooks(); // the CRaC context only holds resources weakly
+
+    private HandlerPrimer() {}
+
+    /**
+     * Primes the services the handler class uses, along with what every handler uses (logging, metrics, event
+     * parsing, the tag policy). Services already primed by another handler class in the container are skipped.
+     */
+    public static synchronized void prime(String handler, Service... services)
+    {
+        if("false".equalsIgnoreCase(System.getenv(PRIMING_ENV))) return;
+
+        long start = System.nanoTime();
+        String region = System.getenv(REGION_ENV);
+        if(StringUtils.isNullOrEmpty(region)) region = DEFAULT_REGION;
+        if(!commonPrimed)
+        {
+            commonPrimed = true;
+            step("Common", () -> primeCommon());
+            registerCheckpointHooks();
+        }
+        for(Service service : services)
+        {
+            if(!PRIMED.add(service)) continue;
+            final String serviceRegion = region;
+            step(service.name(), () -> primeService(service, serviceRegion));
+        }
+        HandlerLog.info("HandlerPrimed", "handler", handler, "services", Arrays.toString(services),
+                        "millis", (System.nanoTime() - start) / 1000000);
+    }
+
+    private static void primeCommon() throws Exception
+    {
+        HandlerMetrics.current();
+        HandlerLog.isEnabled(HandlerLog.Level.INFO);
+        CloudWatchEventParser.parseStateChangeEvent(new ByteArrayInputStream(SAMPLE_EVENT.getBytes(StandardCharsets.UTF_8)));
+        CloudWatchEventParser.parseScheduleEvent(new ByteArrayInputStream(SAMPLE_EVENT.getBytes(StandardCharsets.UTF_8)));
+        TagPolicy.getDefault().match(Arrays.asList(new Tag("Name", "primer")));
+        EC2Query.detachedVolumes().tagKey("primer").toFilters();
+        DigestRenderer digest = new DigestRenderer(NotificationPublisher.MAX_MESSAGE_BYTES, "primer\n", "primer");
+        digest.addEntry("primer\n");
+        digest.render("primer", null);
+    }
+
+    private static void primeService(Service service, String region) throws Exception
+    {
+        switch(service)
+        {
+            case EC2:
+                AWSClientRegistry.ec2(region);
+                new DescribeVolumesRequestMarshaller().marshall(new DescribeVolumesRequest().withFilters(EC2Query.detachedVolumes().toFilters()));
+                new DescribeInstancesRequestMarshaller().marshall(new DescribeInstancesRequest().withInstanceIds("i-00000000"));
+                new CreateTagsRequestMarshaller().marshall(new CreateTagsRequest().withResources("vol-00000000").withTags(new Tag("primer", "primer")));
+                new DeleteVolumeRequestMarshaller().marshall(new DeleteVolumeRequest("vol-00000000"));
+                unmarshall(DescribeVolumesResultStaxUnmarshaller.getInstance(), EC2_VOLUMES_RESPONSE);
+                unmarshall(DescribeInstancesResultStaxUnmarshaller.getInstance(), EC2_INSTANCES_RESPONSE);
+                break;
+            case SNS:
+                AWSClientRegistry.sns(region);
+                new PublishRequestMarshaller().marshall(new PublishRequest("arn:aws:sns:" + region + ":000000000000:primer", "primer", "primer"));
+                unmarshall(PublishResultStaxUnmarshaller.getInstance(), SNS_PUBLISH_RESPONSE);
+                break;
+            case ROUTE53:
+                AWSClientRegistry.route53(null);
+                ResourceRecordSet record = new ResourceRecordSet("primer.example.com.", "A");
+                new ChangeResourceRecordSetsRequestMarshaller().marshall(new ChangeResourceRecordSetsRequest("Z00000000",
+                        new ChangeBatch(Arrays.asList(new Change(ChangeAction.UPSERT, record)))));
+                new ListResourceRecordSetsRequestMarshaller().marshall(new ListResourceRecordSetsRequest("Z00000000"));
+                unmarshall(ListResourceRecordSetsResultStaxUnmarshaller.getInstance(), ROUTE53_RECORDS_RESPONSE);
+                break;
+            case STS:
+                AWSClientRegistry.sts();
+                new AssumeRoleRequestMarshaller().marshall(new AssumeRoleRequest().withRoleArn("arn:aws:iam::000000000000:role/primer")
+                                                                                  .withRoleSessionName("primer"));
+                unmarshall(AssumeRoleResultStaxUnmarshaller.getInstance(), STS_ASSUME_ROLE_RESPONSE);
+                break;
+        }
+    }
+
+    private static <T> T unmarshall(Unmarshaller<T, StaxUnmarshallerContext> unmarshaller, String xml) throws Exception
+    {
+        return unmarshaller.unmarshall(new StaxUnmarshallerContext(XMLInputFactory.newInstance().createXMLEventReader(new StringReader(xml))));
+    }
+
+    private static void step(String name, PrimingStep step)
+    {
+        try {
+            step.run();
+        } catch (Throwable e) {
+            HandlerLog.warn("PrimingFailed", "step", name, "error", e);
+        }
+    }
+
+    private interface PrimingStep
+    {
+        void run() throws Exception;
+    }
+
+    // ---- checkpoint / restore ----------------------------------------------------------------------------
+
+    private static void registerCheckpointHooks()
+    {
+        try {
+            Core.getGlobalContext().register(CHECKPOINT_HOOKS);
+        } catch (RuntimeException e) {
+            HandlerLog.warn("CheckpointHooksNotRegistered", "error", e);
+        }
+    }
+
+    private static final class CheckpointHooks implements Resource
+    {
+        public void beforeCheckpoint(Context<? extends Resource> context)
+        {
+            AssumeRoleCredentialsCache.discardSessions();
+            HandlerLog.info("BeforeCheckpoint");
+        }
+
+        public void afterRestore(Context<? extends Resource> context)
+        {
+            HandlerLog.info("AfterRestore");
+        }
+    }
+}
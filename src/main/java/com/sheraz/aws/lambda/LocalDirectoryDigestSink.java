@@ -0,0 +1,36 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.sheraz.aws.lambda.DigestRenderer.DigestSink;
+
+/**
+ * Writes overflowing digests as text files to a local directory, e.g. /tmp or a mounted file system.
+ * A shared store (such as an S3 bucket) can be plugged in instead by implementing DigestSink.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class LocalDirectoryDigestSink implements DigestSink
+{
+    private final Path _directory;
+
+    public LocalDirectoryDigestSink(Path directory)
+    {
+        _directory = directory;
+    }
+
+    public String store(String name, String content) throws IOException
+    {
+        Files.createDirectories(_directory);
+        Path file = _directory.resolve(name.replaceAll("[^A-Za-z0-9._-]", "_") + ".txt");
+        try(Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        return file.toAbsolutePath().toString();
+    }
+}
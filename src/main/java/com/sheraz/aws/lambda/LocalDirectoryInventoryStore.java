@@ -0,0 +1,61 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.sheraz.aws.lambda.VolumeInventory.InventoryStore;
+
+/**
+ * Keeps volume inventory snapshots as files in a local directory, e.g. a mounted file system shared between
+ * invocations. Snapshots are memory-mapped on load rather than read in, and replaced atomically on save, so a run
+ * that dies half way through writing leaves the previous snapshot in place.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class LocalDirectoryInventoryStore implements InventoryStore
+{
+    private final Path _directory;
+
+    public LocalDirectoryInventoryStore(Path directory)
+    {
+        _directory = directory;
+    }
+
+    public VolumeInventory load(String name) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(file(name), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return VolumeInventory.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public void save(String name, ByteBuffer snapshot) throws IOException
+    {
+        Files.createDirectories(_directory);
+        Path file = file(name);
+        Path temporary = Files.createTempFile(_directory, file.getFileName().toString(), ".tmp");
+        try {
+            try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = snapshot.duplicate();
+                while(bytes.hasRemaining()) channel.write(bytes);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private Path file(String name)
+    {
+        return _directory.resolve(name.replaceAll("[^A-Za-z0-9._-]", "_") + ".inv");
+    }
+}
@@ -0,0 +1,232 @@
+package com.sheraz.aws.lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.sheraz.aws.lambda.HandlerLog.Level;
+
+/**
+ * Publishes SNS notifications off the handler thread.
+ *
+ * Topic ARNs are resolved with CreateTopic (which is idempotent) only the first time a region and topic name are
+ * seen, and cached for the life of the container, so each alert after that is a single Publish call. Publishing
+ * goes through AsyncCalls, so the handler can carry on with its work while the alert is in flight.
+ *
+ * Alerts added with enqueue() are held back and combined per region and topic into as few Publish calls as the
+ * SNS message size limit allows. send() publishes them without waiting; flush() sends anything still queued and
+ * waits for every outstanding publish, and must be called before the handler returns, as Lambda may freeze the
+ * container as soon as it does.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class NotificationPublisher
+{
+    public static final int     MAX_MESSAGE_BYTES = 256 * 1024;
+    public static final int     MAX_SUBJECT_LENGTH = 100;
+
+    private static final long   FLUSH_TIMEOUT_MILLIS = 30 * 1000;
+    private static final String COMBINED_SEPARATOR = "\n\n----------------------------------------\n\n";
+
+    private static final ConcurrentMap<String, CompletableFuture<String>> TOPIC_ARNS = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private final Map<String, List<Notification>> _queued = new LinkedHashMap<String, List<Notification>>();
+    private final List<Future<?>>                 _inFlight = new ArrayList<Future<?>>();
+
+    /**
+     * Publishes the notification on its own, in the background.
+     */
+    public synchronized void publish(String region, String topicName, String subject, String message)
+    {
+        submit(new Notification(region, topicName, subject, message));
+    }
+
+    /**
+     * Publishes each part of a split message (see DigestRenderer) on its own, numbering the subjects.
+     */
+    public synchronized void publish(String region, String topicName, String subject, List<String> parts)
+    {
+        for(int i = 0; i < parts.size(); i++) publish(region, topicName, partSubject(subject, i, parts.size()), parts.get(i));
+    }
+
+    public synchronized void enqueue(String region, String topicName, String subject, List<String> parts)
+    {
+        for(int i = 0; i < parts.size(); i++) enqueue(region, topicName, partSubject(subject, i, parts.size()), parts.get(i));
+    }
+
+    /**
+     * Holds the notification back until flush(), to be combined with others for the same region and topic.
+     */
+    public synchronized void enqueue(String region, String topicName, String subject, String message)
+    {
+        String key = topicKey(region, topicName);
+        List<Notification> queued = _queued.get(key);
+        if(queued == null)
+        {
+            queued = new ArrayList<Notification>();
+            _queued.put(key, queued);
+        }
+        queued.add(new Notification(region, topicName, subject, message));
+    }
+
+    /**
+     * Starts publishing everything enqueued so far, combined as described above, without waiting for it. Whatever
+     * is enqueued afterwards is combined separately.
+     */
+    public synchronized void send()
+    {
+        for(List<Notification> queued : _queued.values())
+        {
+            for(Notification combined : combine(queued)) submit(combined);
+        }
+        _queued.clear();
+    }
+
+    /**
+     * Sends all enqueued notifications and waits for every publish started by this publisher to complete.
+     * Failures are logged rather than thrown, so a failed alert doesn't fail the work it was reporting on.
+     *
+     * @return number of Publish calls that failed
+     */
+    public int flush()
+    {
+        List<Future<?>> inFlight;
+        synchronized(this)
+        {
+            send();
+            inFlight = new ArrayList<Future<?>>(_inFlight);
+            _inFlight.clear();
+        }
+
+        int failed = 0;
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        for(Future<?> future : inFlight)
+        {
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                failed++;
+                HandlerLog.error("NotificationTimedOut", "timeoutMillis", FLUSH_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed++;
+            } catch (ExecutionException e) {
+                failed++;
+                HandlerLog.error("NotificationFailed", "error", e.getCause());
+            }
+        }
+        return failed;
+    }
+
+    private void submit(final Notification notification)
+    {
+        _inFlight.add(resolveTopicArn(notification.region, notification.topicName).thenCompose(topicArn ->
+            AsyncCalls.<PublishRequest, PublishResult>call(AWSClientRegistry.snsAsync(notification.region)::publishAsync,
+                                                           new PublishRequest(topicArn, notification.message, notification.subject))
+        ).thenAccept(result -> {
+            HandlerMetrics.current().increment("NotificationsPublished");
+            HandlerMetrics.current().record("NotificationBytes", DigestRenderer.utf8Length(notification.message), HandlerMetrics.BYTES);
+            HandlerLog.sample(Level.INFO, "NotificationPublished", "topic", notification.topicName, "region", notification.region);
+        }));
+    }
+
+    /**
+     * A failed lookup isn't cached, so the next alert for the topic tries again.
+     */
+    private static CompletableFuture<String> resolveTopicArn(String region, String topicName)
+    {
+        String key = topicKey(region, topicName);
+        CompletableFuture<String> topicArn = TOPIC_ARNS.get(key);
+        if(topicArn != null && !topicArn.isCompletedExceptionally()) return topicArn;
+
+        // two alerts racing here both call CreateTopic, which is idempotent, so there's no need to lock
+        topicArn = AsyncCalls.<CreateTopicRequest, CreateTopicResult>call(AWSClientRegistry.snsAsync(region)::createTopicAsync, new CreateTopicRequest(topicName))
+                             .thenApply(CreateTopicResult::getTopicArn);
+        TOPIC_ARNS.put(key, topicArn);
+        return topicArn;
+    }
+
+    /**
+     * Packs the notifications into as few messages as fit under the SNS size limit, keeping their order.
+     * A single notification is passed through untouched.
+     */
+    static List<Notification> combine(List<Notification> notifications)
+    {
+        List<Notification> combined = new ArrayList<Notification>();
+        List<Notification> group = new ArrayList<Notification>();
+        int groupBytes = 0;
+        for(Notification notification : notifications)
+        {
+            int bytes = notification.message.getBytes(StandardCharsets.UTF_8).length + notification.subject.length() + COMBINED_SEPARATOR.length() + 2;
+            if(!group.isEmpty() && groupBytes + bytes > MAX_MESSAGE_BYTES)
+            {
+                combined.add(merge(group));
+                group = new ArrayList<Notification>();
+                groupBytes = 0;
+            }
+            group.add(notification);
+            groupBytes += bytes;
+        }
+        if(!group.isEmpty()) combined.add(merge(group));
+        return combined;
+    }
+
+    private static Notification merge(List<Notification> group)
+    {
+        Notification first = group.get(0);
+        if(group.size() == 1) return first;
+
+        StringBuilder message = new StringBuilder();
+        for(Notification notification : group)
+        {
+            if(message.length() > 0) message.append(COMBINED_SEPARATOR);
+            message.append(notification.subject).append("\n\n").append(notification.message);
+        }
+        String subject = first.subject + " (+" + (group.size() - 1) + " more)";
+        if(subject.length() > MAX_SUBJECT_LENGTH) subject = subject.substring(0, MAX_SUBJECT_LENGTH);
+        return new Notification(first.region, first.topicName, subject, message.toString());
+    }
+
+    private static String partSubject(String subject, int index, int count)
+    {
+        if(count == 1) return subject;
+        String suffix = " (part " + (index + 1) + " of " + count + ")";
+        return subject.substring(0, Math.min(subject.length(), MAX_SUBJECT_LENGTH - suffix.length())) + suffix;
+    }
+
+    private static String topicKey(String region, String topicName)
+    {
+        return region + "/" + topicName;
+    }
+
+    static final class Notification
+    {
+        final String region;
+        final String topicName;
+        final String subject;
+        final String message;
+
+        Notification(String region, String topicName, String subject, String message)
+        {
+            this.region = region;
+            this.topicName = topicName;
+            this.subject = subject;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Accumulates tag (or untag) operations and sends them to EC2 in bulk. Resources receiving the same tag key and 
+ * value are grouped together and flushed as a single CreateTags/DeleteTags call once a group reaches the 
+ * 1000 resource API limit, or when flush() is called.
+ * 
+ * Meant to be fed page by page during a volume scan, so only the pending ids are held in memory. Full groups are 
+ * sent without waiting for the response, so tagging overlaps with the scan of the next page; flush() waits for 
+ * all of them.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class ResourceTagBatcher 
+{
+    private final EC2Client                  _ec2Client;
+    private final boolean                    _untag;
+    private final Map<Tag, List<String>>     _pending = new LinkedHashMap<Tag, List<String>>();
+    private final List<CompletableFuture<Integer>> _inFlight = new ArrayList<CompletableFuture<Integer>>();
+    private int                              _submitted;
+    private int                              _succeeded;
+    
+    private ResourceTagBatcher(EC2Client ec2Client, boolean untag)
+    {
+        _ec2Client = ec2Client;
+        _untag = untag;
+    }
+    
+    public static ResourceTagBatcher forTagging(EC2Client ec2Client)
+    {
+        return new ResourceTagBatcher(ec2Client, false);
+    }
+    
+    public static ResourceTagBatcher forUntagging(EC2Client ec2Client)
+    {
+        return new ResourceTagBatcher(ec2Client, true);
+    }
+    
+    public void add(String resourceId, Tag tag)
+    {
+        List<String> resourceIds = _pending.get(tag);
+        if(resourceIds == null)
+        {
+            resourceIds = new ArrayList<String>();
+            _pending.put(tag, resourceIds);
+        }
+        resourceIds.add(resourceId);
+        if(resourceIds.size() >= EC2Client.MAX_TAG_RESOURCES_PER_REQUEST)
+        {
+            submit(tag, resourceIds);
+            _pending.remove(tag);
+        }
+    }
+    
+    /**
+     * Sends all pending groups, regardless of size, and waits for every group sent so far.
+     */
+    public void flush()
+    {
+        for(Map.Entry<Tag, List<String>> entry : _pending.entrySet()) submit(entry.getKey(), entry.getValue());
+        _pending.clear();
+        
+        int succeeded = 0;
+        for(CompletableFuture<Integer> batch : _inFlight) succeeded += AsyncCalls.join(batch);
+        _inFlight.clear();
+        _succeeded += succeeded;
+        HandlerMetrics.current().add(_untag ? "ResourcesUntagged" : "ResourcesTagged", succeeded);
+    }
+    
+    private void submit(Tag tag, List<String> resourceIds)
+    {
+        _submitted += resourceIds.size();
+        _inFlight.add(_untag ? _ec2Client.untagResourcesAsync(resourceIds, tag) : _ec2Client.tagResourcesAsync(resourceIds, tag));
+    }
+    
+    public int getSubmittedCount()
+    {
+        return _submitted;
+    }
+    
+    public int getSucceededCount()
+    {
+        return _succeeded;
+    }
+}
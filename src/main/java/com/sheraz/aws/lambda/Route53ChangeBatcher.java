@@ -0,0 +1,165 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.InvalidChangeBatchException;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.sheraz.aws.lambda.HandlerLog.Level;
+
+/**
+ * Coalesces many DNS intents for a single hosted zone into as few ChangeResourceRecordSets requests as possible,
+ * to stay under Route53's 5 requests/second per-account limit during launch/terminate bursts.
+ * 
+ * - Only the last intent per hostname is kept, so an UPSERT followed by a DELETE for the same name collapses
+ *   into the DELETE (and vice versa).
+ * - DELETE intents are resolved against the zone at submit time, all of them from one ordered walk of the zone's
+ *   records (see Route53Client.findARecordSetsAsync) rather than a lookup each; names without an existing record 
+ *   are dropped, since Route53 would reject the whole batch otherwise.
+ * - Changes are sent in batches of up to 1000 ResourceRecord elements, which is what Route53 limits: an UPSERT 
+ *   counts twice (a delete and a create), so a batch holds at most 500 of them. If Route53 still rejects a batch, 
+ *   it is split in halves and each half retried, down to single changes, so one bad record doesn't block the rest.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class Route53ChangeBatcher 
+{
+    public static final int                MAX_ELEMENTS_PER_BATCH = 1000;
+    
+    private final Route53Client            _route53;
+    private final Map<String, DNSIntent>   _intents = new LinkedHashMap<String, DNSIntent>();
+    
+    Route53ChangeBatcher(Route53Client route53)
+    {
+        _route53 = route53;
+    }
+    
+    public void upsert(String hostname, String ipAddress)
+    {
+        record(new DNSIntent(hostname, ipAddress));
+    }
+    
+    public void delete(String hostname)
+    {
+        record(new DNSIntent(hostname, null));
+    }
+    
+    private void record(DNSIntent intent)
+    {
+        String qualifiedHostname = _route53.getFullyQualifiedHostName(intent.hostname);
+        _intents.remove(qualifiedHostname); // re-insert so ordering follows the most recent intent
+        _intents.put(qualifiedHostname, intent);
+    }
+    
+    public int getPendingCount()
+    {
+        return _intents.size();
+    }
+    
+    /**
+     * Resolves and submits all pending intents, then clears them.
+     * 
+     * @return number of changes Route53 accepted
+     */
+    public int submit()
+    {
+        List<String> deleteHostnames = new ArrayList<String>();
+        for(Map.Entry<String, DNSIntent> entry : _intents.entrySet())
+        {
+            if(entry.getValue().ipAddress == null) deleteHostnames.add(entry.getKey());
+        }
+        Map<String, ResourceRecordSet> existing = deleteHostnames.isEmpty() ? Collections.<String, ResourceRecordSet>emptyMap() 
+                                                                            : AsyncCalls.join(_route53.findARecordSetsAsync(deleteHostnames));
+        
+        List<Change> changes = new ArrayList<Change>(_intents.size());
+        for(Map.Entry<String, DNSIntent> entry : _intents.entrySet())
+        {
+            Change change = toChange(entry.getKey(), entry.getValue(), existing);
+            if(change != null) changes.add(change);
+        }
+        _intents.clear();
+        
+        int applied = 0;
+        List<Change> batch = new ArrayList<Change>();
+        int batchElements = 0;
+        for(Change change : changes)
+        {
+            int elements = getElementCount(change);
+            if(batchElements + elements > MAX_ELEMENTS_PER_BATCH && !batch.isEmpty())
+            {
+                applied += submitBatch(batch);
+                batch = new ArrayList<Change>();
+                batchElements = 0;
+            }
+            batch.add(change);
+            batchElements += elements;
+        }
+        if(!batch.isEmpty()) applied += submitBatch(batch);
+        HandlerLog.summary("DnsChangesApplied", "applied", applied, "coalesced", changes.size());
+        return applied;
+    }
+    
+    /**
+     * @return the change, or null for a DELETE of a name that has no record
+     */
+    private Change toChange(String qualifiedHostname, DNSIntent intent, Map<String, ResourceRecordSet> existing)
+    {
+        if(intent.ipAddress != null) return new Change(ChangeAction.UPSERT, _route53.createARecordSet(qualifiedHostname, intent.ipAddress));
+        
+        ResourceRecordSet record = existing.get(qualifiedHostname);
+        if(record == null)
+        {
+            HandlerLog.sample(Level.WARN, "DnsRecordNotFound", "hostname", qualifiedHostname);
+            return null;
+        }
+        return new Change(ChangeAction.DELETE, record);
+    }
+    
+    /**
+     * @return the ResourceRecord elements the change counts as towards Route53's per-batch limit
+     */
+    static int getElementCount(Change change)
+    {
+        List<?> records = change.getResourceRecordSet().getResourceRecords();
+        int elements = Math.max(1, records != null ? records.size() : 0);
+        return ChangeAction.UPSERT.toString().equals(change.getAction()) ? 2 * elements : elements;
+    }
+    
+    private int submitBatch(List<Change> batch)
+    {
+        try {
+            _route53.submitChanges(batch);
+            HandlerMetrics.current().add("DnsChangesApplied", batch.size());
+            return batch.size();
+        } catch (InvalidChangeBatchException e) {
+            if(batch.size() == 1)
+            {
+                Change change = batch.get(0);
+                HandlerMetrics.current().increment("DnsChangesRejected");
+                HandlerLog.sample(Level.WARN, "DnsChangeRejected", "action", change.getAction(), 
+                                  "hostname", change.getResourceRecordSet().getName(), "error", e.getErrorMessage());
+                return 0;
+            }
+            int half = batch.size() / 2;
+            return submitBatch(batch.subList(0, half)) + submitBatch(batch.subList(half, batch.size()));
+        }
+    }
+    
+    private static final class DNSIntent
+    {
+        final String hostname;
+        final String ipAddress; // null for removal
+        
+        DNSIntent(String hostname, String ipAddress)
+        {
+            this.hostname = hostname;
+            this.ipAddress = ipAddress;
+        }
+    }
+}
@@ -1,117 +1,195 @@
 package com.sheraz.aws.lambda;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicSessionCredentials;
-import com.amazonaws.services.route53.AmazonRoute53Client;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.route53.AmazonRoute53AsyncClient;
 import com.amazonaws.services.route53.model.Change;
 import com.amazonaws.services.route53.model.ChangeAction;
 import com.amazonaws.services.route53.model.ChangeBatch;
 import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
 import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
-import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.GetHostedZoneRequest;
+import com.amazonaws.services.route53.model.GetHostedZoneResult;
 import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
 import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.NoSuchHostedZoneException;
 import com.amazonaws.services.route53.model.RRType;
 import com.amazonaws.services.route53.model.ResourceRecord;
 import com.amazonaws.services.route53.model.ResourceRecordSet;
-import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
-import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
-import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
-import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.util.StringUtils;
+import com.sheraz.aws.lambda.HandlerLog.Level;
 
 /**
  * A wrapper to AmazonRoute53 class in order to abstract and simplify low level calls to AmazonRoute53.
  * 
  * The scope of this class is for a given Route53 Hosted Zone. Also has cross-account fallback behavior (via STS)
- * in case a single Zone is being used across multiple accounts e.g. prod and non-prod.
+ * in case a single Zone is being used across multiple accounts e.g. prod and non-prod. Assumed-role sessions are
+ * cached per role ARN (see AssumeRoleCredentialsCache), so STS is only called when the session nears expiry.
+ * 
+ * openAsync() resolves the zone without blocking, so a handler can look it up while it describes the instance, 
+ * and the *Async operations return as soon as the request is sent (see AsyncCalls).
  * 
  * @author Sheraz Khan
  *
  */
 public class Route53Client 
 {
-	private AmazonRoute53Client _amazonRoute53;
-	private HostedZone 	        _targetHostedZone;
-	private String              _targetHostedZoneId;
-	private String              _crossAccountRoleARN;
+	private static final String CROSS_ACCOUNT_SESSION_NAME = "Lambda-CreateRoute53DNSRecord-NonProd";
+	private static final String DEFAULT_ACCOUNT = "default";
+	private static final String MAX_RECORDS_PER_PAGE = "300";
+	
+	/** The order ListResourceRecordSets returns records in: by name, compared label by label from the right. */
+	static final Comparator<String> LISTING_ORDER = Comparator.comparing(Route53Client::listingKey);
+	
+	/** Zone metadata survives across warm invocations, so a warm constructor makes no Route53 calls at all. */
+	private static final ConcurrentMap<String, HostedZoneMetadata> ZONE_CACHE = new ConcurrentHashMap<String, HostedZoneMetadata>();
+	
+	private AmazonRoute53AsyncClient _amazonRoute53;
+	private HostedZoneMetadata       _targetHostedZone;
+	private String                   _targetHostedZoneId;
 	
 	public Route53Client(String targetZoneId, String crossAccountRoleARN)
+	{
+		this(targetZoneId, AsyncCalls.join(resolveTargetHostedZone(targetZoneId, crossAccountRoleARN, CompletableFuture.completedFuture(Boolean.TRUE))));
+	}
+	
+	private Route53Client(String targetZoneId, HostedZoneMetadata targetHostedZone)
 	{
 		_targetHostedZoneId = targetZoneId;
-		_crossAccountRoleARN = crossAccountRoleARN;
-		
-		// first we try current account i.e. account hosting the lambda function
-		_targetHostedZone = initRoute53IfZoneInDefaultAccount(targetZoneId); 
-		
-		if(_targetHostedZone == null)
+		_targetHostedZone = targetHostedZone;
+		if(_targetHostedZone != null)
 		{
-			_targetHostedZone = initRoute53ByZoneInCrossAccount(targetZoneId);
+			_amazonRoute53 = AWSClientRegistry.route53Async(_targetHostedZone.getCredentials());
 		}
 	}
 	
-	public boolean targetHostedZoneFound()
+	/**
+	 * As the constructor, with the zone (when it isn't cached yet) looked up in the background.
+	 */
+	public static CompletableFuture<Route53Client> openAsync(final String targetZoneId, String crossAccountRoleARN)
 	{
-		return _targetHostedZone != null;
+		return openAsync(targetZoneId, crossAccountRoleARN, CompletableFuture.completedFuture(Boolean.TRUE));
 	}
 	
-	private HostedZone initRoute53IfZoneInDefaultAccount(String targetZoneId)
+	/**
+	 * As openAsync(), for a lookup started before the caller knows whether it needs the zone at all. Only the current
+	 * account is tried straight away; the cross-account fallback, and the STS assume that comes with it, waits for 
+	 * needed to complete with true. If it completes with false the zone is reported as not found.
+	 */
+	public static CompletableFuture<Route53Client> openAsync(final String targetZoneId, String crossAccountRoleARN, CompletionStage<Boolean> needed)
 	{
-		_amazonRoute53 = new AmazonRoute53Client();
-		return findTargetHostedZone(_amazonRoute53, targetZoneId);
+		return resolveTargetHostedZone(targetZoneId, crossAccountRoleARN, needed).thenApply(zone -> new Route53Client(targetZoneId, zone));
 	}
 	
-	private HostedZone initRoute53ByZoneInCrossAccount(String targetZoneId)
+	public boolean targetHostedZoneFound()
 	{
-		AWSSecurityTokenServiceClient stsClient = new AWSSecurityTokenServiceClient();
-		AssumeRoleResult assumeRoleResult = stsClient.assumeRole(new AssumeRoleRequest()
-				        .withRoleArn(_crossAccountRoleARN)
-						.withRoleSessionName("Lambda-CreateRoute53DNSRecord-NonProd"));
-		AWSCredentials credentials = createAWSCredentials(assumeRoleResult.getCredentials());
-		_amazonRoute53 = new AmazonRoute53Client(credentials);
-		return findTargetHostedZone(_amazonRoute53, targetZoneId);
+		return _targetHostedZone != null;
 	}
 	
-	private AWSCredentials createAWSCredentials(Credentials credentials)
+	private static CompletableFuture<HostedZoneMetadata> resolveTargetHostedZone(final String targetZoneId, final String crossAccountRoleARN, 
+	                                                                              final CompletionStage<Boolean> needed)
 	{
-		return new BasicSessionCredentials(credentials.getAccessKeyId(), 
-				                           credentials.getSecretAccessKey(), 
-				                           credentials.getSessionToken());
+		HostedZoneMetadata cached = ZONE_CACHE.get(targetZoneId);
+		if(cached != null) return CompletableFuture.completedFuture(cached);
+		
+		// first we try current account i.e. account hosting the lambda function
+		return findTargetHostedZone(null, DEFAULT_ACCOUNT, targetZoneId).thenCompose(zone -> {
+			if(zone != null || StringUtils.isNullOrEmpty(crossAccountRoleARN)) return CompletableFuture.completedFuture(zone);
+			return needed.thenCompose(wanted -> {
+				if(! wanted) return CompletableFuture.<HostedZoneMetadata>completedFuture(null);
+				AssumeRoleCredentialsCache credentials = AssumeRoleCredentialsCache.forRole(crossAccountRoleARN, CROSS_ACCOUNT_SESSION_NAME);
+				return findTargetHostedZone(credentials, getAccountFromRoleARN(crossAccountRoleARN), targetZoneId);
+			});
+		}).thenApply(zone -> {
+			if(zone != null) ZONE_CACHE.put(targetZoneId, zone);
+			return zone;
+		});
 	}
 	
-	private HostedZone findTargetHostedZone(AmazonRoute53Client route53, String targetZoneId)
+	/**
+	 * Looks the zone up directly by ID (a single GetHostedZone call), rather than listing every zone in the account.
+	 * 
+	 * @return null if the zone does not exist or is not reachable with the given credentials
+	 */
+	private static CompletableFuture<HostedZoneMetadata> findTargetHostedZone(final AWSCredentialsProvider credentials, final String account, String targetZoneId)
 	{
-		List<HostedZone> zones = route53.listHostedZones().getHostedZones();
-		for(HostedZone zone : zones)
-		{
-			if(zone.getId().equals(targetZoneId)) return zone;
-		}
-		return null;
+		AmazonRoute53AsyncClient route53 = AWSClientRegistry.route53Async(credentials);
+		return AsyncCalls.<GetHostedZoneRequest, GetHostedZoneResult>call(route53::getHostedZoneAsync, new GetHostedZoneRequest(targetZoneId)).handle((result, error) -> {
+			if(error == null) return new HostedZoneMetadata(result.getHostedZone().getName(), account, credentials);
+			RuntimeException cause = AsyncCalls.unwrap(error);
+			if(cause instanceof NoSuchHostedZoneException) return null;
+			if(cause instanceof AmazonServiceException && ((AmazonServiceException) cause).getStatusCode() == 403) return null; // zone lives in an account these credentials can't see
+			throw cause;
+		});
+	}
+	
+	private static String getAccountFromRoleARN(String roleARN)
+	{
+		// arn:aws:iam::<account>:role/<name>
+		String[] parts = roleARN.split(":");
+		return parts.length > 4 ? parts[4] : roleARN;
 	}
 	
 	public void updateDNSRecord(String instanceIPAddress, String hostname)
 	{
 		String qualifiedHostname = getFullyQualifiedHostName(hostname);
+		Change change = new Change(ChangeAction.UPSERT, createARecordSet(qualifiedHostname, instanceIPAddress));
+		ChangeResourceRecordSetsResult result = submitChanges(Arrays.asList(change));
+		HandlerLog.sample(Level.INFO, "DnsRecordUpserted", "hostname", qualifiedHostname, "ipAddress", instanceIPAddress, 
+		                  "changeId", result.getChangeInfo().getId(), "status", result.getChangeInfo().getStatus());
+	}
+	
+	ResourceRecordSet createARecordSet(String qualifiedHostname, String instanceIPAddress)
+	{
 		ResourceRecord resourceRecord = new ResourceRecord(instanceIPAddress);
 		ResourceRecordSet resourceRecordSet = new ResourceRecordSet();
 		resourceRecordSet.withName(qualifiedHostname)
 		                 .withType(RRType.A)
 		                 .withResourceRecords(Arrays.asList(resourceRecord))
 		                 .withTTL(new Long(300));
-		Change change = new Change(ChangeAction.UPSERT, resourceRecordSet);
-		
+		return resourceRecordSet;
+	}
+	
+	/**
+	 * Sends all given changes to the target zone as a single ChangeResourceRecordSets request.
+	 * Route53 applies a batch atomically: either every change succeeds or none do.
+	 */
+	ChangeResourceRecordSetsResult submitChanges(List<Change> changes)
+	{
+		return AsyncCalls.join(submitChangesAsync(changes));
+	}
+	
+	CompletableFuture<ChangeResourceRecordSetsResult> submitChangesAsync(List<Change> changes)
+	{
 		ChangeResourceRecordSetsRequest request = new ChangeResourceRecordSetsRequest();
 		request.withHostedZoneId(_targetHostedZoneId)
-		       .withChangeBatch(new ChangeBatch(Arrays.asList(change)));
-
-		ChangeResourceRecordSetsResult result = _amazonRoute53.changeResourceRecordSets(request);
-		System.out.println("Route53: submitted type-A DNS record for [" + instanceIPAddress + " = " + qualifiedHostname +"]");
-		System.out.println(result.getChangeInfo().toString());
+		       .withChangeBatch(new ChangeBatch(changes));
+		return AsyncCalls.call(_amazonRoute53::changeResourceRecordSetsAsync, request);
+	}
+	
+	/**
+	 * Creates a batcher that coalesces many DNS updates/removals into a few ChangeResourceRecordSets requests.
+	 */
+	public Route53ChangeBatcher newChangeBatcher()
+	{
+		return new Route53ChangeBatcher(this);
 	}
 	
-	private String getFullyQualifiedHostName(String hostname)
+	String getFullyQualifiedHostName(String hostname)
 	{
 		return hostname + "." + _targetHostedZone.getName();
 	}
@@ -121,8 +199,7 @@ public class Route53Client
 		ResourceRecordSet resourceRecordSet = findResourceRecordSet(hostname);
 		if(resourceRecordSet == null) 
 		{
-			System.out.println("Route 53: Could not find DNS record for " + hostname + 
-					           " in zone: " + _targetHostedZone.getName() + " - no record removed.");
+			HandlerLog.sample(Level.WARN, "DnsRecordNotFound", "hostname", hostname, "zone", _targetHostedZone.getName());
 			return;
 		}
 		performResourceRecordSetDelete(resourceRecordSet);
@@ -131,27 +208,117 @@ public class Route53Client
 	private void performResourceRecordSetDelete(ResourceRecordSet resourceRecordSet)
 	{
 	    Change change = new Change(ChangeAction.DELETE, resourceRecordSet);
-        ChangeResourceRecordSetsRequest changeRequest = new ChangeResourceRecordSetsRequest();
-        changeRequest.withHostedZoneId(_targetHostedZoneId)
-                     .withChangeBatch(new ChangeBatch(Arrays.asList(change)));
-        ChangeResourceRecordSetsResult result = _amazonRoute53.changeResourceRecordSets(changeRequest);
-        System.out.println("Route 53: removed type-A DNS record [" + resourceRecordSet.getName() + "]");
-        System.out.println(result.getChangeInfo().toString());
+        ChangeResourceRecordSetsResult result = submitChanges(Arrays.asList(change));
+        HandlerLog.sample(Level.INFO, "DnsRecordRemoved", "hostname", resourceRecordSet.getName(), 
+                          "changeId", result.getChangeInfo().getId(), "status", result.getChangeInfo().getStatus());
+	}
+	
+	ResourceRecordSet findResourceRecordSet(String hostname)
+	{
+		return AsyncCalls.join(findResourceRecordSetAsync(hostname));
 	}
 	
-	private ResourceRecordSet findResourceRecordSet(String hostname)
+	/**
+	 * @return the hostname's A record, or null if the zone has none
+	 */
+	CompletableFuture<ResourceRecordSet> findResourceRecordSetAsync(String hostname)
 	{
-		String fullyQualifiedHostname = getFullyQualifiedHostName(hostname);
+		final String fullyQualifiedHostname = getFullyQualifiedHostName(hostname);
+		return findARecordSetsAsync(Collections.singletonList(fullyQualifiedHostname)).thenApply(records -> records.get(fullyQualifiedHostname));
+	}
+	
+	/**
+	 * Looks up the A records of many names with as few ListResourceRecordSets calls as possible, rather than one 
+	 * call per name. The zone is listed in order, one page at a time, each page starting at the lowest name not yet 
+	 * resolved: a page answers every name up to where it ends (names it skipped over have no record), so names that 
+	 * are close together share a page and the number of calls is never more than the number of names.
+	 * 
+	 * @param qualifiedHostnames fully qualified names, see getFullyQualifiedHostName()
+	 * @return the A record of each name that has one, keyed by the name as given
+	 */
+	CompletableFuture<Map<String, ResourceRecordSet>> findARecordSetsAsync(Collection<String> qualifiedHostnames)
+	{
+		Map<String, String> requested = new HashMap<String, String>();
+		NavigableSet<String> pending = new TreeSet<String>(LISTING_ORDER);
+		for(String hostname : qualifiedHostnames)
+		{
+			requested.put(normalizeRecordName(hostname), hostname);
+			pending.add(normalizeRecordName(hostname));
+		}
+		return listARecordSets(pending, requested, new HashMap<String, ResourceRecordSet>(pending.size()));
+	}
+	
+	private CompletableFuture<Map<String, ResourceRecordSet>> listARecordSets(final NavigableSet<String> pending, final Map<String, String> requested, 
+	                                                                          final Map<String, ResourceRecordSet> found)
+	{
+		if(pending.isEmpty()) return CompletableFuture.completedFuture(found);
+		
 		ListResourceRecordSetsRequest recordSetsRequest = new ListResourceRecordSetsRequest();
 		recordSetsRequest.withHostedZoneId(_targetHostedZoneId)
-		                 .withStartRecordName(fullyQualifiedHostname)
-		                 .withStartRecordType(RRType.A);
-		ListResourceRecordSetsResult result = _amazonRoute53.listResourceRecordSets(recordSetsRequest);
-		for(ResourceRecordSet record : result.getResourceRecordSets())
+		                 .withStartRecordName(pending.first())
+		                 .withStartRecordType(RRType.A)
+		                 .withMaxItems(MAX_RECORDS_PER_PAGE);
+		return AsyncCalls.<ListResourceRecordSetsRequest, ListResourceRecordSetsResult>call(_amazonRoute53::listResourceRecordSetsAsync, recordSetsRequest).thenCompose(result -> {
+			HandlerMetrics.current().increment("DnsRecordPagesListed");
+			for(ResourceRecordSet record : result.getResourceRecordSets())
+			{
+				String name = normalizeRecordName(record.getName());
+				if(RRType.A.toString().equals(record.getType()) && pending.remove(name)) found.put(requested.get(name), record);
+			}
+			if(Boolean.TRUE.equals(result.isTruncated())) pending.headSet(normalizeRecordName(result.getNextRecordName()), false).clear();
+			else pending.clear();
+			return listARecordSets(pending, requested, found);
+		});
+	}
+	
+	private static String normalizeRecordName(String name)
+	{
+		String lowerCase = name.toLowerCase();
+		return lowerCase.endsWith(".") ? lowerCase : lowerCase + ".";
+	}
+	
+	/**
+	 * www.corp.example.com. becomes com\0example\0corp\0www, which sorts like the labels compared one by one.
+	 */
+	private static String listingKey(String name)
+	{
+		String[] labels = normalizeRecordName(name).split("\\.");
+		StringBuilder key = new StringBuilder(name.length());
+		for(int i = labels.length - 1; i >= 0; i--)
+		{
+			key.append(labels[i]);
+			if(i > 0) key.append('\0');
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * What we need to know about the target zone: its name, which account owns it and which credentials reach it
+	 * (null meaning the default credentials of the lambda execution role).
+	 */
+	static final class HostedZoneMetadata
+	{
+		private final String                 _name;
+		private final String                 _account;
+		private final AWSCredentialsProvider _credentials;
+		
+		HostedZoneMetadata(String name, String account, AWSCredentialsProvider credentials)
 		{
-			if(record.getName().equals(fullyQualifiedHostname)) return record;
+			_name = name;
+			_account = account;
+			_credentials = credentials;
+		}
+		
+		public String getName() {
+			return _name;
+		}
+		
+		public String getAccount() {
+			return _account;
+		}
+		
+		public AWSCredentialsProvider getCredentials() {
+			return _credentials;
 		}
-		return null;
 	}
 }
-
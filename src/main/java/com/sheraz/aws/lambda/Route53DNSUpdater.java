@@ -1,9 +1,22 @@
 package com.sheraz.aws.lambda;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.util.StringUtils;
 import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEventBatch;
+import com.sheraz.aws.lambda.HandlerLog.Level;
+import com.sheraz.aws.lambda.HandlerPrimer.Service;
+import com.sheraz.aws.lambda.TagPolicy.TagMatch;
 
 /**
  * Lambda function that is triggered on "RunInstance" event. It will create a DNS resource record
@@ -20,6 +33,10 @@ import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
  * 
  * * DNS records are created for only instances that are linux (i.e. have lx in the hostname) and are not
  *   present in an auto-scaling group. Windows instances are auto domain joined through a different script.
+ * 
+ * * The hosted zone is looked up while the instance is being described, rather than after. Only the lookup in the
+ *   current account is started up front: the cross-account one (and its STS assume) waits for the hostname check,
+ *   and is never made for instances that fail it. After the first lookup the zone comes from cache.
  *    
  * @author Sheraz Khan
  *
@@ -31,29 +48,123 @@ public class Route53DNSUpdater
 	private static final String PRODUCTION_CROSS_ACCOUNT_ROLE_ARN = "arn:aws:iam::467936237394:role/CrossAccount-UpdateRoute53-PrivateAWSZone";
 	private static final String LINUX_HOSTNAME_PREFIX = "lx238";
 	private static final String TAG_WITH_HOSTNAME = "Name";
+	private static final TagPolicy HOSTNAME_TAG_POLICY = TagPolicy.capturing(TAG_WITH_HOSTNAME);
+	private static final EC2Query LINUX_HOSTNAME_QUERY = EC2Query.create().tagPrefixIgnoreCase(TAG_WITH_HOSTNAME, LINUX_HOSTNAME_PREFIX);
+	private static final String STATE_SHUTTING_DOWN = "shutting-down";
+	private static final String STATE_TERMINATED = "terminated";
+	
+	// reused for every instance; the runtime never runs two invocations on one handler instance at a time
+	private final TagMatch _hostnameMatch = HOSTNAME_TAG_POLICY.newMatch();
+	
+	static {
+		HandlerPrimer.prime("Route53DNSUpdater", Service.EC2, Service.ROUTE53, Service.STS);
+	}
 	
 	public void handleRoute53DNSUpdates(EC2InstanceStateChangeEvent event)
 	{
-		Instance instance = fetchEC2Instance(event);
-		String hostname = retrieveInstanceHostName(instance);
-		if(isLinuxInstanceWithCorrectNamingConvention(hostname))
-		{
-			Route53Client route53 = new Route53Client(HOSTED_ZONE_ID, PRODUCTION_CROSS_ACCOUNT_ROLE_ARN);
-			performRoute53DNSUpdate(route53, getInstanceIPAddress(instance), hostname);
+		HandlerMetrics metrics = HandlerMetrics.start("Route53DNSUpdater.handleRoute53DNSUpdates");
+		CompletableFuture<Boolean> linuxInstance = new CompletableFuture<Boolean>();
+		try {
+			CompletableFuture<Route53Client> route53 = openRoute53(linuxInstance);
+			Instance instance = fetchEC2Instance(event);
+			String hostname = retrieveInstanceHostName(instance);
+			boolean linux = isLinuxInstanceWithCorrectNamingConvention(hostname);
+			linuxInstance.complete(linux);
+			if(linux)
+			{
+				performRoute53DNSUpdate(AsyncCalls.join(route53), getInstanceIPAddress(instance), hostname);
+			}
+		} finally {
+			linuxInstance.complete(Boolean.FALSE);
+			metrics.finish();
 		}
 	}
 	
 	public void handleRoute53DNSRemove(EC2InstanceStateChangeEvent event)
 	{
-		Instance instance = fetchEC2Instance(event);
-		String hostname = retrieveInstanceHostName(instance);
-		if(isLinuxInstanceWithCorrectNamingConvention(hostname))
-		{
-		    Route53Client route53 = new Route53Client(HOSTED_ZONE_ID, PRODUCTION_CROSS_ACCOUNT_ROLE_ARN);
-	        route53.removeDNSRecord(hostname);
+		HandlerMetrics metrics = HandlerMetrics.start("Route53DNSUpdater.handleRoute53DNSRemove");
+		CompletableFuture<Boolean> linuxInstance = new CompletableFuture<Boolean>();
+		try {
+			CompletableFuture<Route53Client> route53 = openRoute53(linuxInstance);
+			Instance instance = fetchEC2Instance(event);
+			String hostname = retrieveInstanceHostName(instance);
+			boolean linux = isLinuxInstanceWithCorrectNamingConvention(hostname);
+			linuxInstance.complete(linux);
+			if(linux)
+			{
+				AsyncCalls.join(route53).removeDNSRecord(hostname);
+			}
+		} finally {
+			linuxInstance.complete(Boolean.FALSE);
+			metrics.finish();
 		}
 	}
 	
+	/**
+	 * Applies a burst of launch/terminate events with a handful of Route53 requests instead of one per event.
+	 * Terminating instances have their record removed, all other states upsert the record.
+	 */
+	public void handleRoute53DNSBatch(EC2InstanceStateChangeEventBatch batch)
+	{
+		HandlerMetrics metrics = HandlerMetrics.start("Route53DNSUpdater.handleRoute53DNSBatch");
+		CompletableFuture<Boolean> linuxInstances = new CompletableFuture<Boolean>();
+		try {
+			List<EC2InstanceStateChangeEvent> events = batch.getEvents();
+			if(events == null || events.isEmpty()) return;
+			
+			CompletableFuture<Route53Client> pendingRoute53 = openRoute53(linuxInstances);
+			Map<String, Instance> instances = fetchEC2Instances(events);
+			linuxInstances.complete(! instances.isEmpty());
+			if(instances.isEmpty()) return; // nothing named by the Linux convention
+			
+			Route53Client route53 = AsyncCalls.join(pendingRoute53);
+			if(! route53.targetHostedZoneFound())
+			{
+				throw new RuntimeException("Zone with ID " + HOSTED_ZONE_ID + " not found. Did not apply DNS changes.");
+			}
+			Route53ChangeBatcher batcher = route53.newChangeBatcher();
+			for(EC2InstanceStateChangeEvent event : events)
+			{
+				Instance instance = instances.get(event.getInstanceId());
+				if(instance == null) continue;
+				String hostname = retrieveInstanceHostName(instance);
+				if(! isLinuxInstanceWithCorrectNamingConvention(hostname)) continue;
+				
+				if(isTerminating(event)) batcher.delete(hostname);
+				else batcher.upsert(hostname, getInstanceIPAddress(instance));
+			}
+			batcher.submit();
+		} finally {
+			linuxInstances.complete(Boolean.FALSE);
+			metrics.finish();
+		}
+	}
+	
+	/*
+	 * Stream entry points: the same handlers for deploying as <method>Stream, with the event read straight off the
+	 * input by CloudWatchEventParser rather than bound by the runtime's reflection-based Jackson.
+	 */
+	
+	public void handleRoute53DNSUpdatesStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleRoute53DNSUpdates(CloudWatchEventParser.parseStateChangeEvent(input));
+	}
+	
+	public void handleRoute53DNSRemoveStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleRoute53DNSRemove(CloudWatchEventParser.parseStateChangeEvent(input));
+	}
+	
+	public void handleRoute53DNSBatchStream(InputStream input, OutputStream output, Context context) throws IOException
+	{
+		handleRoute53DNSBatch(CloudWatchEventParser.parseStateChangeEventBatch(input));
+	}
+	
+	private boolean isTerminating(EC2InstanceStateChangeEvent event)
+	{
+		return STATE_SHUTTING_DOWN.equals(event.getState()) || STATE_TERMINATED.equals(event.getState());
+	}
+	
 	private boolean isLinuxInstanceWithCorrectNamingConvention(String hostname)
 	{
 		return !StringUtils.isNullOrEmpty(hostname) &&
@@ -61,6 +172,15 @@ public class Route53DNSUpdater
 		       !hostname.contains(" ");
 	}
 	
+	/**
+	 * Starts resolving the zone while the instances are described. The cross-account lookup waits for linuxInstance, 
+	 * which the handlers complete with false on every path that doesn't need the zone, including failures.
+	 */
+	private CompletableFuture<Route53Client> openRoute53(CompletableFuture<Boolean> linuxInstance)
+	{
+		return Route53Client.openAsync(HOSTED_ZONE_ID, PRODUCTION_CROSS_ACCOUNT_ROLE_ARN, linuxInstance);
+	}
+	
 	private void performRoute53DNSUpdate(Route53Client route53, String ipAddress, String hostname)
 	{
 		if(! route53.targetHostedZoneFound())
@@ -76,6 +196,34 @@ public class Route53DNSUpdater
 		return ec2.describeInstance(event.getInstanceId());
 	}
 	
+	/**
+	 * Describes the instances in the batch with a few DescribeInstances calls per region, keyed by instance id.
+	 * Only instances named by the Linux naming convention are returned, the rest never get a DNS record.
+	 */
+	private Map<String, Instance> fetchEC2Instances(List<EC2InstanceStateChangeEvent> events)
+	{
+		Map<String, List<String>> instanceIdsByRegion = new HashMap<String, List<String>>();
+		for(EC2InstanceStateChangeEvent event : events)
+		{
+			List<String> instanceIds = instanceIdsByRegion.get(event.getRegion());
+			if(instanceIds == null)
+			{
+				instanceIds = new ArrayList<String>();
+				instanceIdsByRegion.put(event.getRegion(), instanceIds);
+			}
+			if(event.getInstanceId() != null) instanceIds.add(event.getInstanceId());
+		}
+		Map<String, Instance> instances = new HashMap<String, Instance>();
+		for(Map.Entry<String, List<String>> entry : instanceIdsByRegion.entrySet())
+		{
+			for(Instance instance : new EC2Client(entry.getKey()).describeInstances(entry.getValue(), LINUX_HOSTNAME_QUERY))
+			{
+				instances.put(instance.getInstanceId(), instance);
+			}
+		}
+		return instances;
+	}
+	
 	private String getInstanceIPAddress(Instance instance)
 	{
 		return instance.getPrivateIpAddress();
@@ -83,21 +231,13 @@ public class Route53DNSUpdater
 	
 	private String retrieveInstanceHostName(Instance instance)
 	{
-		String hostname = null;
-		for(Tag tag : instance.getTags())
-		{
-			if(tag.getKey().equals(TAG_WITH_HOSTNAME))
-			{
-				hostname = tag.getValue(); 
-				break;
-			}
-		}
+		String hostname = HOSTNAME_TAG_POLICY.match(instance.getTags(), _hostnameMatch).getValue(TAG_WITH_HOSTNAME);
 		if(StringUtils.isNullOrEmpty(hostname))
 		{
-			System.out.println("The <Name> tag is not present or is empty. Can't retrieve hostname.");
+			HandlerLog.sample(Level.WARN, "HostnameTagMissing", "instanceId", instance.getInstanceId(), "tag", TAG_WITH_HOSTNAME);
 			return null;
 		}
-		return hostname.trim();
+		return hostname;
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,294 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * A declarative tag policy, compiled once into a matcher that evaluates every rule in a single pass over an
+ * instance's tags.
+ * 
+ * Each distinct tag key referenced by the policy gets a slot (bit) index. Matching walks the tag list once, 
+ * looks each key up in a hash map and sets the slot's bit if the value is non-blank (and matches the key's value
+ * pattern, if any). Rules are then checked as bit masks: a rule is satisfied if any of its keys' bits is set,
+ * which is how either-of groups such as PO_Number|Cost_Center are expressed.
+ * 
+ * The compliance check, matchMask() and isCompliant(long), keeps the result as a primitive bit mask and allocates
+ * nothing (other than a Matcher per value checked against a pattern), so it can run over every instance of a fleet
+ * scan, from several threads at once. Callers that need 
+ * the violations or the values of matched keys (e.g. hostname lookup via the Name tag) get them from a TagMatch, 
+ * which can be reused from one resource to the next instead of allocating one per call.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public final class TagPolicy 
+{
+    public static final String  DEFAULT_POLICY_RESOURCE = "/tag-policy.properties";
+    
+    private static final String REQUIRED_PROPERTY = "required";
+    private static final String PATTERN_PROPERTY_PREFIX = "pattern.";
+    private static final String DEFAULT_REQUIRED_RULES = "PO_Number|Cost_Center, Application_Name, Approver, Owner, Name";
+    private static final int    MAX_SLOTS = Long.SIZE;
+    
+    private final Map<String, Integer> _slotByKey = new HashMap<String, Integer>();
+    private final List<String>         _slotKeys = new ArrayList<String>();
+    private final List<Pattern>        _slotPatterns = new ArrayList<Pattern>();
+    private final long[]               _ruleMasks;
+    private final String[]             _ruleDescriptions;
+    
+    private TagPolicy(List<String[]> rules, Map<String, Pattern> patterns, List<String> capturedKeys)
+    {
+        _ruleMasks = new long[rules.size()];
+        _ruleDescriptions = new String[rules.size()];
+        for(int i = 0; i < rules.size(); i++)
+        {
+            String[] keys = rules.get(i);
+            for(String key : keys) _ruleMasks[i] |= 1L << slotFor(key, patterns.get(key));
+            _ruleDescriptions[i] = StringUtils.join(" or ", keys);
+        }
+        for(String key : capturedKeys) slotFor(key, patterns.get(key));
+    }
+    
+    private int slotFor(String key, Pattern pattern)
+    {
+        Integer slot = _slotByKey.get(key);
+        if(slot != null) return slot;
+        if(_slotKeys.size() == MAX_SLOTS) throw new IllegalArgumentException("Tag policy references more than " + MAX_SLOTS + " keys.");
+        _slotByKey.put(key, _slotKeys.size());
+        _slotKeys.add(key);
+        _slotPatterns.add(pattern);
+        return _slotKeys.size() - 1;
+    }
+    
+    /**
+     * The policy loaded from tag-policy.properties on the classpath (or the built-in default rules if absent),
+     * compiled once per container.
+     */
+    public static TagPolicy getDefault()
+    {
+        return DefaultPolicyHolder.POLICY;
+    }
+    
+    /**
+     * A policy without rules that only indexes the given keys, for callers that just need tag values.
+     */
+    public static TagPolicy capturing(String... keys)
+    {
+        List<String> capturedKeys = new ArrayList<String>();
+        Collections.addAll(capturedKeys, keys);
+        return new TagPolicy(Collections.<String[]>emptyList(), Collections.<String, Pattern>emptyMap(), capturedKeys);
+    }
+    
+    public static TagPolicy compile(Properties config)
+    {
+        List<String[]> rules = new ArrayList<String[]>();
+        for(String rule : config.getProperty(REQUIRED_PROPERTY, "").split(","))
+        {
+            if(rule.trim().isEmpty()) continue;
+            String[] keys = rule.split("\\|");
+            for(int i = 0; i < keys.length; i++) keys[i] = keys[i].trim();
+            rules.add(keys);
+        }
+        Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+        for(String name : config.stringPropertyNames())
+        {
+            if(!name.startsWith(PATTERN_PROPERTY_PREFIX)) continue;
+            patterns.put(name.substring(PATTERN_PROPERTY_PREFIX.length()), Pattern.compile(config.getProperty(name).trim()));
+        }
+        return new TagPolicy(rules, patterns, Collections.<String>emptyList());
+    }
+    
+    private static TagPolicy loadDefault()
+    {
+        Properties config = new Properties();
+        InputStream in = TagPolicy.class.getResourceAsStream(DEFAULT_POLICY_RESOURCE);
+        if(in == null)
+        {
+            config.setProperty(REQUIRED_PROPERTY, DEFAULT_REQUIRED_RULES);
+            return compile(config);
+        }
+        try {
+            config.load(in);
+            return compile(config);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load tag policy from " + DEFAULT_POLICY_RESOURCE, e);
+        } finally {
+            try { in.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+    
+    /**
+     * @return the bits of the policy's keys that carry a non-blank, valid value in the tags
+     */
+    public long matchMask(List<Tag> tags)
+    {
+        return scan(tags, null);
+    }
+    
+    /**
+     * @param presentMask as returned by matchMask()
+     */
+    public boolean isCompliant(long presentMask)
+    {
+        for(long ruleMask : _ruleMasks)
+        {
+            if((presentMask & ruleMask) == 0) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Evaluates all rules in one pass over the tags, into a new TagMatch.
+     */
+    public TagMatch match(List<Tag> tags)
+    {
+        return match(tags, newMatch());
+    }
+    
+    /**
+     * As match(List), but overwrites and returns the given TagMatch rather than allocating one.
+     * 
+     * @param reuse a TagMatch from this policy's newMatch(), not shared between threads
+     */
+    public TagMatch match(List<Tag> tags, TagMatch reuse)
+    {
+        if(reuse._policy != this) throw new IllegalArgumentException("TagMatch belongs to a different policy.");
+        reuse.reset();
+        reuse.presentMask = scan(tags, reuse);
+        return reuse;
+    }
+    
+    public TagMatch newMatch()
+    {
+        return new TagMatch(this);
+    }
+    
+    /**
+     * @param match if not null, receives the values and the invalid mask
+     * @return the present mask
+     */
+    private long scan(List<Tag> tags, TagMatch match)
+    {
+        long presentMask = 0;
+        if(tags == null) return presentMask;
+        for(int i = 0, n = tags.size(); i < n; i++)
+        {
+            Tag tag = tags.get(i);
+            int slot = lookupSlot(tag.getKey());
+            if(slot < 0) continue;
+            String value = tag.getValue();
+            if(isBlank(value)) continue;
+            Pattern pattern = _slotPatterns.get(slot);
+            if(pattern != null && !pattern.matcher(value.trim()).matches())
+            {
+                if(match != null) match.invalidMask |= 1L << slot;
+                continue;
+            }
+            presentMask |= 1L << slot;
+            if(match != null) match.values[slot] = value;
+        }
+        return presentMask;
+    }
+    
+    /**
+     * @return the slot of the key, ignoring surrounding whitespace, or -1 if the policy doesn't reference it
+     */
+    private int lookupSlot(String key)
+    {
+        if(key == null) return -1;
+        Integer slot = _slotByKey.get(key);
+        if(slot != null) return slot;
+        int start = 0, end = key.length();
+        while(start < end && key.charAt(start) <= ' ') start++;
+        while(end > start && key.charAt(end - 1) <= ' ') end--;
+        if(start == 0 && end == key.length()) return -1;
+        // padded keys are compared in place rather than trimmed, which would allocate
+        for(int i = 0, n = _slotKeys.size(); i < n; i++)
+        {
+            String slotKey = _slotKeys.get(i);
+            if(slotKey.length() == end - start && key.regionMatches(start, slotKey, 0, end - start)) return i;
+        }
+        return -1;
+    }
+    
+    private static boolean isBlank(String value)
+    {
+        if(value == null) return true;
+        for(int i = 0, n = value.length(); i < n; i++)
+        {
+            if(value.charAt(i) > ' ') return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Result of matching a policy against one resource's tags.
+     */
+    public static final class TagMatch
+    {
+        private final TagPolicy _policy;
+        private final String[]  values;
+        private long            presentMask;
+        private long            invalidMask;
+        
+        private TagMatch(TagPolicy policy)
+        {
+            _policy = policy;
+            values = new String[policy._slotKeys.size()];
+        }
+        
+        private void reset()
+        {
+            Arrays.fill(values, null);
+            presentMask = 0;
+            invalidMask = 0;
+        }
+        
+        public boolean isCompliant()
+        {
+            return _policy.isCompliant(presentMask);
+        }
+        
+        /**
+         * @return one message per violated rule, in policy order
+         */
+        public List<String> getViolations()
+        {
+            List<String> violations = new ArrayList<String>();
+            for(int i = 0; i < _policy._ruleMasks.length; i++)
+            {
+                long ruleMask = _policy._ruleMasks[i];
+                if((presentMask & ruleMask) != 0) continue;
+                if((invalidMask & ruleMask) != 0) violations.add("Please correct invalid value for tag: " + _policy._ruleDescriptions[i]);
+                else violations.add("Please provide missing tag: " + _policy._ruleDescriptions[i]);
+            }
+            return violations;
+        }
+        
+        /**
+         * @return the trimmed, non-blank value of a key known to the policy, or null if absent
+         */
+        public String getValue(String key)
+        {
+            Integer slot = _policy._slotByKey.get(key);
+            if(slot == null || values[slot] == null) return null;
+            return values[slot].trim();
+        }
+    }
+    
+    private static final class DefaultPolicyHolder
+    {
+        static final TagPolicy POLICY = loadDefault();
+    }
+}
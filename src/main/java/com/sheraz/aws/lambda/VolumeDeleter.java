@@ -0,0 +1,203 @@
+package com.sheraz.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+
+/**
+ * Deletes EBS volumes with bounded concurrency. Throttling (RequestLimitExceeded) is handled with exponential 
+ * backoff and full jitter per volume, plus a shared adaptive delay that slows every worker down while EC2 is 
+ * pushing back and relaxes again as calls succeed.
+ * 
+ * Each volume's outcome is recorded individually, so a single bad volume never aborts the sweep. Volumes that 
+ * could not be attempted before the time budget ran out are recorded as failures as well. If the calling thread 
+ * is interrupted (its sweep has been given up on), the workers are stopped at once and no further deletes start.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class VolumeDeleter 
+{
+    public static final int     DEFAULT_CONCURRENCY = 8;
+    
+    private static final int    MAX_ATTEMPTS = 6;
+    private static final long   BASE_BACKOFF_MILLIS = 200;
+    private static final long   MAX_BACKOFF_MILLIS = 10 * 1000;
+    
+    private final AmazonEC2     _amazonEC2;
+    private final int           _concurrency;
+    private final long          _timeBudgetMillis;
+    private final AtomicLong    _throttleDelayMillis = new AtomicLong();
+    
+    public VolumeDeleter(AmazonEC2 amazonEC2, int concurrency, long timeBudgetMillis)
+    {
+        if(concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        _amazonEC2 = amazonEC2;
+        _concurrency = concurrency;
+        _timeBudgetMillis = timeBudgetMillis;
+    }
+    
+    public VolumeDeletionResult deleteVolumes(List<String> volumeIds)
+    {
+        VolumeDeletionResult result = new VolumeDeletionResult();
+        if(volumeIds == null || volumeIds.isEmpty()) return result;
+        
+        final long deadline = System.currentTimeMillis() + _timeBudgetMillis;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_concurrency, volumeIds.size()));
+        try {
+            List<Future<String>> outcomes = new ArrayList<Future<String>>(volumeIds.size());
+            for(final String volumeId : volumeIds)
+            {
+                outcomes.add(executor.submit(new Callable<String>() {
+                    public String call() { return deleteVolume(volumeId, deadline); }
+                }));
+            }
+            for(int i = 0; i < volumeIds.size(); i++)
+            {
+                String failure = awaitOutcome(outcomes.get(i));
+                if(failure == null) result.addDeleted(volumeIds.get(i));
+                else result.addFailed(volumeIds.get(i), failure);
+                if(Thread.currentThread().isInterrupted()) executor.shutdownNow();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        HandlerMetrics.current().add("VolumesDeleted", result.getDeletedVolumeIds().size());
+        HandlerMetrics.current().add("VolumeDeleteFailures", result.getFailedVolumes().size());
+        return result;
+    }
+    
+    private String awaitOutcome(Future<String> outcome)
+    {
+        try {
+            return outcome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted before completion";
+        } catch (ExecutionException e) {
+            return String.valueOf(e.getCause());
+        }
+    }
+    
+    /**
+     * @return null on success, otherwise a description of the failure
+     */
+    private String deleteVolume(String volumeId, long deadline)
+    {
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+        {
+            if(Thread.currentThread().isInterrupted()) return "Interrupted before delete was attempted";
+            if(!pause(jitter(_throttleDelayMillis.get()), deadline)) return "Time budget exhausted before delete was attempted";
+            try {
+                _amazonEC2.deleteVolume(new DeleteVolumeRequest(volumeId));
+                relaxThrottleDelay();
+                return null;
+            } catch (AmazonServiceException e) {
+                if(!isThrottlingError(e)) return e.getErrorCode() + ": " + e.getErrorMessage();
+                HandlerMetrics.current().increment("VolumeDeleteRetries");
+                increaseThrottleDelay();
+                if(!pause(jitter(backoffCeiling(attempt)), deadline)) return "Throttled until time budget was exhausted";
+            } catch (AmazonClientException e) {
+                return e.getMessage();
+            }
+        }
+        return "Still throttled after " + MAX_ATTEMPTS + " attempts";
+    }
+    
+    private boolean isThrottlingError(AmazonServiceException e)
+    {
+        String code = e.getErrorCode();
+        return "RequestLimitExceeded".equals(code) || "Throttling".equals(code);
+    }
+    
+    private long backoffCeiling(int attempt)
+    {
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+    }
+    
+    private long jitter(long ceilingMillis)
+    {
+        return ceilingMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceilingMillis + 1);
+    }
+    
+    private void increaseThrottleDelay()
+    {
+        long current;
+        do {
+            current = _throttleDelayMillis.get();
+        } while(!_throttleDelayMillis.compareAndSet(current, Math.min(MAX_BACKOFF_MILLIS, Math.max(BASE_BACKOFF_MILLIS, current * 2))));
+    }
+    
+    private void relaxThrottleDelay()
+    {
+        long current;
+        do {
+            current = _throttleDelayMillis.get();
+            if(current == 0) return;
+        } while(!_throttleDelayMillis.compareAndSet(current, current / 2 < BASE_BACKOFF_MILLIS ? 0 : current / 2));
+    }
+    
+    /**
+     * @return false if the deadline has passed or would pass during the pause
+     */
+    private boolean pause(long millis, long deadline)
+    {
+        if(System.currentTimeMillis() + millis >= deadline) return false;
+        if(millis <= 0) return true;
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Per-volume outcome of a deletion sweep.
+     */
+    public static class VolumeDeletionResult
+    {
+        private final List<String>        _deleted = new ArrayList<String>();
+        private final Map<String, String> _failed = new LinkedHashMap<String, String>();
+        
+        void addDeleted(String volumeId)
+        {
+            _deleted.add(volumeId);
+        }
+        
+        void addFailed(String volumeId, String reason)
+        {
+            _failed.put(volumeId, reason);
+        }
+        
+        public List<String> getDeletedVolumeIds()
+        {
+            return Collections.unmodifiableList(_deleted);
+        }
+        
+        public Map<String, String> getFailedVolumes()
+        {
+            return Collections.unmodifiableMap(_failed);
+        }
+        
+        public int getAttemptedCount()
+        {
+            return _deleted.size() + _failed.size();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.sheraz.aws.lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.List;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * A snapshot of the detached volumes the janitor saw in one run: per volume, its id, its delete-scheduled-on date
+ * (epoch millis, or VolumeLifecycleClassifier.UNSCHEDULED) and a 64-bit hash of its tags, so the next run can
+ * tell which volumes are new or have changed since (see VolumeInventoryTracker).
+ *
+ * The snapshot is a flat binary file rather than JSON, read in place from whatever buffer it comes in (such as a
+ * memory-mapped file) with a small open-addressing index of record offsets built on top, so loading 100k volumes
+ * costs a few milliseconds and looking one up allocates nothing:
+ *
+ *     int magic "VINV", int version, long taken-at epoch millis, int count, then count records of
+ *     byte id length, id (ASCII), long delete-on, long tag hash
+ *
+ * @author Sheraz Khan
+ *
+ */
+public final class VolumeInventory
+{
+    public static final String  STORE_DIR_ENV = "JANITOR_INVENTORY_DIR";
+
+    private static final int    MAGIC = 0x56494E56;
+    private static final int    VERSION = 1;
+    private static final int    HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int    MAX_ID_LENGTH = 255;
+    private static final int    MIN_RECORD_BYTES = 1 + 16;
+
+    private final ByteBuffer    _buffer;
+    private final long          _takenAt;
+    private final int           _count;
+    private final int[]         _index; // record offset + 1 per slot, 0 for an empty slot
+    private final int           _mask;
+
+    private VolumeInventory(ByteBuffer buffer, long takenAt, int count) throws IOException
+    {
+        _buffer = buffer;
+        _takenAt = takenAt;
+        _count = count;
+        _index = new int[Integer.highestOneBit(Math.max(1, count) * 2) * 2];
+        _mask = _index.length - 1;
+
+        int offset = HEADER_BYTES;
+        for(int i = 0; i < count; i++)
+        {
+            if(offset >= buffer.limit()) throw new IOException("Volume inventory is truncated after " + i + " of " + count + " records");
+            int length = buffer.get(offset) & 0xFF;
+            if(offset + 1 + length + 16 > buffer.limit()) throw new IOException("Volume inventory is truncated in record " + i + " of " + count);
+            int slot = hash(buffer, offset + 1, length) & _mask;
+            while(_index[slot] != 0) slot = (slot + 1) & _mask;
+            _index[slot] = offset + 1;
+            offset += 1 + length + 16;
+        }
+    }
+
+    /**
+     * @param buffer a snapshot written by Builder.build(), e.g. a memory-mapped file; it is used in place
+     */
+    public static VolumeInventory read(ByteBuffer buffer) throws IOException
+    {
+        if(buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) throw new IOException("Not a volume inventory");
+        if(buffer.getInt(4) != VERSION) throw new IOException("Unsupported volume inventory version " + buffer.getInt(4));
+        int count = buffer.getInt(16);
+        if(count < 0 || count > (buffer.limit() - HEADER_BYTES) / MIN_RECORD_BYTES) throw new IOException("Volume inventory is truncated or corrupt, count " + count);
+        return new VolumeInventory(buffer, buffer.getLong(8), count);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * @return epoch millis of the run the snapshot was taken in
+     */
+    public long getTakenAt()
+    {
+        return _takenAt;
+    }
+
+    public int size()
+    {
+        return _count;
+    }
+
+    /**
+     * @return the volume's record, for getDeleteOn() and getTagHash(), or -1 if the volume isn't in the snapshot
+     */
+    public int find(String volumeId)
+    {
+        int length = volumeId.length();
+        for(int slot = hash(volumeId) & _mask; _index[slot] != 0; slot = (slot + 1) & _mask)
+        {
+            int record = _index[slot] - 1;
+            if(matches(record, volumeId, length)) return record;
+        }
+        return -1;
+    }
+
+    public long getDeleteOn(int record)
+    {
+        return _buffer.getLong(record + 1 + (_buffer.get(record) & 0xFF));
+    }
+
+    public long getTagHash(int record)
+    {
+        return _buffer.getLong(record + 1 + (_buffer.get(record) & 0xFF) + 8);
+    }
+
+    private boolean matches(int record, String volumeId, int length)
+    {
+        if((_buffer.get(record) & 0xFF) != length) return false;
+        for(int i = 0; i < length; i++)
+        {
+            if(_buffer.get(record + 1 + i) != (byte) volumeId.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The same hash over a String id as over its ASCII bytes.
+     */
+    private static int hash(String id)
+    {
+        int hash = 0;
+        for(int i = 0; i < id.length(); i++) hash = 31 * hash + (byte) id.charAt(i);
+        return mix(hash);
+    }
+
+    private static int hash(ByteBuffer buffer, int from, int length)
+    {
+        int hash = 0;
+        for(int i = from; i < from + length; i++) hash = 31 * hash + buffer.get(i);
+        return mix(hash);
+    }
+
+    private static int mix(int hash)
+    {
+        hash *= 0x9E3779B1;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A hash of the volume's tags that doesn't depend on the order EC2 lists them in.
+     */
+    public static long tagHash(List<Tag> tags)
+    {
+        long hash = 0;
+        if(tags == null) return hash;
+        for(int i = 0, n = tags.size(); i < n; i++)
+        {
+            Tag tag = tags.get(i);
+            long tagHash = 0xCBF29CE484222325L; // FNV-1a over key, a separator and value
+            tagHash = fnv(tagHash, tag.getKey());
+            tagHash = (tagHash ^ 0xFF) * 0x100000001B3L;
+            tagHash = fnv(tagHash, tag.getValue());
+            hash += fmix(tagHash);
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, String text)
+    {
+        if(text == null) return hash;
+        for(int i = 0; i < text.length(); i++) hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+        return hash;
+    }
+
+    private static long fmix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * @return the store named by the JANITOR_INVENTORY_DIR environment variable, or null if unset (every run then
+     *         works from a full scan alone)
+     */
+    public static InventoryStore storeFromEnvironment()
+    {
+        String directory = System.getenv(STORE_DIR_ENV);
+        return StringUtils.isNullOrEmpty(directory) ? null : new LocalDirectoryInventoryStore(Paths.get(directory.trim()));
+    }
+
+    /**
+     * Collects the records of the next snapshot, in scan order.
+     */
+    public static final class Builder
+    {
+        private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream(64 * 1024);
+        private final DataOutputStream      _out = new DataOutputStream(_bytes);
+        private int                         _count;
+
+        private Builder()
+        {
+            try {
+                _out.write(new byte[HEADER_BYTES]); // filled in by build()
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void add(String volumeId, long deleteOn, long tagHash)
+        {
+            if(volumeId.length() > MAX_ID_LENGTH) throw new IllegalArgumentException("Volume id too long: " + volumeId);
+            try {
+                _out.writeByte(volumeId.length());
+                for(int i = 0; i < volumeId.length(); i++)
+                {
+                    char c = volumeId.charAt(i);
+                    if(c > 0x7F) throw new IllegalArgumentException("Volume id is not ASCII: " + volumeId);
+                    _out.writeByte(c);
+                }
+                _out.writeLong(deleteOn);
+                _out.writeLong(tagHash);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // never thrown by a ByteArrayOutputStream
+            }
+            _count++;
+        }
+
+        public int size()
+        {
+            return _count;
+        }
+
+        /**
+         * @return the snapshot, ready to be stored or read back
+         */
+        public ByteBuffer build(long takenAt)
+        {
+            ByteBuffer snapshot = ByteBuffer.wrap(_bytes.toByteArray());
+            snapshot.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, takenAt).putInt(16, _count);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Where snapshots are kept between runs, by name. A shared store (such as an S3 bucket) can be plugged in
+     * instead of LocalDirectoryInventoryStore by implementing this.
+     */
+    public interface InventoryStore
+    {
+        /**
+         * @return the snapshot, or null if none has been saved under the name yet
+         */
+        VolumeInventory load(String name) throws IOException;
+
+        void save(String name, ByteBuffer snapshot) throws IOException;
+    }
+}
@@ -0,0 +1,120 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import com.sheraz.aws.lambda.VolumeInventory.InventoryStore;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+
+/**
+ * Compares one janitor run's scan against the inventory snapshot the previous run left behind, so a volume inside
+ * the notification window is only warned about once: when it is first seen, when its tags change, or when its
+ * delete-scheduled-on date comes into the window. Everything scanned goes into the next snapshot, which is saved by
+ * commitIfNotified() once the run's notifications have gone out; a run that fails before then, or whose notifications
+ * don't all go out, leaves the previous snapshot in place and its volumes are warned about again next time.
+ *
+ * Without a store, or if the previous snapshot can't be read, every volume counts as unwarned and the run behaves as
+ * a full one.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class VolumeInventoryTracker
+{
+    private final InventoryStore            _store;
+    private final String                    _name;
+    private final long                      _now;
+    private final VolumeInventory           _previous;
+    private final long                      _previousNotifyFrom;
+    private final VolumeInventory.Builder   _next = VolumeInventory.builder();
+    private int                             _newCount;
+    private int                             _changedCount;
+
+    private VolumeInventoryTracker(InventoryStore store, String name, Instant now, VolumeInventory previous, int notifyDays)
+    {
+        _store = store;
+        _name = name;
+        _now = now.toEpochMilli();
+        _previous = previous;
+        _previousNotifyFrom = previous == null ? Long.MIN_VALUE
+                                               : Instant.ofEpochMilli(previous.getTakenAt()).plus(notifyDays, ChronoUnit.DAYS).toEpochMilli();
+    }
+
+    /**
+     * @param store where snapshots are kept, or null for full runs
+     * @param notifyDays the notification window the runs use, see VolumeLifecycleClassifier
+     */
+    public static VolumeInventoryTracker open(InventoryStore store, String name, Instant now, int notifyDays)
+    {
+        VolumeInventory previous = null;
+        if(store != null)
+        {
+            try {
+                previous = store.load(name);
+            } catch (IOException e) {
+                HandlerLog.warn("InventoryUnreadable", "inventory", name, "error", e);
+            }
+        }
+        return new VolumeInventoryTracker(store, name, now, previous, notifyDays);
+    }
+
+    /**
+     * Adds the volume to the next snapshot.
+     *
+     * @return true if the volume hasn't been warned about in its current state yet
+     */
+    public boolean record(ClassifiedVolume volume)
+    {
+        long tagHash = VolumeInventory.tagHash(volume.getVolume().getTags());
+        _next.add(volume.getVolumeId(), volume.getDeleteOn(), tagHash);
+        if(_previous == null) return true;
+
+        int record = _previous.find(volume.getVolumeId());
+        if(record < 0)
+        {
+            _newCount++;
+            return true;
+        }
+        if(_previous.getTagHash(record) != tagHash)
+        {
+            _changedCount++;
+            return true;
+        }
+        // the previous run warned about it if it was inside that run's window already
+        return volume.getDeleteOn() >= _previousNotifyFrom;
+    }
+
+    /**
+     * Saves the next snapshot, but only if every notification of the run went out: a volume whose warning was lost
+     * must still count as unwarned next time.
+     *
+     * @param failedNotifications the count NotificationPublisher.flush() returned
+     * @return true if the snapshot was saved
+     */
+    public boolean commitIfNotified(int failedNotifications)
+    {
+        if(failedNotifications == 0) return commit();
+        HandlerLog.warn("InventoryNotSaved", "inventory", _name, "failedNotifications", failedNotifications);
+        return false;
+    }
+
+    /**
+     * Saves the next snapshot. A failure is logged rather than thrown: the next run just repeats this one's warnings.
+     *
+     * @return true if the snapshot was saved
+     */
+    public boolean commit()
+    {
+        if(_store == null) return false;
+        try {
+            _store.save(_name, _next.build(_now));
+            HandlerLog.summary("InventoryUpdated", "inventory", _name, "volumes", _next.size(),
+                               "previous", _previous == null ? 0 : _previous.size(), "new", _newCount, "changed", _changedCount);
+            return true;
+        } catch (IOException e) {
+            HandlerLog.warn("InventoryNotSaved", "inventory", _name, "error", e);
+            return false;
+        }
+    }
+}
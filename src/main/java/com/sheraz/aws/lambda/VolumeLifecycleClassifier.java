@@ -0,0 +1,199 @@
+package com.sheraz.aws.lambda;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+/**
+ * Reads each detached volume's tags once and puts it into exactly one lifecycle bucket relative to a fixed 
+ * point in time:
+ * 
+ * - UNMARKED: no (parseable) delete-scheduled-on tag yet, needs stamping
+ * - SAFE: scheduled for deletion, but outside the notification window
+ * - NOTIFY: scheduled for deletion within the notification window
+ * - DUE: delete-scheduled-on date has passed
+ * 
+ * Dates are held as epoch millis and parsed with an immutable java.time formatter, so a classifier can be shared
+ * freely between threads.
+ * 
+ * @author Sheraz Khan
+ *
+ */
+public class VolumeLifecycleClassifier 
+{
+    public static final DateTimeFormatter DELETE_ON_FORMAT = 
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+    
+    public static final long              UNSCHEDULED = Long.MIN_VALUE;
+    
+    public enum VolumeLifecycle { UNMARKED, SAFE, NOTIFY, DUE }
+    
+    private final String _scheduleDeleteTag;
+    private final long   _now;
+    private final long   _notifyFrom;
+    
+    /**
+     * @param notifyDays volumes scheduled for deletion within this many days of now fall into the NOTIFY bucket
+     */
+    public VolumeLifecycleClassifier(String scheduleDeleteTag, Instant now, int notifyDays)
+    {
+        _scheduleDeleteTag = scheduleDeleteTag;
+        _now = now.toEpochMilli();
+        _notifyFrom = now.plus(notifyDays, ChronoUnit.DAYS).toEpochMilli();
+    }
+    
+    public ClassifiedVolume classify(Volume volume)
+    {
+        long deleteOn = getScheduledDeleteOn(volume);
+        VolumeLifecycle lifecycle;
+        if(deleteOn == UNSCHEDULED) lifecycle = VolumeLifecycle.UNMARKED;
+        else if(deleteOn < _now) lifecycle = VolumeLifecycle.DUE;
+        else if(deleteOn < _notifyFrom) lifecycle = VolumeLifecycle.NOTIFY;
+        else lifecycle = VolumeLifecycle.SAFE;
+        return new ClassifiedVolume(volume, lifecycle, deleteOn);
+    }
+    
+    public VolumeClassification classify(List<Volume> volumes)
+    {
+        VolumeClassification classification = new VolumeClassification();
+        for(Volume volume : volumes) classification.add(classify(volume));
+        return classification;
+    }
+    
+    private long getScheduledDeleteOn(Volume volume)
+    {
+        List<Tag> tags = volume.getTags();
+        if(tags == null) return UNSCHEDULED;
+        for(int i = 0, n = tags.size(); i < n; i++)
+        {
+            Tag tag = tags.get(i);
+            if(_scheduleDeleteTag.equals(tag.getKey())) return parseDeleteOn(tag.getValue());
+        }
+        return UNSCHEDULED;
+    }
+    
+    /**
+     * @return epoch millis, or UNSCHEDULED if the value is missing or not a valid date
+     */
+    public static long parseDeleteOn(String value)
+    {
+        if(value == null) return UNSCHEDULED;
+        String trimmed = value.trim();
+        long fastParsed = parseCanonicalDeleteOn(trimmed);
+        if(fastParsed != UNSCHEDULED) return fastParsed;
+        try {
+            return Instant.from(DELETE_ON_FORMAT.parse(trimmed)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return UNSCHEDULED;
+        }
+    }
+    
+    /**
+     * Fast path for the exact format we write ourselves (yyyy-MM-ddTHH:mm:ssZ), which is what nearly every tag 
+     * holds. Anything else (including out of range fields) falls through to the formatter.
+     */
+    private static long parseCanonicalDeleteOn(String value)
+    {
+        if(value.length() != 20 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T' 
+           || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(19) != 'Z') return UNSCHEDULED;
+        int year = digits(value, 0, 4), month = digits(value, 5, 2), day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2), minute = digits(value, 14, 2), second = digits(value, 17, 2);
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > 28 || hour < 0 || hour > 23 
+           || minute < 0 || minute > 59 || second < 0 || second > 59) return UNSCHEDULED; // day > 28 needs month-length validation
+        long epochDay = LocalDate.of(year, month, day).toEpochDay();
+        return ((epochDay * 24 + hour) * 60 + minute) * 60 * 1000 + second * 1000L;
+    }
+    
+    private static int digits(String value, int from, int count)
+    {
+        int result = 0;
+        for(int i = from; i < from + count; i++)
+        {
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+    
+    public static String formatDeleteOn(long epochMillis)
+    {
+        return DELETE_ON_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+    
+    /**
+     * A volume together with its bucket and parsed delete-scheduled-on date (UNSCHEDULED if unmarked).
+     */
+    public static final class ClassifiedVolume
+    {
+        private final Volume          _volume;
+        private final VolumeLifecycle _lifecycle;
+        private final long            _deleteOn;
+        
+        ClassifiedVolume(Volume volume, VolumeLifecycle lifecycle, long deleteOn)
+        {
+            _volume = volume;
+            _lifecycle = lifecycle;
+            _deleteOn = deleteOn;
+        }
+        
+        public Volume getVolume() {
+            return _volume;
+        }
+        
+        public String getVolumeId() {
+            return _volume.getVolumeId();
+        }
+        
+        public VolumeLifecycle getLifecycle() {
+            return _lifecycle;
+        }
+        
+        public long getDeleteOn() {
+            return _deleteOn;
+        }
+    }
+    
+    /**
+     * Volumes grouped by bucket, in scan order.
+     */
+    public static final class VolumeClassification
+    {
+        private final Map<VolumeLifecycle, List<ClassifiedVolume>> _buckets = 
+                new EnumMap<VolumeLifecycle, List<ClassifiedVolume>>(VolumeLifecycle.class);
+        
+        VolumeClassification()
+        {
+            for(VolumeLifecycle lifecycle : VolumeLifecycle.values()) _buckets.put(lifecycle, new ArrayList<ClassifiedVolume>());
+        }
+        
+        void add(ClassifiedVolume volume)
+        {
+            _buckets.get(volume.getLifecycle()).add(volume);
+        }
+        
+        public List<ClassifiedVolume> get(VolumeLifecycle lifecycle)
+        {
+            return Collections.unmodifiableList(_buckets.get(lifecycle));
+        }
+        
+        public List<String> getVolumeIds(VolumeLifecycle lifecycle)
+        {
+            List<ClassifiedVolume> volumes = _buckets.get(lifecycle);
+            List<String> volumeIds = new ArrayList<String>(volumes.size());
+            for(ClassifiedVolume volume : volumes) volumeIds.add(volume.getVolumeId());
+            return volumeIds;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.sheraz.aws.lambda;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.amazonaws.services.sns.AmazonSNSAsyncClient;
+
+/**
+ * Every region DescribeRegions can return must get working clients, including the ones the pinned SDK's region list
+ * doesn't know about, or a fleet sweep over all enabled regions reports them as failed and never sweeps them.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class AWSClientRegistryTest extends TestCase
+{
+    private static final AWSCredentialsProvider CREDENTIALS = new StaticCredentialsProvider(new BasicAWSCredentials("test", "test"));
+
+    /** regionName and regionEndpoint of each region in DescribeRegions --all-regions. */
+    private static final String[][] DESCRIBED_REGIONS = {
+        { "af-south-1", "ec2.af-south-1.amazonaws.com" },
+        { "ap-east-1", "ec2.ap-east-1.amazonaws.com" },
+        { "ap-northeast-1", "ec2.ap-northeast-1.amazonaws.com" },
+        { "ap-northeast-2", "ec2.ap-northeast-2.amazonaws.com" },
+        { "ap-northeast-3", "ec2.ap-northeast-3.amazonaws.com" },
+        { "ap-south-1", "ec2.ap-south-1.amazonaws.com" },
+        { "ap-south-2", "ec2.ap-south-2.amazonaws.com" },
+        { "ap-southeast-1", "ec2.ap-southeast-1.amazonaws.com" },
+        { "ap-southeast-2", "ec2.ap-southeast-2.amazonaws.com" },
+        { "ap-southeast-3", "ec2.ap-southeast-3.amazonaws.com" },
+        { "ap-southeast-4", "ec2.ap-southeast-4.amazonaws.com" },
+        { "ap-southeast-5", "ec2.ap-southeast-5.amazonaws.com" },
+        { "ap-southeast-7", "ec2.ap-southeast-7.amazonaws.com" },
+        { "ca-central-1", "ec2.ca-central-1.amazonaws.com" },
+        { "ca-west-1", "ec2.ca-west-1.amazonaws.com" },
+        { "eu-central-1", "ec2.eu-central-1.amazonaws.com" },
+        { "eu-central-2", "ec2.eu-central-2.amazonaws.com" },
+        { "eu-north-1", "ec2.eu-north-1.amazonaws.com" },
+        { "eu-south-1", "ec2.eu-south-1.amazonaws.com" },
+        { "eu-south-2", "ec2.eu-south-2.amazonaws.com" },
+        { "eu-west-1", "ec2.eu-west-1.amazonaws.com" },
+        { "eu-west-2", "ec2.eu-west-2.amazonaws.com" },
+        { "eu-west-3", "ec2.eu-west-3.amazonaws.com" },
+        { "il-central-1", "ec2.il-central-1.amazonaws.com" },
+        { "me-central-1", "ec2.me-central-1.amazonaws.com" },
+        { "me-south-1", "ec2.me-south-1.amazonaws.com" },
+        { "mx-central-1", "ec2.mx-central-1.amazonaws.com" },
+        { "sa-east-1", "ec2.sa-east-1.amazonaws.com" },
+        { "us-east-1", "ec2.us-east-1.amazonaws.com" },
+        { "us-east-2", "ec2.us-east-2.amazonaws.com" },
+        { "us-west-1", "ec2.us-west-1.amazonaws.com" },
+        { "us-west-2", "ec2.us-west-2.amazonaws.com" },
+    };
+
+    public void testEveryDescribedRegionGetsAnEC2ClientAtItsEndpoint()
+    {
+        for(String[] region : DESCRIBED_REGIONS)
+        {
+            assertEquals(region[0], region[1], AWSClientRegistry.serviceEndpoint("ec2", region[0]));
+            AmazonEC2AsyncClient ec2 = AWSClientRegistry.ec2Async(region[0], CREDENTIALS);
+            assertEquals(region[0], ec2.getSignerRegionOverride());
+        }
+    }
+
+    public void testEveryDescribedRegionGetsAnSNSClient()
+    {
+        for(String[] region : DESCRIBED_REGIONS)
+        {
+            assertEquals(region[0], "sns." + region[0] + ".amazonaws.com", AWSClientRegistry.serviceEndpoint("sns", region[0]));
+            AmazonSNSAsyncClient sns = AWSClientRegistry.snsAsync(region[0], CREDENTIALS);
+            assertEquals(region[0], sns.getSignerRegionOverride());
+        }
+    }
+
+    public void testChinaRegionsUseTheirOwnDomain()
+    {
+        assertEquals("ec2.cn-northwest-1.amazonaws.com.cn", AWSClientRegistry.serviceEndpoint("ec2", "cn-northwest-1"));
+    }
+}
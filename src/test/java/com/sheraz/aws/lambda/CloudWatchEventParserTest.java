@@ -0,0 +1,317 @@
+package com.sheraz.aws.lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.sheraz.aws.lambda.EC2Client.CloudWatchScheduleEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEvent;
+import com.sheraz.aws.lambda.EC2Client.EC2InstanceStateChangeEventBatch;
+import com.sheraz.aws.lambda.EC2Client.VolumeAPICallEvent;
+
+/**
+ * The stream handlers trust CloudWatchEventParser instead of the runtime's Jackson binding, so it has to agree with
+ * Jackson on every event shape the handlers take, and fail rather than hand back half an event on bad input.
+ *
+ * Every payload is parsed as delivered in one piece, a byte at a time and in odd-sized chunks, so strings, escapes
+ * and multi-byte characters straddle the parser's buffer refills.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class CloudWatchEventParserTest extends TestCase
+{
+    private static final int[] CHUNK_SIZES = { Integer.MAX_VALUE, 1, 7 };
+
+    private static final String SCHEDULE_EVENT =
+        "{\"version\":\"0\",\"id\":\"89d1a02d-5ec7-412e-82f5-13505f849b41\",\"detail-type\":\"Scheduled Event\","
+        + "\"source\":\"aws.events\",\"account\":\"123456789012\",\"time\":\"2016-12-30T18:44:49Z\",\"region\":\"us-east-1\","
+        + "\"resources\":[\"arn:aws:events:us-east-1:123456789012:rule/SampleRule\"],\"detail\":{}}";
+
+    private static final String STATE_CHANGE_EVENT =
+        "{\n  \"version\": \"0\",\n  \"id\": \"ee376907-2647-4179-9203-343cfb3017a4\",\n  \"detail-type\": \"EC2 Instance State-change Notification\",\n"
+        + "  \"source\": \"aws.ec2\",\n  \"account\": \"123456789012\",\n  \"time\": \"2015-11-11T21:30:34Z\",\n  \"region\": \"us-east-1\",\n"
+        + "  \"resources\": [\"arn:aws:ec2:us-east-1:123456789012:instance/i-abcd1111\"],\n"
+        + "  \"detail\": {\n    \"instance-id\": \"i-abcd1111\",\n    \"state\": \"running\"\n  }\n}\n";
+
+    private static final String VOLUME_API_CALL_EVENT =
+        "{\"version\":\"0\",\"id\":\"6a7e8feb-b491-4cf7-a9f1-bf3703467718\",\"detail-type\":\"AWS API Call via CloudTrail\","
+        + "\"source\":\"aws.ec2\",\"account\":\"123456789012\",\"time\":\"2016-08-04T18:05:12Z\",\"region\":\"us-west-2\",\"resources\":[],"
+        + "\"detail\":{\"eventVersion\":\"1.05\",\"userIdentity\":{\"type\":\"IAMUser\",\"sessionContext\":{\"attributes\":{\"mfaAuthenticated\":\"false\"}}},"
+        + "\"eventTime\":\"2016-08-04T18:05:12Z\",\"eventSource\":\"ec2.amazonaws.com\",\"eventName\":\"DetachVolume\","
+        + "\"requestParameters\":{\"volumeId\":\"vol-0a1b2c3d\",\"force\":false,\"tagSpecificationSet\":{\"items\":[{\"volumeId\":\"vol-nested\"}]}},"
+        + "\"responseElements\":{\"requestId\":\"r-1\",\"instanceId\":\"i-1\",\"status\":\"detaching\",\"attachTime\":1470333912000},"
+        + "\"readOnly\":false,\"eventType\":\"AwsApiCall\"}}";
+
+    public void testScheduleEvent() throws IOException
+    {
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            CloudWatchScheduleEvent event = CloudWatchEventParser.parseScheduleEvent(stream(SCHEDULE_EVENT, chunkSize));
+            assertEquals("89d1a02d-5ec7-412e-82f5-13505f849b41", event.getId());
+            assertEquals("us-east-1", event.getRegion());
+            assertEquals("123456789012", event.getAccount());
+            assertTrue(event.getDetail().isEmpty());
+        }
+    }
+
+    public void testStateChangeEvent() throws IOException
+    {
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            EC2InstanceStateChangeEvent event = CloudWatchEventParser.parseStateChangeEvent(stream(STATE_CHANGE_EVENT, chunkSize));
+            assertEquals("ee376907-2647-4179-9203-343cfb3017a4", event.getId());
+            assertEquals("us-east-1", event.getRegion());
+            assertEquals("123456789012", event.getAccount());
+            assertEquals("i-abcd1111", event.getInstanceId());
+            assertEquals("running", event.getState());
+        }
+    }
+
+    public void testUnknownAndNestedFieldsAreSkipped() throws IOException
+    {
+        String json = "{\"extra\":{\"a\":[1,2,{\"id\":\"not-this\"}],\"b\":\"}]\\\"{\"},\"id\":\"e-1\",\"n\":-1.5e3,\"t\":true,\"f\":false,"
+                    + "\"z\":null,\"aVeryLongKeyNameThatIsLongerThanAnyOfTheWantedNames\":\"x\",\"detail\":{\"state\":{\"name\":\"running\"},"
+                    + "\"instance-id\":\"i-1\",\"more\":[[],{}]},\"region\":\"eu-west-1\"}";
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            EC2InstanceStateChangeEvent event = CloudWatchEventParser.parseStateChangeEvent(stream(json, chunkSize));
+            assertEquals("e-1", event.getId());
+            assertEquals("eu-west-1", event.getRegion());
+            assertNull(event.getAccount());
+            assertEquals("i-1", event.getInstanceId());
+            assertNull("a state that isn't a string is left unset", event.getState());
+        }
+    }
+
+    public void testNullAndNonStringValuesAreLeftUnset() throws IOException
+    {
+        EC2InstanceStateChangeEvent event = CloudWatchEventParser.parseStateChangeEvent(stream("{\"id\":null,\"region\":42,\"detail\":null}", 1));
+        assertNull(event.getId());
+        assertNull(event.getRegion());
+        assertNull(event.getDetail());
+    }
+
+    public void testEscapes() throws IOException
+    {
+        String json = "{\"id\":\"q\\\"uote\\\\back\\/slash\\b\\f\\n\\r\\t\\u00e9\\u20AC\\ud83d\\ude00\",\"re\\u0067ion\":\"us-east-1\"}";
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            CloudWatchScheduleEvent event = CloudWatchEventParser.parseScheduleEvent(stream(json, chunkSize));
+            assertEquals("q\"uote\\back/slash\b\f\n\r\t\u00e9\u20ac\ud83d\ude00", event.getId());
+            assertEquals("us-east-1", event.getRegion());
+        }
+    }
+
+    public void testEscapedKeysMatchTheirUnescapedName() throws IOException
+    {
+        CloudWatchScheduleEvent event = CloudWatchEventParser.parseScheduleEvent(stream("{\"\\u0069d\":\"e-1\",\"acc\\u00f6unt\":\"x\"}", 1));
+        assertEquals("e-1", event.getId());
+        assertNull(event.getAccount());
+    }
+
+    public void testMultiByteUtf8() throws IOException
+    {
+        String id = "caf\u00e9-\u20ac-\u65e5\u672c-\ud83d\ude00"; // 2, 3 and 4 byte sequences
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            CloudWatchScheduleEvent event = CloudWatchEventParser.parseScheduleEvent(stream("{\"id\":\"" + id + "\",\"x\":\"" + id + "\"}", chunkSize));
+            assertEquals(id, event.getId());
+        }
+    }
+
+    public void testStateChangeBatch() throws IOException
+    {
+        String json = "{\"source\":\"sqs\",\"events\":[" + STATE_CHANGE_EVENT + ", 42, {\"id\":\"e-2\",\"region\":\"us-west-2\","
+                    + "\"detail\":{\"instance-id\":\"i-2\",\"state\":\"terminated\"}}],\"count\":2}";
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            List<EC2InstanceStateChangeEvent> events = CloudWatchEventParser.parseStateChangeEventBatch(stream(json, chunkSize)).getEvents();
+            assertEquals(2, events.size());
+            assertEquals("i-abcd1111", events.get(0).getInstanceId());
+            assertEquals("running", events.get(0).getState());
+            assertEquals("us-west-2", events.get(1).getRegion());
+            assertEquals("i-2", events.get(1).getInstanceId());
+            assertEquals("terminated", events.get(1).getState());
+        }
+    }
+
+    public void testEmptyBatches() throws IOException
+    {
+        assertNull(CloudWatchEventParser.parseStateChangeEventBatch(stream("{}", 1)).getEvents());
+        assertTrue(CloudWatchEventParser.parseStateChangeEventBatch(stream("{\"events\":[ ]}", 1)).getEvents().isEmpty());
+        assertNull("events that aren't an array are left unset", CloudWatchEventParser.parseStateChangeEventBatch(stream("{\"events\":{}}", 1)).getEvents());
+    }
+
+    public void testVolumeAPICallEvent() throws IOException
+    {
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            VolumeAPICallEvent event = CloudWatchEventParser.parseVolumeAPICallEvent(stream(VOLUME_API_CALL_EVENT, chunkSize));
+            assertEquals("6a7e8feb-b491-4cf7-a9f1-bf3703467718", event.getId());
+            assertEquals("us-west-2", event.getRegion());
+            assertEquals("123456789012", event.getAccount());
+            assertEquals("2016-08-04T18:05:12Z", event.getTime());
+            assertEquals("DetachVolume", event.getEventName());
+            assertNull(event.getErrorCode());
+            assertEquals("only the top-level volumeId counts", "vol-0a1b2c3d", event.getVolumeId());
+        }
+    }
+
+    public void testVolumeAPICallEventTakesTheCreatedVolumeFromTheResponse() throws IOException
+    {
+        String json = "{\"id\":\"e\",\"detail\":{\"eventName\":\"CreateVolume\",\"errorCode\":null,\"requestParameters\":{\"size\":8},"
+                    + "\"responseElements\":{\"volumeId\":\"vol-new\",\"size\":\"8\"}}}";
+        VolumeAPICallEvent event = CloudWatchEventParser.parseVolumeAPICallEvent(stream(json, 7));
+        assertEquals("CreateVolume", event.getEventName());
+        assertEquals("vol-new", event.getVolumeId());
+
+        json = "{\"detail\":{\"eventName\":\"AttachVolume\",\"errorCode\":\"Client.IncorrectState\",\"requestParameters\":{\"volumeId\":\"vol-1\"},"
+             + "\"responseElements\":null}}";
+        event = CloudWatchEventParser.parseVolumeAPICallEvent(stream(json, 7));
+        assertEquals("Client.IncorrectState", event.getErrorCode());
+        assertEquals("vol-1", event.getVolumeId());
+    }
+
+    /**
+     * Larger than the 8 KB read buffer, with the wanted values after long skipped strings that cross refills,
+     * including an escape that lands exactly on a buffer boundary.
+     */
+    public void testPayloadLargerThanTheBuffer() throws IOException
+    {
+        StringBuilder json = new StringBuilder("{\"padding\":\"");
+        while(json.length() < 8 * 1024 - 1) json.append('x');
+        json.append("\\\"still padding"); // the backslash is the last byte of the first buffer
+        for(int i = 0; i < 3000; i++) json.append("\\u00e9\u00e9");
+        json.append("\",\"resources\":[");
+        for(int i = 0; i < 500; i++) json.append(i == 0 ? "" : ",").append("\"arn:aws:ec2:us-east-1:123456789012:instance/i-").append(i).append('"');
+        json.append("],\"id\":\"");
+        StringBuilder id = new StringBuilder();
+        for(int i = 0; i < 3000; i++) id.append("\u00e9\u20ac");
+        json.append(id).append("\",\"detail\":{\"instance-id\":\"i-last\",\"state\":\"stopped\"},\"region\":\"ap-south-1\"}");
+        assertTrue(json.toString().getBytes(StandardCharsets.UTF_8).length > 4 * 8 * 1024);
+
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            EC2InstanceStateChangeEvent event = CloudWatchEventParser.parseStateChangeEvent(stream(json.toString(), chunkSize));
+            assertEquals(id.toString(), event.getId());
+            assertEquals("ap-south-1", event.getRegion());
+            assertEquals("i-last", event.getInstanceId());
+            assertEquals("stopped", event.getState());
+        }
+    }
+
+    public void testMalformedInputIsRejected()
+    {
+        List<String> malformed = Arrays.asList(
+            "",
+            "   ",
+            "[]",
+            "null",
+            "{",
+            "{\"id\"",
+            "{\"id\":",
+            "{\"id\":\"e-1\"",
+            "{\"id\":\"e-1",
+            "{\"id\":\"e-1\",}",
+            "{\"id\":\"e-1\" \"region\":\"us-east-1\"}",
+            "{\"id\" \"e-1\"}",
+            "{\"id\":}",
+            "{\"id\":,\"region\":\"us-east-1\"}",
+            "{\"id\":\"e-1\"}}",
+            "{\"id\":\"e-1\"} {}",
+            "{\"id\":\"\\u12g4\"}",
+            "{\"id\":\"\\x\"}",
+            "{\"\\x\":\"e-1\"}",
+            "{\"id\":tru}",
+            "{\"id\":nul}",
+            "{\"id\":\"e-1\",\"x\":blah}",
+            "{\"x\":+1,\"id\":\"e-1\"}",
+            "{\"x\":1x,\"id\":\"e-1\"}",
+            "{\"x\":truex}",
+            "{\"id\":\"e-1\\",
+            "{\"detail\":{\"instance-id\":\"i-1\"}",
+            "{\"detail\":{\"instance-id\":\"i-1\",\"state\":\"running\"",
+            "{\"resources\":[\"a\",\"b\"",
+            "{\"resources\":[\"a\",\"b],\"id\":\"e-1\"}",
+            "{\"extra\":{\"a\":[1,2}");
+        for(String json : malformed)
+        {
+            for(int chunkSize : CHUNK_SIZES)
+            {
+                assertRejected(json, chunkSize);
+            }
+        }
+    }
+
+    public void testMalformedBatchIsRejected()
+    {
+        assertBatchRejected("{\"events\":[" + STATE_CHANGE_EVENT + ",");
+        assertBatchRejected("{\"events\":[" + STATE_CHANGE_EVENT + "}");
+        assertBatchRejected("{\"events\":[{\"id\":\"e-1\"]}");
+        assertBatchRejected("{\"events\":[]");
+        assertBatchRejected("{\"events\":[]}]");
+    }
+
+    public void testMalformedVolumeAPICallEventIsRejected()
+    {
+        String truncated = VOLUME_API_CALL_EVENT.substring(0, VOLUME_API_CALL_EVENT.length() - 1);
+        try {
+            CloudWatchEventParser.parseVolumeAPICallEvent(stream(truncated, 7));
+            fail("parsed a truncated event");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Malformed event JSON"));
+        }
+        try {
+            CloudWatchEventParser.parseVolumeAPICallEvent(stream("{\"detail\":{\"requestParameters\":{\"volumeId\":\"vol-1\"}", 7));
+            fail("parsed an unterminated detail");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertRejected(String json, int chunkSize)
+    {
+        try {
+            CloudWatchScheduleEvent event = CloudWatchEventParser.parseScheduleEvent(stream(json, chunkSize));
+            fail("parsed malformed " + json + " in chunks of " + chunkSize + " as id=" + event.getId());
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Malformed event JSON"));
+        }
+        try {
+            CloudWatchEventParser.parseStateChangeEvent(stream(json, chunkSize));
+            fail("parsed malformed " + json + " in chunks of " + chunkSize);
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertBatchRejected(String json)
+    {
+        for(int chunkSize : CHUNK_SIZES)
+        {
+            try {
+                EC2InstanceStateChangeEventBatch batch = CloudWatchEventParser.parseStateChangeEventBatch(stream(json, chunkSize));
+                fail("parsed malformed " + json + " as " + batch.getEvents());
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /**
+     * @return the JSON as UTF-8, handed out at most chunkSize bytes per read like a socket might
+     */
+    private static InputStream stream(String json, final int chunkSize)
+    {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length)
+            {
+                return super.read(buffer, offset, Math.min(length, chunkSize));
+            }
+        };
+    }
+}
@@ -0,0 +1,292 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * A lookup that misses, or a tag hash that changes when nothing did, decides whether a volume is warned about before
+ * it is deleted, so the snapshot format is checked end to end: written, saved, memory-mapped back and looked up.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class VolumeInventoryTest extends TestCase
+{
+    private static final long   TAKEN_AT = 1791158400000L; // 2026-10-05T00:00:00Z
+
+    private Path                _directory;
+    private LocalDirectoryInventoryStore _store;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        _directory = Files.createTempDirectory("volume-inventory-test");
+        _store = new LocalDirectoryInventoryStore(_directory);
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        try(Stream<Path> files = Files.list(_directory)) {
+            for(Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+        }
+        Files.delete(_directory);
+    }
+
+    public void testRoundTripThroughAMappedFile() throws IOException
+    {
+        List<String> volumeIds = new ArrayList<String>();
+        VolumeInventory.Builder builder = VolumeInventory.builder();
+        for(int i = 0; i < 5000; i++)
+        {
+            String volumeId = String.format("vol-%017x", i * 0x9E3779B97F4A7C15L);
+            volumeIds.add(volumeId);
+            builder.add(volumeId, deleteOn(i), i == 0 ? Long.MIN_VALUE : i * 31L);
+        }
+        builder.add("vol-unscheduled", VolumeLifecycleClassifier.UNSCHEDULED, 0);
+        _store.save("volumes-detached-123456789012-us-east-1", builder.build(TAKEN_AT));
+
+        VolumeInventory inventory = _store.load("volumes-detached-123456789012-us-east-1");
+        assertEquals(TAKEN_AT, inventory.getTakenAt());
+        assertEquals(5001, inventory.size());
+        for(int i = 0; i < volumeIds.size(); i++)
+        {
+            int record = inventory.find(volumeIds.get(i));
+            assertTrue(volumeIds.get(i), record >= 0);
+            assertEquals(deleteOn(i), inventory.getDeleteOn(record));
+            assertEquals(i == 0 ? Long.MIN_VALUE : i * 31L, inventory.getTagHash(record));
+        }
+        assertEquals(VolumeLifecycleClassifier.UNSCHEDULED, inventory.getDeleteOn(inventory.find("vol-unscheduled")));
+        assertEquals(-1, inventory.find("vol-absent"));
+        assertEquals(-1, inventory.find(volumeIds.get(1).substring(0, 20)));
+        assertEquals(-1, inventory.find(volumeIds.get(1) + "0"));
+        assertEquals(-1, inventory.find(""));
+    }
+
+    public void testMissingSnapshotLoadsAsNull() throws IOException
+    {
+        assertNull(_store.load("never-saved"));
+    }
+
+    public void testSaveReplacesThePreviousSnapshot() throws IOException
+    {
+        _store.save("volumes", snapshot(TAKEN_AT, "vol-1"));
+        _store.save("volumes", snapshot(TAKEN_AT + 1, "vol-2"));
+        VolumeInventory inventory = _store.load("volumes");
+        assertEquals(TAKEN_AT + 1, inventory.getTakenAt());
+        assertEquals(-1, inventory.find("vol-1"));
+        assertTrue(inventory.find("vol-2") >= 0);
+        try(Stream<Path> files = Files.list(_directory)) {
+            assertEquals("no temporary files are left behind", 1, files.count());
+        }
+    }
+
+    /**
+     * "Aa" and "BB" hash alike, so every id built from them lands on the same slot and is found by probing alone.
+     */
+    public void testCollidingIds() throws IOException
+    {
+        List<String> colliding = new ArrayList<String>();
+        collidingIds("vol-", 10, colliding);
+        assertEquals(1024, colliding.size());
+
+        VolumeInventory.Builder builder = VolumeInventory.builder();
+        for(int i = 0; i < colliding.size() - 1; i++) builder.add(colliding.get(i), deleteOn(i), i);
+        VolumeInventory inventory = VolumeInventory.read(builder.build(TAKEN_AT));
+        for(int i = 0; i < colliding.size() - 1; i++)
+        {
+            int record = inventory.find(colliding.get(i));
+            assertTrue(colliding.get(i), record >= 0);
+            assertEquals(i, inventory.getTagHash(record));
+        }
+        assertEquals("an absent id on the same probe chain", -1, inventory.find(colliding.get(colliding.size() - 1)));
+    }
+
+    /**
+     * The index is sized to stay at most half full, so a miss always reaches an empty slot, at every count including
+     * the ones right below and at a power of two.
+     */
+    public void testEveryCountIsIndexedAndMissesTerminate() throws IOException
+    {
+        for(int count = 0; count <= 130; count++)
+        {
+            VolumeInventory.Builder builder = VolumeInventory.builder();
+            for(int i = 0; i < count; i++) builder.add("vol-" + i, deleteOn(i), i);
+            VolumeInventory inventory = VolumeInventory.read(builder.build(TAKEN_AT));
+            assertEquals(count, inventory.size());
+            for(int i = 0; i < count; i++) assertEquals(i, inventory.getTagHash(inventory.find("vol-" + i)));
+            for(int i = count; i < count + 200; i++) assertEquals(-1, inventory.find("vol-" + i));
+        }
+    }
+
+    public void testDuplicateIdsFindOneOfThem() throws IOException
+    {
+        VolumeInventory.Builder builder = VolumeInventory.builder();
+        builder.add("vol-1", deleteOn(1), 1);
+        builder.add("vol-1", deleteOn(1), 1);
+        VolumeInventory inventory = VolumeInventory.read(builder.build(TAKEN_AT));
+        assertEquals(1, inventory.getTagHash(inventory.find("vol-1")));
+    }
+
+    public void testInvalidIdsAreRefused()
+    {
+        char[] tooLong = new char[256];
+        Arrays.fill(tooLong, 'a');
+        try {
+            VolumeInventory.builder().add(new String(tooLong), 0, 0);
+            fail("added an id longer than 255 bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            VolumeInventory.builder().add("vol-\u00e9", 0, 0);
+            fail("added a non-ASCII id");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCorruptSnapshotsAreRejected() throws IOException
+    {
+        ByteBuffer valid = snapshot(TAKEN_AT, "vol-1", "vol-2", "vol-3");
+        int length = valid.limit();
+
+        assertRejected("empty", ByteBuffer.allocate(0));
+        assertRejected("header cut short", copy(valid, 19));
+        for(int cut = 20; cut < length; cut++) assertRejected("truncated to " + cut + " of " + length + " bytes", copy(valid, cut));
+
+        ByteBuffer badMagic = copy(valid, length);
+        badMagic.putInt(0, 0x4A534F4E);
+        assertRejected("bad magic", badMagic);
+
+        ByteBuffer badVersion = copy(valid, length);
+        badVersion.putInt(4, 2);
+        assertRejected("unknown version", badVersion);
+
+        ByteBuffer negativeCount = copy(valid, length);
+        negativeCount.putInt(16, -1);
+        assertRejected("negative count", negativeCount);
+
+        ByteBuffer hugeCount = copy(valid, length);
+        hugeCount.putInt(16, Integer.MAX_VALUE);
+        assertRejected("count beyond the file", hugeCount);
+
+        ByteBuffer badIdLength = copy(valid, length);
+        badIdLength.put(20, (byte) 0xFF);
+        assertRejected("id length running past the end", badIdLength);
+
+        assertRejected("not a snapshot at all", ByteBuffer.wrap("{\"volumes\":[]}                    ".getBytes("US-ASCII")));
+    }
+
+    public void testCorruptFileIsRejectedOnLoad() throws IOException
+    {
+        _store.save("volumes", snapshot(TAKEN_AT, "vol-1", "vol-2"));
+        Path file;
+        try(Stream<Path> files = Files.list(_directory)) {
+            file = files.findFirst().get();
+        }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try {
+            _store.load("volumes");
+            fail("loaded a truncated file");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testTagHashIgnoresTagOrder()
+    {
+        List<Tag> tags = Arrays.asList(new Tag("Name", "db-01"), new Tag("Owner", "team@example.com"), new Tag("lambda:delete-on", "2026-11-01T00:00:00Z"));
+        List<Tag> reversed = new ArrayList<Tag>(tags);
+        Collections.reverse(reversed);
+        List<Tag> rotated = Arrays.asList(tags.get(1), tags.get(2), tags.get(0));
+
+        long hash = VolumeInventory.tagHash(tags);
+        assertEquals(hash, VolumeInventory.tagHash(reversed));
+        assertEquals(hash, VolumeInventory.tagHash(rotated));
+        assertEquals(hash, VolumeInventory.tagHash(copyOf(tags)));
+    }
+
+    public void testTagHashChangesWithAnyTag()
+    {
+        List<Tag> tags = Arrays.asList(new Tag("Name", "db-01"), new Tag("Owner", "team@example.com"));
+        long hash = VolumeInventory.tagHash(tags);
+
+        assertFalse(hash == VolumeInventory.tagHash(Arrays.asList(new Tag("Name", "db-02"), new Tag("Owner", "team@example.com"))));
+        assertFalse(hash == VolumeInventory.tagHash(Arrays.asList(new Tag("name", "db-01"), new Tag("Owner", "team@example.com"))));
+        assertFalse(hash == VolumeInventory.tagHash(Arrays.asList(new Tag("Name", "db-01"))));
+        assertFalse(hash == VolumeInventory.tagHash(Arrays.asList(new Tag("Name", "db-01"), new Tag("Owner", "team@example.com"), new Tag("x", ""))));
+        assertFalse("key and value are kept apart", VolumeInventory.tagHash(Arrays.asList(new Tag("ab", "c")))
+                                                   == VolumeInventory.tagHash(Arrays.asList(new Tag("a", "bc"))));
+        assertFalse("keys and values aren't interchangeable", VolumeInventory.tagHash(Arrays.asList(new Tag("a", "b")))
+                                                             == VolumeInventory.tagHash(Arrays.asList(new Tag("b", "a"))));
+        assertFalse("a tag moving its value to another tag is a change",
+                    VolumeInventory.tagHash(Arrays.asList(new Tag("a", "1"), new Tag("b", "2")))
+                    == VolumeInventory.tagHash(Arrays.asList(new Tag("a", "2"), new Tag("b", "1"))));
+    }
+
+    public void testTagHashOfNoTags()
+    {
+        assertEquals(VolumeInventory.tagHash(null), VolumeInventory.tagHash(Collections.<Tag>emptyList()));
+        assertFalse(VolumeInventory.tagHash(null) == VolumeInventory.tagHash(Arrays.asList(new Tag("", ""))));
+        assertEquals(VolumeInventory.tagHash(Arrays.asList(new Tag("a", null))), VolumeInventory.tagHash(Arrays.asList(new Tag("a", null))));
+    }
+
+    private static void assertRejected(String problem, ByteBuffer snapshot)
+    {
+        try {
+            VolumeInventory.read(snapshot);
+            fail("read a snapshot with " + problem);
+        } catch (IOException expected) {
+        }
+    }
+
+    private static ByteBuffer snapshot(long takenAt, String... volumeIds)
+    {
+        VolumeInventory.Builder builder = VolumeInventory.builder();
+        for(int i = 0; i < volumeIds.length; i++) builder.add(volumeIds[i], deleteOn(i), i);
+        return builder.build(takenAt);
+    }
+
+    private static ByteBuffer copy(ByteBuffer snapshot, int length)
+    {
+        byte[] bytes = new byte[length];
+        snapshot.duplicate().get(bytes, 0, length);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static List<Tag> copyOf(List<Tag> tags)
+    {
+        List<Tag> copy = new ArrayList<Tag>();
+        for(Tag tag : tags) copy.add(new Tag(new String(tag.getKey()), new String(tag.getValue())));
+        return copy;
+    }
+
+    private static void collidingIds(String prefix, int blocks, List<String> ids)
+    {
+        if(blocks == 0)
+        {
+            ids.add(prefix);
+            return;
+        }
+        collidingIds(prefix + "Aa", blocks - 1, ids);
+        collidingIds(prefix + "BB", blocks - 1, ids);
+    }
+
+    private static long deleteOn(int i)
+    {
+        return TAKEN_AT + i * 60000L;
+    }
+}
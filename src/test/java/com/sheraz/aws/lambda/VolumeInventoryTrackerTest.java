@@ -0,0 +1,183 @@
+package com.sheraz.aws.lambda;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+import com.sheraz.aws.lambda.VolumeInventory.InventoryStore;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.ClassifiedVolume;
+import com.sheraz.aws.lambda.VolumeLifecycleClassifier.VolumeLifecycle;
+
+/**
+ * Which volumes a run warns about: anything the previous run can't have warned about in its current state is warned
+ * about again, and the snapshot only moves on once the run's warnings are out.
+ *
+ * @author Sheraz Khan
+ *
+ */
+public class VolumeInventoryTrackerTest extends TestCase
+{
+    private static final String     NAME = "volumes-scheduled-123456789012-us-east-1";
+    private static final int        NOTIFY_DAYS = 7;
+    private static final Instant    PREVIOUS_RUN = Instant.parse("2026-10-01T00:00:00Z");
+    private static final Instant    THIS_RUN = PREVIOUS_RUN.plus(1, ChronoUnit.DAYS);
+    private static final Instant    PREVIOUS_WINDOW_END = PREVIOUS_RUN.plus(NOTIFY_DAYS, ChronoUnit.DAYS);
+
+    private MemoryStore             _store;
+
+    @Override
+    protected void setUp()
+    {
+        _store = new MemoryStore();
+        VolumeInventoryTracker previous = VolumeInventoryTracker.open(_store, NAME, PREVIOUS_RUN, NOTIFY_DAYS);
+        previous.record(volume("vol-warned", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a"));
+        previous.record(volume("vol-entering", PREVIOUS_WINDOW_END.plus(12, ChronoUnit.HOURS), "Owner", "a"));
+        previous.record(volume("vol-before-edge", PREVIOUS_WINDOW_END.minusSeconds(1), "Owner", "a"));
+        previous.record(volume("vol-at-edge", PREVIOUS_WINDOW_END, "Owner", "a"));
+        previous.record(volume("vol-retagged", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a"));
+        previous.record(volume("vol-gone", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a"));
+        assertTrue(previous.commitIfNotified(0));
+    }
+
+    public void testOnlyVolumesNotWarnedAboutInTheirCurrentStateAreWarnedAbout()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertFalse("inside the previous run's window with the same tags",
+                    tracker.record(volume("vol-warned", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+        assertTrue("entered the window since the previous run",
+                   tracker.record(volume("vol-entering", PREVIOUS_WINDOW_END.plus(12, ChronoUnit.HOURS), "Owner", "a")));
+        assertTrue("tags changed", tracker.record(volume("vol-retagged", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "b")));
+        assertTrue("not in the previous snapshot", tracker.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    public void testTheWindowEdgeCountsAsWarnedOnlyBeforeIt()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertFalse(tracker.record(volume("vol-before-edge", PREVIOUS_WINDOW_END.minusSeconds(1), "Owner", "a")));
+        assertTrue("the previous run's classifier put the edge outside its window", 
+                   tracker.record(volume("vol-at-edge", PREVIOUS_WINDOW_END, "Owner", "a")));
+    }
+
+    /**
+     * The delete-on date is itself a tag, so a volume whose date was moved counts as changed.
+     */
+    public void testAMovedDateCountsAsAChange()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertTrue(tracker.record(volume("vol-warned", PREVIOUS_RUN.plus(4, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    public void testTagOrderDoesNotCountAsAChange()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        Volume volume = new Volume().withVolumeId("vol-warned").withTags(new Tag("Owner", "a"),
+                                                                          deleteOnTag(PREVIOUS_RUN.plus(3, ChronoUnit.DAYS)));
+        Volume reordered = new Volume().withVolumeId("vol-warned").withTags(deleteOnTag(PREVIOUS_RUN.plus(3, ChronoUnit.DAYS)),
+                                                                             new Tag("Owner", "a"));
+        assertEquals(VolumeInventory.tagHash(volume.getTags()), VolumeInventory.tagHash(reordered.getTags()));
+        assertFalse(tracker.record(classified(reordered, PREVIOUS_RUN.plus(3, ChronoUnit.DAYS))));
+    }
+
+    public void testACommittedRunIsTheNextRunsPrevious()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        tracker.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a"));
+        assertTrue(tracker.commitIfNotified(0));
+
+        VolumeInventoryTracker next = VolumeInventoryTracker.open(_store, NAME, THIS_RUN.plus(1, ChronoUnit.DAYS), NOTIFY_DAYS);
+        assertFalse("warned about by the committed run", next.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+        assertTrue("not scanned by the committed run, so dropped from its snapshot",
+                   next.record(volume("vol-gone", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    public void testNothingIsCommittedWhenNotificationsFailed() throws IOException
+    {
+        ByteBuffer previous = _store.snapshots.get(NAME);
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertTrue(tracker.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+        assertFalse(tracker.commitIfNotified(1));
+        assertSame(previous, _store.snapshots.get(NAME));
+        assertEquals(1, _store.saves);
+
+        VolumeInventoryTracker retry = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertTrue("its warning was lost, so it is warned about again",
+                   retry.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    public void testAFailedSaveKeepsThePreviousSnapshot()
+    {
+        ByteBuffer previous = _store.snapshots.get(NAME);
+        _store.failSaves = true;
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        tracker.record(volume("vol-new", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a"));
+        assertFalse(tracker.commitIfNotified(0));
+        assertSame(previous, _store.snapshots.get(NAME));
+    }
+
+    public void testWithoutAStoreEveryVolumeIsUnwarned()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(null, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertTrue(tracker.record(volume("vol-warned", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+        assertFalse(tracker.commitIfNotified(0));
+    }
+
+    public void testFirstRunWarnsAboutEveryVolume()
+    {
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, "never-saved", THIS_RUN, NOTIFY_DAYS);
+        assertTrue(tracker.record(volume("vol-warned", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    public void testAnUnreadableSnapshotMeansAFullRun()
+    {
+        ByteBuffer corrupt = _store.snapshots.get(NAME).duplicate();
+        corrupt.limit(corrupt.limit() - 1);
+        _store.snapshots.put(NAME, corrupt);
+        VolumeInventoryTracker tracker = VolumeInventoryTracker.open(_store, NAME, THIS_RUN, NOTIFY_DAYS);
+        assertTrue(tracker.record(volume("vol-warned", PREVIOUS_RUN.plus(3, ChronoUnit.DAYS), "Owner", "a")));
+    }
+
+    private static ClassifiedVolume volume(String volumeId, Instant deleteOn, String tagKey, String tagValue)
+    {
+        return classified(new Volume().withVolumeId(volumeId).withTags(new Tag(tagKey, tagValue), deleteOnTag(deleteOn)), deleteOn);
+    }
+
+    private static ClassifiedVolume classified(Volume volume, Instant deleteOn)
+    {
+        return new ClassifiedVolume(volume, VolumeLifecycle.NOTIFY, deleteOn.toEpochMilli());
+    }
+
+    private static Tag deleteOnTag(Instant deleteOn)
+    {
+        return new Tag("lambda:DetachedVolumeJanitor:delete-scheduled-on", VolumeLifecycleClassifier.formatDeleteOn(deleteOn.toEpochMilli()));
+    }
+
+    /**
+     * Keeps snapshots in memory; a failing save throws, as a full disk would.
+     */
+    private static final class MemoryStore implements InventoryStore
+    {
+        final Map<String, ByteBuffer> snapshots = new HashMap<String, ByteBuffer>();
+        boolean failSaves;
+        int saves;
+
+        public VolumeInventory load(String name) throws IOException
+        {
+            ByteBuffer snapshot = snapshots.get(name);
+            return snapshot == null ? null : VolumeInventory.read(snapshot.duplicate());
+        }
+
+        public void save(String name, ByteBuffer snapshot) throws IOException
+        {
+            if(failSaves) throw new IOException("No space left on device");
+            snapshots.put(name, snapshot);
+            saves++;
+        }
+    }
+}